@@ -0,0 +1,106 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.BinaryCodec;
+import gchatdata.ChatMessage;
+import gchatdata.DeflateCodec;
+import gchatdata.MessageCodec;
+import gchatdata.SerializationCodec;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A GChatServer set up for benchmarks: online on a free local port, with limits that never
+ * get in the way of a benchmark thread sending as fast as it can.
+ */
+final class BenchmarkServer
+{
+    private static final long NO_TIMEOUT_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long STARTUP_TIMEOUT_SECONDS = 10;
+
+    final GChatServer server;
+    final int port;
+
+    /**
+     * Puts a server online, on a thread of its own
+     *
+     * @param engine the engine serving socket connections
+     * @param queueCapacity the capacity of every outbound queue, which drop their oldest messages when full
+     */
+    BenchmarkServer(ServerEngine engine, int queueCapacity) throws IOException, InterruptedException
+    {
+        try (ServerSocket probe = new ServerSocket(0))
+        {
+            port = probe.getLocalPort();
+        }
+        server = new GChatServer(port, engine);
+        server.setOutboundQueue(queueCapacity, OverflowPolicy.DROP_OLDEST);
+        server.setFlowControl(1e9, Integer.MAX_VALUE, 1024);
+        server.setIdleTimeouts(NO_TIMEOUT_MILLIS, NO_TIMEOUT_MILLIS, NO_TIMEOUT_MILLIS);
+
+        CountDownLatch online = new CountDownLatch(1);
+        server.addListener(msg -> {
+            if (msg.startsWith("Server up and running")) online.countDown();
+        });
+        Thread thread = new Thread(() -> {
+            try
+            {
+                server.putOnline();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }, "benchmark-server");
+        thread.setDaemon(true);
+        thread.start();
+        if (!online.await(STARTUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) throw new IOException("Server did not go online");
+    }
+
+    /**
+     * @param codec the client's codec, see codec(), null for a legacy client
+     * @return a new in-memory client, not connected yet
+     */
+    MemoryConnection newConnection(MessageCodec codec)
+    {
+        return new MemoryConnection(server.newOutboundQueue(), codec, server.getMetrics());
+    }
+
+    /**
+     * Connects a client and has its user join, as the engines do for a socket
+     */
+    void join(MemoryConnection connection, String username) throws IOException
+    {
+        server.clientConnected(connection);
+        server.userJoined(connection, new ChatMessage(username, ""));
+    }
+
+    /**
+     * Shuts the server down without draining, benchmark clients never echo the Poison
+     */
+    void shutdown()
+    {
+        server.shutdown(0);
+    }
+
+    /**
+     * @param name Binary, Deflate, Serialization or Legacy
+     * @return the codec, null for Legacy
+     */
+    static MessageCodec codec(String name)
+    {
+        switch (name)
+        {
+            case "Binary":
+                return BinaryCodec.INSTANCE;
+            case "Deflate":
+                return DeflateCodec.INSTANCE;
+            case "Serialization":
+                return SerializationCodec.INSTANCE;
+            case "Legacy":
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + name);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.BinaryCodec;
+import gchatdata.ChatMessage;
+import gchatdata.FrameIO;
+import gchatdata.MessageCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A broadcast end to end over loopback sockets, to compare the engines: one client sends a
+ * message and the operation is over once every client, the sender included, has read it.
+ *
+ * Each client has a blocking reader thread of its own. With many clients those threads compete
+ * with the server's for the CPUs, so compare engines at the same number of recipients only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark
+{
+    private static final int QUEUE_CAPACITY = 64 * 1024; //one message is in flight at a time, nothing is ever dropped
+    private static final MessageCodec CODEC = BinaryCodec.INSTANCE;
+    private static final String SENDER = "sender";
+    private static final String TEXT = "has anyone seen the build break on the release branch this morning?";
+    private static final long JOIN_TIMEOUT_MILLIS = 30_000;
+
+    @Param({"THREADED", "VIRTUAL", "NIO"})
+    public ServerEngine engine;
+
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    private BenchmarkServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final Semaphore received = new Semaphore(0); //released by the readers, once per copy of a broadcast
+    private DataOutputStream sender;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException
+    {
+        server = new BenchmarkServer(engine, QUEUE_CAPACITY);
+        for (int i = 0; i < recipients; i++)
+        {
+            Socket socket = new Socket("localhost", server.port);
+            socket.setTcpNoDelay(true);
+            sockets.add(socket);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            FrameIO.writeHandshake(out, CODEC);
+            FrameIO.writeFrame(out, CODEC.encode(new ChatMessage(i == 0 ? SENDER : "user" + i, "")));
+            out.flush();
+            if (i == 0) sender = out;
+
+            Thread reader = new Thread(() -> read(socket), "benchmark-reader-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        //a user is listed once in the room, and a broadcast before then would never be counted
+        long deadline = System.currentTimeMillis() + JOIN_TIMEOUT_MILLIS;
+        while (server.server.getUsernames().size() < recipients)
+        {
+            if (System.currentTimeMillis() > deadline) throw new IOException("Clients did not join in time");
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        for (Socket socket : sockets) socket.close();
+        server.shutdown();
+    }
+
+    @Benchmark
+    public void broadcast() throws IOException, InterruptedException
+    {
+        FrameIO.writeFrame(sender, CODEC.encode(new ChatMessage(SENDER, TEXT)));
+        sender.flush();
+        received.acquire(recipients);
+    }
+
+    /**
+     * Reads everything a client is sent, counting the sender's chat messages
+     */
+    private void read(Socket socket)
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream())))
+        {
+            while (true)
+            {
+                byte[] frame = FrameIO.readFrame(in);
+                Object msg = CODEC.decode(frame, 0, frame.length);
+                if (msg instanceof ChatMessage && SENDER.equals(((ChatMessage) msg).getUsername())
+                        && !((ChatMessage) msg).getMessage().isEmpty()) received.release();
+            }
+        } catch (IOException e)
+        {
+            //closed by tearDown()
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.BinaryCodec;
+import gchatdata.ChatMessage;
+import gchatdata.MessageCodec;
+import gchatdata.MessageDecoder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of one chat message posted to the public room, from GChatServer.messageReceived()
+ * to a frame queued for every recipient: rate limiting, history, broadcast and fan-out.
+ *
+ * Recipients are in-memory MemoryConnections, so that the numbers show the server's own work
+ * rather than the loopback interface's. A framed recipient only looks the shared frame up, a
+ * legacy one serializes the message itself; that is the difference between the codecs here.
+ *
+ * receive starts one step earlier, from the sender's frame as read off its socket: it is decoded
+ * by the sender's MessageDecoder, as the engines do, before being broadcast.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class FanOutBenchmark
+{
+    private static final int QUEUE_CAPACITY = 64;
+    private static final String TEXT = "has anyone seen the build break on the release branch this morning?";
+
+    @Param({"10", "100", "1000", "10000"})
+    public int recipients;
+
+    @Param({"Binary", "Deflate", "Legacy"})
+    public String codec;
+
+    private BenchmarkServer server;
+    private MemoryConnection sender;
+    private MessageDecoder senderDecoder;
+    private byte[] senderFrame; //the payload of a Binary frame
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException
+    {
+        server = new BenchmarkServer(ServerEngine.THREADED, QUEUE_CAPACITY);
+        MessageCodec recipientCodec = BenchmarkServer.codec(codec);
+
+        List<MemoryConnection> connections = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++)
+        {
+            MemoryConnection connection = server.newConnection(recipientCodec);
+            server.join(connection, "user" + i);
+            connections.add(connection);
+        }
+        for (MemoryConnection connection : connections) connection.start();
+        sender = connections.get(0);
+        senderDecoder = BinaryCodec.INSTANCE.newDecoder();
+        senderFrame = BinaryCodec.INSTANCE.encode(new ChatMessage(sender.getUsername(), TEXT));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        server.shutdown();
+    }
+
+    @Benchmark
+    public boolean broadcast() throws IOException
+    {
+        return server.server.messageReceived(sender, new ChatMessage(sender.getUsername(), TEXT)); //decoded anew for every message
+    }
+
+    @Benchmark
+    public boolean receive() throws IOException
+    {
+        return server.server.messageReceived(sender, senderDecoder.decode(senderFrame, 0, senderFrame.length));
+    }
+}
@@ -0,0 +1,114 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.MessageCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * A ClientConnection without a socket, standing in for thousands of clients in benchmarks.
+ *
+ * send() does the work a StreamConnection's writer would do with the message: a framed
+ * connection fetches the frame of its codec, encoded once per message however many clients
+ * it goes to, and a legacy one serializes the message onto its own object stream. Then the
+ * message is queued as usual. Nothing ever takes it from the queue, so the server must be set
+ * up with OverflowPolicy.DROP_OLDEST.
+ *
+ * Until start() is called messages are only queued, so that joining thousands of clients one
+ * after the other does not encode the square of their number of username list updates.
+ */
+final class MemoryConnection extends ClientConnection
+{
+    private static final SocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    private static final int RESET_INTERVAL = 1024; //messages between resets of a legacy stream's handle table
+
+    private final OutboundQueue<OutboundMessage> queue;
+    private final MessageCodec codec; //null for a legacy connection
+    private final ServerMetrics metrics;
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream(1024);
+    private ObjectOutputStream objectWriter;
+    private boolean started;
+    private int unreset;
+    private long bytes;
+
+    /**
+     * @param queue a queue from GChatServer.newOutboundQueue()
+     * @param codec the codec the client selected, null for a legacy client
+     * @param metrics the server's metrics, which encoding times are recorded in
+     */
+    MemoryConnection(OutboundQueue<OutboundMessage> queue, MessageCodec codec, ServerMetrics metrics)
+    {
+        this.queue = queue;
+        this.codec = codec;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts encoding the messages sent from now on
+     */
+    synchronized void start() throws IOException
+    {
+        started = true;
+        if (codec == null) objectWriter = new ObjectOutputStream(written);
+    }
+
+    /**
+     * @return the bytes the messages sent since start() took on the wire
+     */
+    synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    @Override
+    boolean isFramed()
+    {
+        return codec != null;
+    }
+
+    @Override
+    synchronized boolean send(OutboundMessage msg) throws IOException
+    {
+        if (started)
+        {
+            if (codec != null)
+            {
+                bytes += msg.frame(codec, metrics).length;
+            }
+            else
+            {
+                if (++unreset == RESET_INTERVAL) //a real stream is never reset, but is not written to for hours either
+                {
+                    objectWriter.reset();
+                    unreset = 0;
+                }
+                objectWriter.writeObject(msg.message());
+                objectWriter.flush();
+                bytes += written.size();
+                written.reset();
+            }
+        }
+        return queue.offer(msg, msg.isDroppable());
+    }
+
+    @Override
+    void disconnect()
+    {
+        queue.close();
+    }
+
+    @Override
+    int getQueueDepth()
+    {
+        return queue.depth();
+    }
+
+    @Override
+    SocketAddress getRemoteAddress()
+    {
+        return ADDRESS;
+    }
+}
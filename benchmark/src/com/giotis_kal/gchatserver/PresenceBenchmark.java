@@ -0,0 +1,88 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.BinaryCodec;
+import gchatdata.ChatMessage;
+import gchatdata.Poison;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of keeping the username list up to date while users come and go.
+ *
+ * joinAndLeave() has a user join and then leave for good, with online users already there:
+ * two PresenceDeltas fanned out to everyone, one PresenceSnapshot for the newcomer. Legacy
+ * clients are sent the whole list on every change instead, so even a few of them make every
+ * change cost the size of the list times their number; legacyPercent shows how much.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class PresenceBenchmark
+{
+    private static final int QUEUE_CAPACITY = 64;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int online;
+
+    @Param({"0", "1"})
+    public int legacyPercent;
+
+    private BenchmarkServer server;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException
+    {
+        server = new BenchmarkServer(ServerEngine.THREADED, QUEUE_CAPACITY);
+        int legacyEvery = legacyPercent == 0 ? 0 : 100 / legacyPercent;
+
+        List<MemoryConnection> connections = new ArrayList<>(online);
+        for (int i = 0; i < online; i++)
+        {
+            boolean legacy = legacyEvery > 0 && i % legacyEvery == 0;
+            MemoryConnection connection = server.newConnection(legacy ? null : BinaryCodec.INSTANCE);
+            server.join(connection, "user" + i);
+            connections.add(connection);
+        }
+        for (MemoryConnection connection : connections) connection.start();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        server.shutdown();
+    }
+
+    @Benchmark
+    public void joinAndLeave() throws IOException
+    {
+        MemoryConnection connection = server.newConnection(BinaryCodec.INSTANCE);
+        connection.start();
+        server.join(connection, "newcomer" + next++);
+        server.server.messageReceived(connection, new Poison(false)); //ends the session, so the user leaves right away
+        server.server.clientDisconnected(connection);
+    }
+
+    @Benchmark
+    public List<String> usernames()
+    {
+        return server.server.getUsernames(); //the copy a snapshot or a legacy update starts from
+    }
+}
@@ -0,0 +1,135 @@
+package gchatdata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding a single ChatMessage with every MessageCodec, and with the legacy
+ * protocol: one long-lived object stream per connection, which is what the server still
+ * speaks to old clients.
+ *
+ * The benchmark cycles through BATCH distinct messages of the same length, so that neither
+ * the legacy stream's back references nor any cache make repeated messages look cheap. The
+ * legacy streams are started anew every BATCH messages, or their handle tables would keep
+ * every message of the run; the cost is spread over the batch.
+ *
+ * decodeConnection decodes what a single connection sends, one user posting in the public room
+ * and one other room, with the connection's own MessageDecoder as the server does. Compare its
+ * allocation rate with decode's, e.g. with -prof gc: it reuses the username and room Strings
+ * and leaves the text undecoded, as the server never needs it before logging.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+    private static final int BATCH = 1024;
+    private static final String[] WORDS = {"the", "server", "is", "down", "again", "lol", "who", "broke", "build",
+            "thanks", "see", "you", "tomorrow", "java", "exception", "at", "null", "what", "about", "lunch"};
+
+    @Param({"Legacy", "Serialization", "Binary", "Deflate"})
+    public String codec;
+
+    @Param({"16", "256", "4096"})
+    public int length; //of the message text, in characters
+
+    private MessageCodec messageCodec; //null for Legacy
+    private final ChatMessage[] messages = new ChatMessage[BATCH];
+    private final byte[][] payloads = new byte[BATCH][];
+    private final byte[][] connectionPayloads = new byte[BATCH][]; //all from the same user
+    private MessageDecoder decoder;
+    private int next;
+
+    //Legacy only
+    private ByteArrayOutputStream written;
+    private ObjectOutputStream out;
+    private byte[] stream; //BATCH messages as one object stream
+    private ObjectInputStream in;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        Random random = new Random(42);
+        for (int i = 0; i < BATCH; i++)
+        {
+            StringBuilder text = new StringBuilder(length);
+            while (text.length() < length) text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            text.setLength(length);
+            messages[i] = new ChatMessage("user" + random.nextInt(1000), text.toString(), i % 2 == 0 ? null : "room" + i % 10);
+        }
+
+        if (!codec.equals("Legacy"))
+        {
+            messageCodec = codec.equals("Serialization") ? SerializationCodec.INSTANCE
+                    : codec.equals("Binary") ? BinaryCodec.INSTANCE : DeflateCodec.INSTANCE;
+            for (int i = 0; i < BATCH; i++)
+            {
+                payloads[i] = messageCodec.encode(messages[i]);
+                connectionPayloads[i] = messageCodec.encode(new ChatMessage("user42", messages[i].getMessage(), i % 2 == 0 ? null : "room3"));
+            }
+            decoder = messageCodec.newDecoder();
+            return;
+        }
+
+        written = new ByteArrayOutputStream(64 * 1024);
+        ObjectOutputStream batch = new ObjectOutputStream(written);
+        for (ChatMessage msg : messages) batch.writeObject(msg);
+        batch.flush();
+        stream = written.toByteArray();
+        written.reset();
+    }
+
+    @Benchmark
+    public Object encode() throws IOException
+    {
+        int i = next;
+        next = (next + 1) % BATCH;
+        if (messageCodec != null) return messageCodec.encode(messages[i]);
+
+        if (i == 0 || out == null) out = new ObjectOutputStream(written);
+        out.writeObject(messages[i]);
+        out.flush();
+        written.reset(); //as if the socket took it
+        return out;
+    }
+
+    @Benchmark
+    public Object decode() throws IOException, ClassNotFoundException
+    {
+        int i = next;
+        next = (next + 1) % BATCH;
+        if (messageCodec != null) return messageCodec.decode(payloads[i], 0, payloads[i].length);
+
+        if (i == 0 || in == null) in = new ObjectInputStream(new ByteArrayInputStream(stream));
+        return in.readObject();
+    }
+
+    @Benchmark
+    public Object decodeConnection() throws IOException, ClassNotFoundException
+    {
+        if (decoder == null) return decode(); //a legacy stream belongs to its connection already
+
+        int i = next;
+        next = (next + 1) % BATCH;
+        return decoder.decode(connectionPayloads[i], 0, connectionPayloads[i].length);
+    }
+}
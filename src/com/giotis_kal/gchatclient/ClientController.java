@@ -2,12 +2,20 @@ package com.giotis_kal.gchatclient;
 
 import gchat.warning_dialog.WarningDialog;
 import gchatdata.ChatMessage;
+import gchatdata.TlsContexts;
+import gchatdata.WriteCoalescing;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
@@ -16,27 +24,44 @@ import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Button;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
-import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
+import javax.net.ssl.SSLContext;
 
-public class ClientController implements Initializable
+public class ClientController implements Initializable, ClientListener
 {
+    private static final int MESSAGES_SHOWN = 2000; //older messages scroll out of the window for good
+
     @FXML
     private Button connectButton;
     @FXML
     private TextField addressField, portField, usernameField, chatBox;
     @FXML
-    private TextArea msgArea;
+    private ListView<ChatMessage> messageView;
+    private final MessageRing messages = new MessageRing(MESSAGES_SHOWN);
     @FXML
     private ListView<String> usersListView;
     private ObservableList<String> usersList = FXCollections.observableArrayList();
 
     private GChatClient client;
+    private SSLContext tls; //loaded once, so that its cached sessions are resumed on every reconnect
     private BooleanProperty connected = new SimpleBooleanProperty(false);
 
+    //Messages read since the last pulse, shown all at once on the next one
+    private final Queue<ChatMessage> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean pulsing = new AtomicBoolean();
+    private final AnimationTimer pulse = new AnimationTimer()
+    {
+        @Override
+        public void handle(long now)
+        {
+            showPending();
+        }
+    };
+
     @Override
     public void initialize(URL location, ResourceBundle resources)
     {
@@ -53,25 +78,77 @@ public class ClientController implements Initializable
         });
 
         usersListView.setItems(usersList);
+
+        //Only the visible rows get a cell, which only renders its text when a message scrolls into it
+        messageView.setItems(messages);
+        messageView.setCellFactory(view -> new ListCell<ChatMessage>()
+        {
+            {
+                setWrapText(true);
+                setPrefWidth(0); //wrap to the view's width instead of widening it
+            }
+
+            @Override
+            protected void updateItem(ChatMessage msg, boolean empty)
+            {
+                super.updateItem(msg, empty);
+                setText(empty || msg == null ? null : msg.toString());
+            }
+        });
     }
 
     /**
      * Appends new message to the client's message area.
      * @param msg new message to be appended
      */
+    @Override
     public void appendMessage(String msg)
     {
-        Platform.runLater(() -> msgArea.appendText(msg + "\r\n"));
+        messageReceived(new ChatMessage("", msg));
+    }
+
+    /**
+     * Queues a message for the next pulse, however many arrive in between the FX thread is updated once.
+     * @param msg new message to be shown
+     */
+    @Override
+    public void messageReceived(ChatMessage msg)
+    {
+        pending.add(msg);
+        if (pulsing.compareAndSet(false, true)) Platform.runLater(pulse::start);
+    }
+
+    /**
+     * Runs on every pulse while messages keep arriving: moves them all into the view in one change
+     * and scrolls to the newest. The timer stops on the first pulse with nothing to show.
+     */
+    private void showPending()
+    {
+        List<ChatMessage> batch = new ArrayList<>();
+        for (ChatMessage msg; (msg = pending.poll()) != null; ) batch.add(msg);
+
+        if (batch.isEmpty())
+        {
+            pulse.stop();
+            pulsing.set(false);
+            //a message queued after the poll above but before the flag was cleared would otherwise wait for the next one
+            if (!pending.isEmpty() && pulsing.compareAndSet(false, true)) pulse.start();
+            return;
+        }
+        messages.append(batch);
+        messageView.scrollTo(messages.size() - 1);
     }
 
     /**
      * Toggles the UI between connected/disconnected state in conjunction with the BooleanProperty's listener
      */
+    @Override
     public void toggleConnected()
     {
         this.connected.set(!connected.get());
     }
 
+    @Override
     public void updateUsernameList(ArrayList<String> newNameList)
     {
         Platform.runLater(() -> {
@@ -80,6 +157,26 @@ public class ClientController implements Initializable
         });
     }
 
+    /**
+     * Adds a single username to the list, as reported by a PresenceDelta
+     * @param username the user who joined
+     */
+    @Override
+    public void addUsername(String username)
+    {
+        Platform.runLater(() -> usersList.add(username));
+    }
+
+    /**
+     * Removes a single username from the list, as reported by a PresenceDelta
+     * @param username the user who left
+     */
+    @Override
+    public void removeUsername(String username)
+    {
+        Platform.runLater(() -> usersList.remove(username));
+    }
+
     private void clearUsernameViewList()
     {
         Platform.runLater(() -> usersList.clear());
@@ -97,19 +194,33 @@ public class ClientController implements Initializable
                 displayWarningDialog("Invalid port number!");
                 return;
             }
-            if (usernameField.getText().length() == 0)
+            if (usernameField.getText().trim().isEmpty())
             {
                 displayWarningDialog("You must enter a username!");
                 return;
             }
+            if (usernameField.getText().length() > ChatMessage.MAX_NAME_LENGTH)
+            {
+                displayWarningDialog("Usernames can be at most " + ChatMessage.MAX_NAME_LENGTH + " characters!");
+                return;
+            }
 
             //and set up the client
             client = new GChatClient(addressField.getText(), Integer.parseInt(portField.getText()), this);
+            String coalesce = System.getProperty("gchat.coalesce"); //e.g. -Dgchat.coalesce=2000:16384
+            if (coalesce != null) client.setWriteCoalescing(WriteCoalescing.parse(coalesce));
 
             try
             {
+                String trustStore = System.getProperty("gchat.tls"); //e.g. -Dgchat.tls=gchat.p12 -Dgchat.tls.password=changeit
+                if (trustStore != null)
+                {
+                    if (tls == null) tls = TlsContexts.fromKeyStore(Paths.get(trustStore),
+                            System.getProperty("gchat.tls.password", "changeit").toCharArray());
+                    client.setTls(tls);
+                }
+                client.setUsername(usernameField.getText()); //sent as soon as the connection is up
                 client.connect();
-                client.setUsername(usernameField.getText());
                 toggleConnected();
             }
             catch (UnknownHostException e)
@@ -131,6 +242,10 @@ public class ClientController implements Initializable
         }
     }
 
+    /**
+     * Sends the chat box's text to the current room. Also understands
+     * "/join room" and "/leave room" to switch rooms, and "/msg user text" to message a single user.
+     */
     @FXML
     private void sendMessage()
     {
@@ -138,7 +253,21 @@ public class ClientController implements Initializable
 
         if (canProceed)
         {
-            client.sendMessage(new ChatMessage(client.getUsername(), chatBox.getText()));
+            String text = chatBox.getText();
+            if (text.length() > ChatMessage.MAX_MESSAGE_LENGTH)
+            {
+                displayWarningDialog("Messages can be at most " + ChatMessage.MAX_MESSAGE_LENGTH + " characters!");
+                return;
+            }
+            if (text.startsWith("/join ")) client.joinRoom(text.substring(6).trim());
+            else if (text.startsWith("/leave ")) client.leaveRoom(text.substring(7).trim());
+            else if (text.startsWith("/msg "))
+            {
+                String[] parts = text.substring(5).trim().split("\\s+", 2);
+                if (parts.length < 2) return; //keep the text, so that the message can be completed
+                client.sendDirectMessage(parts[0], parts[1]);
+            }
+            else client.sendMessage(new ChatMessage(client.getUsername(), text, client.getRoom()));
             Platform.runLater(() -> chatBox.setText(""));
         }
     }
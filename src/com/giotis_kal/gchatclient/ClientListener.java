@@ -0,0 +1,73 @@
+package com.giotis_kal.gchatclient;
+
+import gchatdata.ChatMessage;
+import gchatdata.DirectMessage;
+import java.util.ArrayList;
+
+/**
+ * Receives what a GChatClient reads from the server. The JavaFX ClientController is one such
+ * listener, the headless LoadGenerator another.
+ *
+ * Methods are called on the client's reader thread: listeners must not block and are
+ * responsible for getting onto their UI thread, if any.
+ *
+ * @see GChatClient#GChatClient(String, int, ClientListener)
+ */
+public interface ClientListener
+{
+    /**
+     * A status line, such as the connection being lost, or a chat message to display
+     *
+     * @param msg the line to be displayed
+     */
+    void appendMessage(String msg);
+
+    /**
+     * A chat message, broadcast live or part of the history of a room just entered.
+     * Displayed with appendMessage() unless overridden.
+     *
+     * @param msg the message, as posted by its sender
+     */
+    default void messageReceived(ChatMessage msg)
+    {
+        appendMessage(msg.toString());
+    }
+
+    /**
+     * A direct message, to this user or sent by them. Displayed with appendMessage() unless overridden.
+     *
+     * @param msg the message, its sender set by the server
+     */
+    default void directMessageReceived(DirectMessage msg)
+    {
+        appendMessage(msg.toString());
+    }
+
+    /**
+     * Called once the connection is over, after a disconnect or when reconnecting failed
+     */
+    default void toggleConnected()
+    {
+    }
+
+    /**
+     * @param usernames the whole username list, replacing the one shown
+     */
+    default void updateUsernameList(ArrayList<String> usernames)
+    {
+    }
+
+    /**
+     * @param username the user who joined
+     */
+    default void addUsername(String username)
+    {
+    }
+
+    /**
+     * @param username the user who left
+     */
+    default void removeUsername(String username)
+    {
+    }
+}
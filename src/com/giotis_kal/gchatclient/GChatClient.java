@@ -1,18 +1,42 @@
 package com.giotis_kal.gchatclient;
 
 import gchatdata.ChatMessage;
+import gchatdata.Credit;
+import gchatdata.DeflateCodec;
+import gchatdata.DirectMessage;
+import gchatdata.FrameIO;
+import gchatdata.Heartbeat;
+import gchatdata.HistoryBatch;
+import gchatdata.MessageCodec;
 import gchatdata.Poison;
+import gchatdata.PresenceDelta;
+import gchatdata.PresenceSnapshot;
+import gchatdata.RoomCommand;
+import gchatdata.Session;
+import gchatdata.WriteCoalescing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 
 /**
  * Chat Client
@@ -22,24 +46,50 @@ public class GChatClient
     //username field cached from GUI
     private String username;
 
-    //References to socket and ObjectOutputStream
+    //the room messages are currently sent to
+    private volatile String room = ChatMessage.PUBLIC_ROOM;
+
+    //References to socket and framed output stream
     private Socket socket;
-    private ObjectOutputStream writer;
+    private DataOutputStream writer;
+    private final MessageCodec codec = DeflateCodec.INSTANCE; //announced to the server on connect, compresses large frames
+    private SSLContext tls; //null for a plain connection, see setTls()
+
+    //Outgoing messages may be batched, see setWriteCoalescing()
+    private WriteCoalescing coalescing = WriteCoalescing.IMMEDIATE;
+    private ScheduledExecutorService timer; //flushes batches and checks heartbeats, created on demand
+    private int unflushed; //bytes written since the last flush, guarded by this
+
+    //ChatMessages may only be sent against credit granted by the server, see gchatdata.Credit
+    private int credits; //guarded by this
+    private final ArrayDeque<ChatMessage> held = new ArrayDeque<>(); //waiting for credit, guarded by this
 
     //Fields used to initiate socket connection
     private String host; //The host and port
     private int port;    //to connect to.
 
-    //Internal ref to app for updates
-    private ClientController app;
+    //Internal ref to the app for updates, the GUI window or a headless listener
+    private ClientListener app;
+
+    //Session resumed after a dropped connection, so that no messages are lost meanwhile
+    private static final int RECONNECT_ATTEMPTS = 5;
+    private static final long RECONNECT_DELAY_MILLIS = 1000; //doubled after every failed attempt
+    private volatile String sessionToken; //null until the server grants a session
+    private final Map<String, Long> lastSequences = new ConcurrentHashMap<>(); //room to the last message sequence received
+    private volatile boolean disconnecting; //set when the user disconnects on purpose
+
+    //A server that stays silent is pinged, and given up on (reconnecting) if it still does not answer
+    private static final long HEARTBEAT_CHECK_MILLIS = 5 * 1000;
+    private static final long PING_MILLIS = 45 * 1000; //the server pings us after 30s of silence on our side
+    private static final long SERVER_TIMEOUT_MILLIS = 90 * 1000;
 
     /**
      * Public constructor of gchatclient
      * @param host host to connect to (points to the server)
      * @param port port to connect to at host address
-     * @param app internal reference to the application's GUI Window
+     * @param app internal reference to the application's GUI Window, or any other listener
      */
-    public GChatClient(String host, int port, ClientController app)
+    public GChatClient(String host, int port, ClientListener app)
     {
         this.host = host;
         this.port = port;
@@ -56,6 +106,68 @@ public class GChatClient
         this.username = username;
     }
 
+    public String getRoom()
+    {
+        return room;
+    }
+
+    /**
+     * Sets how eagerly messages are flushed to the server. By default every message is sent
+     * straight away; with a coalescing window messages typed in quick succession (or sent by
+     * a scripted client) go out together, once the window is over or the byte budget is used up.
+     *
+     * @param coalescing the flush policy
+     */
+    public synchronized void setWriteCoalescing(WriteCoalescing coalescing)
+    {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * Encrypts the connection with TLS. The server's certificate must be trusted by the context
+     * and match the host connected to. Reconnects reuse the sessions the context caches, so
+     * they skip the full handshake; keep one context for the whole application.
+     *
+     * @param context the context, see gchatdata.TlsContexts
+     */
+    public synchronized void setTls(SSLContext context)
+    {
+        this.tls = context;
+    }
+
+    /**
+     * Joins a room and makes it the one new messages are sent to
+     *
+     * @param room the name of the room
+     */
+    public void joinRoom(String room)
+    {
+        sendMessage(new RoomCommand(room, true));
+        this.room = room;
+    }
+
+    /**
+     * Leaves a room, switching back to the public room if it was the current one
+     *
+     * @param room the name of the room
+     */
+    public void leaveRoom(String room)
+    {
+        sendMessage(new RoomCommand(room, false));
+        if (room.equals(this.room)) this.room = ChatMessage.PUBLIC_ROOM;
+    }
+
+    /**
+     * Sends a private message to a single user. Direct messages need no send credit.
+     *
+     * @param recipient the username of the user
+     * @param text the message
+     */
+    public void sendDirectMessage(String recipient, String text)
+    {
+        sendMessage(new DirectMessage(null, recipient, text)); //the server fills in the sender
+    }
+
     /**
      * Connects to the Chat Server. Once connected the ReaderTask thread is
      * initialized which handles all incoming server input.
@@ -66,14 +178,71 @@ public class GChatClient
      */
     public void connect() throws IOException
     {
-        socket = new Socket(host, port);
-        writer = new ObjectOutputStream(socket.getOutputStream());
+        disconnecting = false;
+        openSocket();
+        app.appendMessage("Connected to server!");
+    }
+
+    private synchronized void openSocket() throws IOException
+    {
+        socket = tls != null ? openTlsSocket() : new Socket(host, port);
+        socket.setTcpNoDelay(true); //batching is up to sendMessage(), Nagle would only add latency
+        unflushed = 0;
+        credits = 0; //granted anew on every join or resume, held messages go out then
+        writer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        FrameIO.writeHandshake(writer, codec); //select the framed protocol
 
         ExecutorService exec = Executors.newSingleThreadExecutor();
         exec.submit(new SocketTask(socket)); //Handle all input from server
         exec.shutdown(); //Make sure it shuts down once work done
+    }
 
-        app.appendMessage("Connected to server!");
+    /**
+     * Opens a TLS socket, checking the server's certificate against the host name.
+     * The handshake itself happens with the first write.
+     */
+    private Socket openTlsSocket() throws IOException
+    {
+        SSLSocket socket = (SSLSocket) tls.getSocketFactory().createSocket(host, port);
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(parameters);
+        return socket;
+    }
+
+    /**
+     * Tries to reconnect after the connection dropped, resuming the session
+     *
+     * @return true if a new connection was opened
+     */
+    private boolean reconnect()
+    {
+        long delay = RECONNECT_DELAY_MILLIS;
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS && !disconnecting; attempt++)
+        {
+            try
+            {
+                Thread.sleep(delay);
+                openSocket();
+                return true;
+            } catch (IOException e)
+            {
+                delay *= 2;
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps track of the last message received in each room, to resume from
+     */
+    private void received(ChatMessage msg)
+    {
+        if (msg.getSequence() > 0) lastSequences.merge(msg.getRoom(), msg.getSequence(), Math::max);
     }
 
     /**
@@ -86,8 +255,18 @@ public class GChatClient
     {
         try
         {
+            disconnecting = true;
+            sessionToken = null;
+            lastSequences.clear();
+            synchronized (this)
+            {
+                held.clear();
+            }
             sendMessage(new Poison(false)); //Send Poison to let server know of our intention to disconnect
-            socket.shutdownOutput();        //Shut down output
+            if (!(socket instanceof SSLSocket)) socket.shutdownOutput(); //Shut down output (TLS cannot, the Poison echo ends it)
+        } catch (SocketException e)
+        {
+            //the server echoed the Poison already and the reader closed the socket
         } catch (IOException e)
         {
             e.printStackTrace();
@@ -98,18 +277,93 @@ public class GChatClient
      * Sends a message to the server, which is broadcast to all clients
      * currently connected.
      *
+     * ChatMessages are held back while the client is out of send credit, and sent as soon as the
+     * server grants more.
+     *
      * @param msg the message sent to the server which is broadcast to all clients
      */
-    public void sendMessage(Object msg)
+    public synchronized void sendMessage(Object msg)
+    {
+        if (msg instanceof ChatMessage)
+        {
+            if (credits == 0)
+            {
+                if (held.isEmpty()) app.appendMessage("Server busy, your messages will be sent shortly...");
+                held.add((ChatMessage) msg);
+                return;
+            }
+            credits--;
+        }
+        write(msg);
+    }
+
+    /**
+     * Adds credit granted by the server, sending the messages held back meanwhile
+     */
+    private synchronized void creditGranted(int granted)
+    {
+        credits += granted;
+        while (credits > 0 && !held.isEmpty())
+        {
+            credits--;
+            write(held.poll());
+        }
+    }
+
+    /**
+     * Writes a message to the server, flushing it right away or batching it, see setWriteCoalescing()
+     */
+    private synchronized void write(Object msg)
     {
         try
         {
-            writer.writeObject(msg);
+            byte[] payload = codec.encode(msg);
+            FrameIO.writeFrame(writer, payload);
+            boolean first = unflushed == 0;
+            unflushed += FrameIO.HEADER_LENGTH + payload.length;
+
+            if (coalescing.isImmediate() || msg instanceof Poison || unflushed >= coalescing.getMaxBytes())
+            {
+                writer.flush();
+                unflushed = 0;
+            }
+            else if (first)
+            {
+                timer().schedule(this::flush, coalescing.getWindowNanos(), TimeUnit.NANOSECONDS);
+            }
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized ScheduledExecutorService timer()
+    {
+        if (timer == null)
+        {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "gchat-client-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Flushes the messages batched so far, once the coalescing window is over
+     */
+    private synchronized void flush()
+    {
+        if (unflushed == 0) return; //the byte budget flushed them already
+        try
+        {
             writer.flush();
         } catch (IOException e)
         {
             e.printStackTrace();
         }
+        unflushed = 0;
     }
 
     /**
@@ -129,6 +383,8 @@ public class GChatClient
     private class SocketTask implements Runnable
     {
         private Socket socket; //internal reference to socket
+        private long presenceVersion = -1; //version of the username list shown, -1 until the first snapshot
+        private volatile long lastReceivedNanos = System.nanoTime();
 
         public SocketTask(Socket socket)
         {
@@ -144,44 +400,64 @@ public class GChatClient
         @Override
         public void run()
         {
-            //Send empty message to server for it to cache username
-            sendMessage(new ChatMessage(getUsername(), ""));
+            //Resume the session if there is one, else send empty message to server for it to cache username
+            if (sessionToken != null) sendMessage(new Session(sessionToken, new HashMap<>(lastSequences)));
+            else write(new ChatMessage(getUsername(), "")); //joining needs no credit
+
+            ScheduledFuture<?> heartbeat = timer().scheduleWithFixedDelay(this::checkHeartbeat,
+                    HEARTBEAT_CHECK_MILLIS, HEARTBEAT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
 
             //Handle input from server
-            try (ObjectInputStream reader = new ObjectInputStream(socket.getInputStream()))
+            boolean dropped = false;
+            try (DataInputStream reader = new DataInputStream(new BufferedInputStream(socket.getInputStream())))
             {
                 handleServerInput(reader);
             }
-            catch (IOException | ClassNotFoundException e)
+            catch (IOException e)
             {
                 e.printStackTrace();
+                dropped = true; //no Poison, the connection was lost
             } finally
             {
-                closeSocketAndResetFrame();
+                heartbeat.cancel(false);
+                try
+                {
+                    socket.close();
+                } catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+                if (dropped && sessionToken != null && !disconnecting)
+                {
+                    app.appendMessage("Connection lost, reconnecting...");
+                    if (reconnect()) return;
+                }
+                resetFrame();
             }
         }
 
         /**
-         * Handles input from server in a loop using an ObjectInputStream. To break out of the loop correctly
+         * Handles input from server in a loop, one frame at a time. To break out of the loop correctly
          * a Poison object is sent in case the user presses disconnect or the server shuts down.
          *
          * If the Poison object is flagged "toShutDownServer" then it is resent to the server to allow
          * the corresponding ConnectionTask of the server to terminate.
          *
-         * @param reader the ObjectInputStream that handles input from the server
-         * @throws ClassNotFoundException in case an Object of unknown class is received
-         * @throws IOException if the stream fails
+         * @param reader the DataInputStream that handles input from the server
+         * @throws IOException if the stream fails or a frame cannot be decoded
          * @throws EOFException if the stream reaches EOF
          * @throws SocketException if the socket closes abruptly
          *
          * @see Poison
          */
-        private void handleServerInput(ObjectInputStream reader) throws ClassNotFoundException, IOException
+        private void handleServerInput(DataInputStream reader) throws IOException
         {
             Object msg;
             while(true)
             {
-                msg = reader.readObject();
+                byte[] frame = FrameIO.readFrame(reader);
+                lastReceivedNanos = System.nanoTime();
+                msg = codec.decode(frame, 0, frame.length); //inflates the frames the server compressed
 
                 if (msg instanceof Poison) //in case of Poison
                 {
@@ -191,26 +467,105 @@ public class GChatClient
                 }
                 else if (msg instanceof ChatMessage) //handle the message
                 {
-                    app.appendMessage(msg.toString());
+                    received((ChatMessage) msg);
+                    app.messageReceived((ChatMessage) msg);
+                }
+                else if (msg instanceof DirectMessage) //sent to us, or our own echoed back
+                {
+                    app.directMessageReceived((DirectMessage) msg);
+                }
+                else if (msg instanceof HistoryBatch) //recent messages of a room just entered, or missed while reconnecting
+                {
+                    for (ChatMessage chatMessage : ((HistoryBatch) msg).getMessages())
+                    {
+                        received(chatMessage);
+                        app.messageReceived(chatMessage);
+                    }
+                }
+                else if (msg instanceof Credit)
+                {
+                    creditGranted(((Credit) msg).getCredits());
+                }
+                else if (msg instanceof Heartbeat)
+                {
+                    if (!((Heartbeat) msg).isPong()) sendMessage(((Heartbeat) msg).pong());
+                }
+                else if (msg instanceof Session)
+                {
+                    sessionToken = ((Session) msg).getToken();
+                    if (sessionToken == null) //expired, join again as a new user
+                    {
+                        lastSequences.clear();
+                        write(new ChatMessage(getUsername(), ""));
+                    }
+                }
+                else if (msg instanceof PresenceSnapshot)
+                {
+                    presenceVersion = ((PresenceSnapshot) msg).getVersion();
+                    app.updateUsernameList(((PresenceSnapshot) msg).getUsernames());
                 }
-                else if (msg instanceof ArrayList<?>)
+                else if (msg instanceof PresenceDelta)
+                {
+                    applyPresenceDelta((PresenceDelta) msg);
+                }
+                else if (msg instanceof ArrayList<?>) //the whole list, part of the codec though the server sends framed clients snapshots and deltas
                 {
                     app.updateUsernameList((ArrayList<String>)msg);
                 }
             }
         }
 
-        private void closeSocketAndResetFrame()
+        /**
+         * Pings a server that has been silent for a while. Closes the socket of one that has not
+         * answered for too long, the reader then fails and reconnects as for any dropped connection.
+         */
+        private void checkHeartbeat()
         {
-            try
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceivedNanos);
+            if (idle >= SERVER_TIMEOUT_MILLIS)
             {
-                socket.close();
-                app.appendMessage("Disconnected from server...");
-                app.toggleConnected();
-            } catch (IOException e) //In case of socket close failure (i.e. if socket is already closed)
+                try
+                {
+                    socket.close();
+                } catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            else if (idle >= PING_MILLIS)
             {
-                e.printStackTrace();
+                sendMessage(Heartbeat.ping());
+            }
+        }
+
+        /**
+         * Applies a single join/leave to the username list, in version order. Deltas already
+         * included in the last snapshot are skipped, a gap means one was lost and a new
+         * snapshot is requested.
+         *
+         * @param delta the change to apply
+         */
+        private void applyPresenceDelta(PresenceDelta delta)
+        {
+            if (presenceVersion < 0 || delta.getVersion() <= presenceVersion) return; //snapshot on its way or already applied
+            if (delta.getVersion() != presenceVersion + 1)
+            {
+                presenceVersion = -1; //ignore deltas until the new snapshot arrives
+                sendMessage(new PresenceSnapshot(-1, null));
+                return;
             }
+
+            presenceVersion = delta.getVersion();
+            if (delta.isJoined()) app.addUsername(delta.getUsername());
+            else app.removeUsername(delta.getUsername());
+        }
+
+        private void resetFrame()
+        {
+            sessionToken = null;
+            lastSequences.clear();
+            app.appendMessage("Disconnected from server...");
+            app.toggleConnected();
         }
     }
 }
@@ -0,0 +1,292 @@
+package com.giotis_kal.gchatclient;
+
+import gchatdata.ChatMessage;
+import gchatdata.LatencyHistogram;
+import gchatdata.TlsContexts;
+import gchatdata.WriteCoalescing;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+
+/**
+ * A headless load generator: simulated users, each a GChatClient of its own, post to the
+ * public room at a steady rate while the end-to-end latency of every broadcast is measured.
+ *
+ *      java com.giotis_kal.gchatclient.LoadGenerator [--host localhost] [--port 54321] [--clients 100]
+ *              [--rate messagesPerSecond] [--size bytes] [--warmup seconds] [--duration seconds]
+ *              [--coalesce windowMicros:maxBytes] [--tls truststore.p12]
+ *
+ * --rate is per client (default 1), so the server receives clients times rate messages per second and
+ * delivers that many times the number of clients, as every message goes to everyone. It must stay within
+ * the server's own rate limit (--rate on the server, 10 per client by default) or messages are dropped.
+ *
+ * A message carries the time it was meant to be sent at, and its latency is measured from then until
+ * each client, the sender included, has read it. A sender falling behind its schedule (a blocked socket,
+ * withheld credit) thus shows as latency too, instead of quietly sending fewer messages; there is no
+ * coordinated omission. Every client runs in this JVM, so their clocks agree.
+ *
+ * With --tls the store's password is read from -Dgchat.tls.password, as for the client (default "changeit").
+ *
+ * Messages sent while warming up are not measured. Once done, the latency percentiles and the
+ * send and delivery throughputs are printed.
+ */
+public class LoadGenerator
+{
+    private static final String MARKER = "load@"; //followed by the intended send time, tells measured messages apart
+    private static final long DRAIN_MILLIS = 2000; //for the last messages to arrive before reporting
+    private static final long JOIN_TIMEOUT_SECONDS = 60;
+
+    private final String host;
+    private final int port;
+    private final int clientCount;
+    private final double ratePerSecond;
+    private final int size;
+    private final WriteCoalescing coalescing;
+    private final SSLContext tls;
+
+    private final List<GChatClient> clients = new ArrayList<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private volatile long measureFromNanos = Long.MAX_VALUE; //messages meant to be sent in [from, until) are measured
+    private volatile long measureUntilNanos = Long.MAX_VALUE;
+
+    /**
+     * @param ratePerSecond the messages each client sends per second
+     * @param size the length of every message's text, at least enough for its send time
+     * @param tls the context trusting the server's certificate, null for a plain connection
+     */
+    public LoadGenerator(String host, int port, int clientCount, double ratePerSecond, int size,
+                         WriteCoalescing coalescing, SSLContext tls)
+    {
+        this.host = host;
+        this.port = port;
+        this.clientCount = clientCount;
+        this.ratePerSecond = ratePerSecond;
+        this.size = size;
+        this.coalescing = coalescing;
+        this.tls = tls;
+    }
+
+    /**
+     * Connects the clients, sends for the warm-up and then the measured period, and disconnects
+     *
+     * @throws IOException if a client cannot connect or join
+     */
+    public void run(long warmupSeconds, long durationSeconds) throws IOException, InterruptedException
+    {
+        CountDownLatch joined = new CountDownLatch(clientCount);
+        CountDownLatch disconnected = new CountDownLatch(clientCount);
+        for (int i = 0; i < clientCount; i++)
+        {
+            GChatClient client = new GChatClient(host, port, new LoadListener(joined, disconnected));
+            client.setUsername("load" + i);
+            client.setWriteCoalescing(coalescing);
+            if (tls != null) client.setTls(tls);
+            client.connect();
+            clients.add(client);
+        }
+        if (!joined.await(JOIN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            throw new IOException((clientCount - joined.getCount()) + " of " + clientCount + " clients joined in time");
+        System.out.println(clientCount + " clients connected");
+
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "load-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long start = System.nanoTime();
+        measureUntilNanos = start + TimeUnit.SECONDS.toNanos(warmupSeconds + durationSeconds);
+        measureFromNanos = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        for (GChatClient client : clients)
+        {
+            long offset = ThreadLocalRandom.current().nextLong(periodNanos); //spread the clients over the period
+            senders.scheduleAtFixedRate(new Sender(client, start + offset, periodNanos), offset, periodNanos, TimeUnit.NANOSECONDS);
+        }
+        TimeUnit.NANOSECONDS.sleep(measureUntilNanos - System.nanoTime());
+        senders.shutdownNow();
+        senders.awaitTermination(JOIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Thread.sleep(DRAIN_MILLIS);
+
+        report(durationSeconds);
+        for (GChatClient client : clients) client.shutdownSocketIO();
+        disconnected.await(JOIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void report(long durationSeconds)
+    {
+        long sentCount = sent.sum(), deliveredCount = delivered.sum();
+        long expected = sentCount * clientCount;
+        System.out.printf("%d clients, %.1f messages/s each, %d characters, %ds measured%n",
+                clientCount, ratePerSecond, size, durationSeconds);
+        System.out.printf("Sent %d messages (%.1f/s), delivered %d of %d (%.1f/s, %.2f%% lost)%n",
+                sentCount, (double) sentCount / durationSeconds, deliveredCount, expected,
+                (double) deliveredCount / durationSeconds, expected == 0 ? 0 : 100.0 * (expected - deliveredCount) / expected);
+        System.out.println("Latency: " + latencies);
+    }
+
+    /**
+     * Sends one client's messages, each one stamped with the time it is due at rather than the
+     * time it actually goes out
+     */
+    private class Sender implements Runnable
+    {
+        private final GChatClient client;
+        private final long periodNanos;
+        private long dueNanos;
+
+        Sender(GChatClient client, long firstDueNanos, long periodNanos)
+        {
+            this.client = client;
+            this.dueNanos = firstDueNanos;
+            this.periodNanos = periodNanos;
+        }
+
+        @Override
+        public void run()
+        {
+            long due = dueNanos;
+            dueNanos += periodNanos;
+            if (due >= measureUntilNanos) return;
+
+            StringBuilder text = new StringBuilder(Math.max(size, 32)).append(MARKER).append(due).append(' ');
+            while (text.length() < size) text.append('x');
+            client.sendMessage(new ChatMessage(client.getUsername(), text.toString()));
+            if (due >= measureFromNanos) sent.increment();
+        }
+    }
+
+    /**
+     * Measures the messages one client reads, and reports when it has joined or is disconnected
+     */
+    private class LoadListener implements ClientListener
+    {
+        private final CountDownLatch joined;
+        private final CountDownLatch disconnected;
+        private boolean hasJoined; //only ever accessed by the client's reader thread
+
+        LoadListener(CountDownLatch joined, CountDownLatch disconnected)
+        {
+            this.joined = joined;
+            this.disconnected = disconnected;
+        }
+
+        @Override
+        public void appendMessage(String msg)
+        {
+            //status lines are of no interest
+        }
+
+        @Override
+        public void messageReceived(ChatMessage msg)
+        {
+            long now = System.nanoTime();
+            String text = msg.getMessage();
+            if (!text.startsWith(MARKER)) return;
+
+            long due = Long.parseLong(text.substring(MARKER.length(), text.indexOf(' ', MARKER.length())));
+            if (due < measureFromNanos || due >= measureUntilNanos) return; //warming up, or replayed history
+            latencies.record(now - due);
+            delivered.increment();
+        }
+
+        @Override
+        public void updateUsernameList(ArrayList<String> usernames)
+        {
+            if (!hasJoined) //the snapshot follows joining
+            {
+                hasJoined = true;
+                joined.countDown();
+            }
+        }
+
+        @Override
+        public void toggleConnected()
+        {
+            disconnected.countDown();
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        String host = "localhost";
+        int port = 54321;
+        int clientCount = 100;
+        double rate = 1;
+        int size = 64;
+        long warmup = 10, duration = 30;
+        WriteCoalescing coalescing = WriteCoalescing.IMMEDIATE;
+        String trustStore = null;
+
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--clients":
+                        clientCount = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(args[++i]);
+                        break;
+                    case "--warmup":
+                        warmup = Long.parseLong(args[++i]);
+                        break;
+                    case "--duration":
+                        duration = Long.parseLong(args[++i]);
+                        break;
+                    case "--coalesce":
+                        coalescing = WriteCoalescing.parse(args[++i]);
+                        break;
+                    case "--tls":
+                        trustStore = args[++i];
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                }
+            }
+            if (clientCount < 1 || rate <= 0 || duration < 1) throw new IllegalArgumentException("Nothing to measure");
+        } catch (RuntimeException e) //bad number or missing value
+        {
+            System.err.println("Usage: LoadGenerator [--host name] [--port number] [--clients number] [--rate messagesPerSecond]"
+                    + " [--size bytes] [--warmup seconds] [--duration seconds] [--coalesce windowMicros:maxBytes]"
+                    + " [--tls truststore.p12]");
+            System.exit(1);
+        }
+
+        try
+        {
+            SSLContext tls = null;
+            if (trustStore != null)
+                tls = TlsContexts.fromKeyStore(Paths.get(trustStore), System.getProperty("gchat.tls.password", "changeit").toCharArray());
+            new LoadGenerator(host, port, clientCount, rate, size, coalescing, tls).run(warmup, duration);
+        } catch (IOException e)
+        {
+            System.err.println("Load test failed: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        System.exit(0); //client reader threads may still be winding down
+    }
+}
@@ -0,0 +1,103 @@
+package com.giotis_kal.gchatclient;
+
+import gchatdata.ChatMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javafx.collections.ObservableListBase;
+
+/**
+ * The messages shown in the client's window: an ObservableList over a fixed circular array,
+ * so the window only ever holds the most recent messages however long the client runs.
+ *
+ * Appending a batch is a single change for the ListView showing it, with the oldest messages
+ * removed from the front as new ones are added at the back, and costs no copying. Only the
+ * visible rows are ever turned into text, by the ListView's cells.
+ *
+ * Like any list backing a control it must only be touched on the JavaFX Application Thread.
+ */
+final class MessageRing extends ObservableListBase<ChatMessage>
+{
+    private final ChatMessage[] ring;
+    private int head; //index in ring of the oldest message
+    private int size;
+
+    /**
+     * @param capacity the most messages kept, older ones are dropped
+     */
+    MessageRing(int capacity)
+    {
+        this.ring = new ChatMessage[capacity];
+    }
+
+    @Override
+    public ChatMessage get(int index)
+    {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        return ring[(head + index) % ring.length];
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Adds messages at the end, dropping as many of the oldest ones as needed to stay within capacity
+     *
+     * @param messages the messages, oldest first
+     */
+    void append(List<ChatMessage> messages)
+    {
+        if (messages.isEmpty()) return;
+        int from = Math.max(0, messages.size() - ring.length); //of a batch larger than the ring only the last ones are kept
+        int added = messages.size() - from;
+        int evicted = Math.max(0, size + added - ring.length);
+
+        beginChange();
+        try
+        {
+            if (evicted > 0)
+            {
+                List<ChatMessage> removed = new ArrayList<>(evicted);
+                for (int i = 0; i < evicted; i++)
+                {
+                    removed.add(ring[head]);
+                    ring[head] = null;
+                    head = (head + 1) % ring.length;
+                }
+                size -= evicted;
+                nextRemove(0, removed);
+            }
+
+            int start = size;
+            for (int i = from; i < messages.size(); i++)
+            {
+                ring[(head + size) % ring.length] = messages.get(i);
+                size++;
+            }
+            nextAdd(start, size);
+        } finally
+        {
+            endChange();
+        }
+    }
+
+    /**
+     * Removes every message
+     */
+    @Override
+    public void clear()
+    {
+        if (size == 0) return;
+        List<ChatMessage> removed = new ArrayList<>(this);
+        Arrays.fill(ring, null);
+        head = 0;
+        size = 0;
+
+        beginChange();
+        nextRemove(0, removed);
+        endChange();
+    }
+}
@@ -0,0 +1,132 @@
+package com.giotis_kal.gchatserver;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server side of a single client connection, regardless of the engine serving it.
+ * GChatServer only ever talks to its clients through this class.
+ */
+abstract class ClientConnection
+{
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private final long id = NEXT_ID.incrementAndGet(); //unique for the lifetime of the server process
+    private volatile String username; //cached name of the user connected
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet(); //names of the rooms joined, see RoomDirectory
+    private volatile ClientSession session; //null for legacy clients, which cannot resume
+
+    //Stamped by the engine serving the connection, checked by the IdleReaper
+    private volatile long lastReadNanos = System.nanoTime(); //when anything was last read
+    private volatile long writePendingSince; //when the write in progress last made progress, 0 if none is
+
+    private FlowControl flowControl; //set when the connection is registered
+
+    long getId()
+    {
+        return id;
+    }
+
+    String getUsername()
+    {
+        return username;
+    }
+
+    void setUsername(String username)
+    {
+        this.username = username;
+    }
+
+    Set<String> getRooms()
+    {
+        return rooms;
+    }
+
+    ClientSession getSession()
+    {
+        return session;
+    }
+
+    void setSession(ClientSession session)
+    {
+        this.session = session;
+    }
+
+    FlowControl getFlowControl()
+    {
+        return flowControl;
+    }
+
+    void setFlowControl(FlowControl flowControl)
+    {
+        this.flowControl = flowControl;
+    }
+
+    long getLastReadNanos()
+    {
+        return lastReadNanos;
+    }
+
+    /**
+     * Records that bytes were just read from the client
+     */
+    void readProgress()
+    {
+        lastReadNanos = System.nanoTime();
+    }
+
+    long getWritePendingSince()
+    {
+        return writePendingSince;
+    }
+
+    /**
+     * Records that a write to the client made progress
+     *
+     * @param pending whether more is left to write, waiting for the client to read
+     */
+    void writeProgress(boolean pending)
+    {
+        writePendingSince = pending ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @return whether the client speaks the framed protocol, and so understands PresenceDeltas
+     *         and HistoryBatches. Legacy clients need the whole username list on every change
+     *         and get history as plain ChatMessages.
+     */
+    boolean isFramed()
+    {
+        return true;
+    }
+
+    /**
+     * Queues a message (ChatMessage, Poison or username list) for the client's writer.
+     * Implementations must be safe to call from any thread and must never block on the socket.
+     *
+     * @param msg the message to be sent, possibly already encoded for other clients
+     * @return false if the client's outbound queue is full and it should be disconnected
+     * @throws IOException in case the message cannot be encoded
+     * @see OutboundQueue
+     */
+    abstract boolean send(OutboundMessage msg) throws IOException;
+
+    /**
+     * Forcibly drops the connection. The engine serving it notices and
+     * cleans up as for any other disconnect.
+     */
+    abstract void disconnect();
+
+    /**
+     * @return the number of messages waiting to be written to the client
+     */
+    abstract int getQueueDepth();
+
+    /**
+     * @return the address of the client, used for logging
+     */
+    abstract SocketAddress getRemoteAddress();
+}
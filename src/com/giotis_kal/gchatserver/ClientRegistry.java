@@ -0,0 +1,112 @@
+package com.giotis_kal.gchatserver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The set of connected clients, keyed by connection id.
+ *
+ * Backed by a ConcurrentHashMap: adding and removing a client are O(1) and never wait
+ * for a broadcast, and broadcasts iterate without taking any lock. Iteration is weakly
+ * consistent, i.e. a client joining during a broadcast may or may not receive it.
+ *
+ * Clients whose user has joined are also indexed by username, for direct messages. A name
+ * is bound once, when its user joins, and stays taken until the user leaves for good, which
+ * may be after a detached session ran out: no one else can join under it meanwhile.
+ */
+final class ClientRegistry implements Iterable<ClientConnection>
+{
+    private final ConcurrentHashMap<Long, ClientConnection> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ClientConnection> byUsername = new ConcurrentHashMap<>();
+    private final Set<String> taken = ConcurrentHashMap.newKeySet(); //names of the users online, connected or not
+
+    void add(ClientConnection client)
+    {
+        clients.put(client.getId(), client);
+    }
+
+    /**
+     * @return true if the client was registered, false if someone else removed it already
+     */
+    boolean remove(ClientConnection client)
+    {
+        boolean removed = clients.remove(client.getId(), client);
+        String username = client.getUsername(); //read after, so that a concurrent setUsername() either sees the removal or is undone here
+        if (username != null) byUsername.remove(username, client); //unless someone else took the name since
+        return removed;
+    }
+
+    /**
+     * Binds a name to the client of a user joining, unless another user has it
+     *
+     * @return false if the name is null or taken, in which case the client is left as it was
+     */
+    boolean claimUsername(ClientConnection client, String username)
+    {
+        if (username == null || !taken.add(username)) return false;
+        setUsername(client, username);
+        return true;
+    }
+
+    /**
+     * Sets the username of a registered client and indexes it, once its user joined or resumed
+     * a session and so holds the name. Nothing is indexed for a client that was removed meanwhile.
+     */
+    void setUsername(ClientConnection client, String username)
+    {
+        client.setUsername(username);
+        if (username == null) return;
+        byUsername.put(username, client);
+        if (!contains(client)) byUsername.remove(username, client); //removed while being indexed
+    }
+
+    /**
+     * Frees the name of a user who left for good, for anyone to join under
+     */
+    void releaseUsername(String username)
+    {
+        if (username != null) taken.remove(username);
+    }
+
+    /**
+     * @return the client of the user with the given name, null if no such user is connected
+     */
+    ClientConnection get(String username)
+    {
+        return username == null ? null : byUsername.get(username);
+    }
+
+    boolean contains(ClientConnection client)
+    {
+        return clients.get(client.getId()) == client;
+    }
+
+    int size()
+    {
+        return clients.size();
+    }
+
+    /**
+     * Unregisters every client
+     *
+     * @return the clients that were registered
+     */
+    List<ClientConnection> removeAll()
+    {
+        List<ClientConnection> removed = new ArrayList<>(clients.size());
+        for (ClientConnection client : this)
+            if (remove(client)) removed.add(client);
+        byUsername.clear();
+        taken.clear();
+        return removed;
+    }
+
+    @Override
+    public Iterator<ClientConnection> iterator()
+    {
+        return clients.values().iterator();
+    }
+}
@@ -0,0 +1,100 @@
+package com.giotis_kal.gchatserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Supplier;
+
+/**
+ * A user's session, which outlives the connection it was started on.
+ *
+ * When the connection drops the session is detached and kept for a while, the user
+ * staying online meanwhile. A client reconnecting with the session's token takes it
+ * over and is only sent the messages it missed.
+ *
+ * @see SessionStore
+ */
+final class ClientSession
+{
+    private final String token;
+    private final String username;
+    private final Map<String, Long> rooms = new ConcurrentHashMap<>(); //room name to the history sequence when it was joined
+
+    //guarded by this
+    private ClientConnection connection; //null while detached
+    private ScheduledFuture<?> expiry; //set while detached
+    private boolean ended;
+
+    ClientSession(String token, String username, ClientConnection connection)
+    {
+        this.token = token;
+        this.username = username;
+        this.connection = connection;
+    }
+
+    String getToken()
+    {
+        return token;
+    }
+
+    String getUsername()
+    {
+        return username;
+    }
+
+    /**
+     * @return the rooms the user is in, mapped to the last history sequence before they joined each one
+     */
+    Map<String, Long> getRooms()
+    {
+        return rooms;
+    }
+
+    /**
+     * Moves the session over to a new connection, disconnecting the previous one if
+     * the server had not noticed yet that it was gone
+     *
+     * @return false if the session has already ended
+     */
+    boolean attach(ClientConnection connection)
+    {
+        ClientConnection previous;
+        synchronized (this)
+        {
+            if (ended) return false;
+            if (expiry != null) expiry.cancel(false);
+            expiry = null;
+            previous = this.connection;
+            this.connection = connection;
+        }
+        if (previous != null) previous.disconnect(); //its clientDisconnected() finds the session taken over
+        return true;
+    }
+
+    /**
+     * Detaches the session from a connection that went away
+     *
+     * @param expiry schedules the session's expiry, only called if the session is detached
+     * @return false if the session has ended, true if it is kept or another connection has taken it over
+     */
+    synchronized boolean detach(ClientConnection connection, Supplier<ScheduledFuture<?>> expiry)
+    {
+        if (ended) return false;
+        if (this.connection != connection) return true; //taken over
+
+        this.connection = null;
+        this.expiry = expiry.get();
+        return true;
+    }
+
+    /**
+     * @return false if the session had already ended
+     */
+    synchronized boolean end()
+    {
+        if (ended) return false;
+        ended = true;
+        if (expiry != null) expiry.cancel(false);
+        return true;
+    }
+}
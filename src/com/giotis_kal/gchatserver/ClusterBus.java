@@ -0,0 +1,66 @@
+package com.giotis_kal.gchatserver;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Link between the nodes of a GChat cluster.
+ *
+ * Every node publishes what happens to its own clients, the messages they post and the
+ * users joining and leaving, and fans the events of its peers out to its own clients.
+ * Implementations must deliver the events of a node in the order they were published.
+ *
+ * @see LoopbackBus
+ * @see TcpClusterBus
+ */
+public interface ClusterBus
+{
+    /**
+     * @return the id of this node, unique within the cluster
+     */
+    String nodeId();
+
+    /**
+     * Connects to the other nodes. Events received from them go to the handler.
+     *
+     * @param handler the node's side of the bus
+     * @throws IOException in case the bus cannot be set up
+     */
+    void start(Handler handler) throws IOException;
+
+    /**
+     * Sends an event to every peer currently reachable. Must not block for long.
+     *
+     * @param event the event to send
+     */
+    void publish(ClusterEvent event);
+
+    /**
+     * Disconnects from the other nodes
+     */
+    void close();
+
+    /**
+     * What a node does with the events of its peers
+     */
+    interface Handler
+    {
+        /**
+         * Called whenever a peer becomes reachable, so that the node can send it its whole state.
+         * What is sent through peer and what is published reach the peer in the order they were
+         * sent, and a USERS event replaces whatever the peer knew of the node's users.
+         *
+         * @param peer sends an event to the new peer only, must not block for long either
+         */
+        void peerConnected(Consumer<ClusterEvent> peer);
+
+        void eventReceived(ClusterEvent event);
+
+        /**
+         * Called when a peer is no longer reachable, its users are gone
+         *
+         * @param node the id of the peer
+         */
+        void peerDisconnected(String node);
+    }
+}
@@ -0,0 +1,170 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.ChatMessage;
+import gchatdata.DirectMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Something that happened on one cluster node, sent to all the others over a ClusterBus.
+ *
+ * Nodes only ever publish what happened to their own clients and never forward what they
+ * receive, so every event reaches every peer exactly once over a full mesh.
+ *
+ * Encoded as [kind][node id][username][message][room][count][username]..., strings as
+ * a 4 byte length (-1 for null) followed by their UTF-8 bytes.
+ */
+public final class ClusterEvent
+{
+    public enum Kind
+    {
+        CHAT,        //a message posted by a client of the node
+        USER_JOINED, //a user joined the node
+        USER_LEFT,   //a user left the node
+        USERS,       //all users of the node, sent whenever a link to a peer is (re)established
+        DIRECT       //a direct message from a client of the node, to a user not connected to it
+    }
+
+    private final Kind kind;
+    private final String node;
+    private final String username;
+    private final String message;
+    private final String room;
+    private final List<String> usernames;
+
+    private ClusterEvent(Kind kind, String node, String username, String message, String room, List<String> usernames)
+    {
+        this.kind = kind;
+        this.node = node;
+        this.username = username;
+        this.message = message;
+        this.room = room;
+        this.usernames = usernames;
+    }
+
+    static ClusterEvent chat(String node, ChatMessage msg)
+    {
+        return new ClusterEvent(Kind.CHAT, node, msg.getUsername(), msg.getMessage(), msg.getRoom(), Collections.emptyList());
+    }
+
+    /**
+     * @return a DIRECT event, its usernames being the recipient alone
+     */
+    static ClusterEvent direct(String node, DirectMessage msg)
+    {
+        return new ClusterEvent(Kind.DIRECT, node, msg.getSender(), msg.getMessage(), null,
+                Collections.singletonList(msg.getRecipient()));
+    }
+
+    static ClusterEvent presence(String node, String username, boolean joined)
+    {
+        return new ClusterEvent(joined ? Kind.USER_JOINED : Kind.USER_LEFT, node, username, null, null, Collections.emptyList());
+    }
+
+    static ClusterEvent users(String node, List<String> usernames)
+    {
+        return new ClusterEvent(Kind.USERS, node, null, null, null, usernames);
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * @return the id of the node the event happened on
+     */
+    public String getNode()
+    {
+        return node;
+    }
+
+    String getUsername()
+    {
+        return username;
+    }
+
+    List<String> getUsernames()
+    {
+        return usernames;
+    }
+
+    /**
+     * @return a new ChatMessage for a CHAT event, every receiving node numbers its own copy
+     */
+    ChatMessage toChatMessage()
+    {
+        return new ChatMessage(username, message, room);
+    }
+
+    /**
+     * @return the DirectMessage of a DIRECT event
+     */
+    DirectMessage toDirectMessage()
+    {
+        return new DirectMessage(username, usernames.get(0), message);
+    }
+
+    byte[] encode() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(kind.ordinal());
+        writeString(out, node);
+        writeString(out, username);
+        writeString(out, message);
+        writeString(out, room);
+        out.writeInt(usernames.size());
+        for (String user : usernames) writeString(out, user);
+        return bytes.toByteArray();
+    }
+
+    static ClusterEvent decode(byte[] buf) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf));
+        int kind = in.readUnsignedByte();
+        if (kind >= Kind.values().length) throw new StreamCorruptedException("Unknown cluster event: " + kind);
+
+        String node = readString(in);
+        String username = readString(in);
+        String message = readString(in);
+        String room = readString(in);
+        int count = in.readInt();
+        if (count < 0 || count > buf.length / 4) throw new StreamCorruptedException("Invalid list size: " + count);
+
+        List<String> usernames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) usernames.add(readString(in));
+        return new ClusterEvent(Kind.values()[kind], node, username, message, room, usernames);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length == -1) return null;
+        if (length < 0 || length > in.available()) throw new StreamCorruptedException("Invalid string length: " + length);
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,214 @@
+package com.giotis_kal.gchatserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, batched logging pipeline keeping log output off the message hot path.
+ *
+ * Any thread may log() an event: it claims a slot in a fixed-size ring buffer with a single
+ * CAS and returns, never blocking and never formatting anything. A single daemon thread
+ * drains the ring every few milliseconds, turns the events into strings (so a ChatMessage's
+ * toString() only ever runs here) and hands them in one batch to every LogSink. An event
+ * whose toString() throws is logged as a placeholder.
+ *
+ * When the ring is full events are dropped rather than slowing the server down, the number
+ * of lines dropped is reported in the next batch.
+ *
+ * Being a daemon, the drain thread would not keep a JVM that is exiting alive: close() waits
+ * for it to write out what was logged and close the sinks.
+ */
+final class EventLog implements Runnable
+{
+    private static final int MAX_BATCH = 512;
+
+    //the ring buffer, slot i holds the event with sequence s where (s & mask) == i
+    private final Object[] ring;
+    private final AtomicLongArray published; //s + 1 once the event with sequence s is in its slot
+    private final int mask;
+
+    private final AtomicLong claimed = new AtomicLong(); //next sequence to be claimed by a producer
+    private volatile long consumed; //next sequence to be drained, written by the drain thread only
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final List<LogSink> sinks = new CopyOnWriteArrayList<>();
+    private final long drainIntervalNanos;
+    private Thread thread; //null until started
+    private volatile boolean closing;
+    private volatile long closeAt = Long.MAX_VALUE; //when the drain thread stops even if events keep coming
+
+    /**
+     * @param capacity the ring's size, rounded up to a power of two
+     * @param drainIntervalMillis how long the drain thread sleeps when the ring is empty
+     */
+    EventLog(int capacity, long drainIntervalMillis)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new Object[size];
+        this.published = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.drainIntervalNanos = TimeUnit.MILLISECONDS.toNanos(drainIntervalMillis);
+    }
+
+    synchronized void start()
+    {
+        thread = new Thread(this, "gchat-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void addSink(LogSink sink)
+    {
+        sinks.add(sink);
+    }
+
+    /**
+     * Queues an event, formatted with String.valueOf() on the drain thread
+     *
+     * @param event the event to be logged, must not be modified afterwards
+     * @return false if the ring was full and the event was dropped
+     */
+    boolean log(Object event)
+    {
+        long sequence;
+        do
+        {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length)
+            {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        ring[slot] = event;
+        published.lazySet(slot, sequence + 1); //orders the write to ring[slot] before the publication
+        return true;
+    }
+
+    /**
+     * Stops the drain thread once it has written out every event logged so far, and closes the
+     * sinks. Waits for it to do so for up to the given time, after which the drain thread stops
+     * even if events keep coming. Events logged afterwards are dropped.
+     *
+     * @param lingerMillis how long to wait, 0 not to wait at all
+     */
+    void close(long lingerMillis)
+    {
+        Thread drainer;
+        synchronized (this)
+        {
+            drainer = thread;
+            closeAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            closing = true;
+        }
+        if (drainer == null) //never started, nothing to drain
+        {
+            closeSinks();
+            return;
+        }
+
+        LockSupport.unpark(drainer);
+        if (lingerMillis <= 0 || Thread.currentThread() == drainer) return;
+        try
+        {
+            drainer.join(lingerMillis);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            boolean closed = closing; //read before draining, so that this batch has all that was logged before close()
+            List<String> batch = drain();
+            boolean full = batch.size() == MAX_BATCH;
+
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) batch.add(lost + " log lines dropped, log ring full");
+
+            if (!batch.isEmpty()) write(batch);
+            if (System.nanoTime() >= closeAt) break;
+            if (full) continue; //more waiting, no need to sleep
+
+            if (batch.isEmpty() && closed) break;
+            LockSupport.parkNanos(this, drainIntervalNanos);
+        }
+        closeSinks();
+    }
+
+    private void closeSinks()
+    {
+        for (LogSink sink : sinks)
+        {
+            try
+            {
+                sink.close();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return up to MAX_BATCH events, in order, formatted
+     */
+    private List<String> drain()
+    {
+        List<String> batch = new ArrayList<>();
+        long sequence = consumed;
+        while (batch.size() < MAX_BATCH)
+        {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence + 1) break; //not claimed or not published yet
+
+            Object event = ring[slot];
+            ring[slot] = null;
+            batch.add(format(event));
+            sequence++;
+        }
+        consumed = sequence; //frees the slots for producers
+        return batch;
+    }
+
+    /**
+     * @return the event as a string, or a placeholder naming it if its toString() fails, which
+     *         must not take the drain thread and every line logged after it down
+     */
+    private static String format(Object event)
+    {
+        try
+        {
+            return String.valueOf(event);
+        } catch (RuntimeException e)
+        {
+            return "<unprintable " + event.getClass().getName() + ": " + e + ">";
+        }
+    }
+
+    private void write(List<String> batch)
+    {
+        for (LogSink sink : sinks)
+        {
+            try
+            {
+                sink.write(batch);
+            } catch (IOException | RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.giotis_kal.gchatserver;
+
+/**
+ * Flow control of the messages one client sends: a token bucket rate limit, and for framed
+ * clients a window of send credit (see gchatdata.Credit).
+ *
+ * The bucket allows bursts of up to burst messages and ratePerSecond on average. Tokens are
+ * refilled lazily, from the time elapsed since the bucket was last used, so an idle client
+ * costs nothing. A message that finds the bucket empty is dropped.
+ *
+ * Credit is granted out of the bucket: its tokens are taken when it is granted, so a chat
+ * message sent on credit is never dropped, whatever room commands or direct messages the client
+ * sends meanwhile, which take tokens of their own. It is topped up once half the window has been
+ * used, unless the server is congested or the bucket is low; the top-up is then withheld until
+ * release() succeeds. Used by the connection's reader and by the server's timer thread.
+ */
+final class FlowControl
+{
+    private final double capacity;
+    private final double tokensPerNano;
+    private final int window; //0 for clients that know nothing about credit
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private int refusals; //messages dropped in a row
+
+    private int outstanding; //credit granted and not used yet, its tokens already taken
+    private boolean withheld; //a top-up is due but could not be granted
+
+    /**
+     * @param ratePerSecond the messages allowed per second, on average
+     * @param burst the most messages allowed at once; the bucket starts out full
+     * @param window the most credit a client may hold, 0 to use no credit
+     */
+    FlowControl(double ratePerSecond, int burst, int window)
+    {
+        this.capacity = burst;
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.tokens = burst;
+        this.window = window;
+    }
+
+    /**
+     * Takes a credit, or else a token, for a message just received
+     *
+     * @param credit whether the message may use up a credit, i.e. it is a ChatMessage
+     * @return false if the rate limit is exceeded and the message should be dropped
+     */
+    synchronized boolean tryAcquire(boolean credit)
+    {
+        if (credit && outstanding > 0)
+        {
+            outstanding--; //its token was taken with the grant
+            refusals = 0;
+            return true;
+        }
+
+        refill();
+        if (tokens < 1)
+        {
+            refusals++;
+            return false;
+        }
+        tokens--;
+        refusals = 0;
+        return true;
+    }
+
+    /**
+     * @return the number of messages dropped since the last one allowed
+     */
+    synchronized int getRefusals()
+    {
+        return refusals;
+    }
+
+    /**
+     * Tops the credit up once half of it has been used
+     *
+     * @param congested whether the server's outbound queues are backing up
+     * @return the credit to grant now, 0 if none is due or it has been withheld
+     */
+    synchronized int replenish(boolean congested)
+    {
+        if (window == 0 || outstanding > window / 2) return 0;
+        if (congested)
+        {
+            withheld = true;
+            return 0;
+        }
+
+        refill();
+        int grant = Math.max(0, Math.min(window - outstanding, (int) tokens)); //never more than the bucket allows
+        tokens -= grant;
+        outstanding += grant;
+        withheld = outstanding <= window / 2;
+        return grant;
+    }
+
+    /**
+     * Called once the server is no longer congested
+     *
+     * @return the credit withheld meanwhile that can now be granted, 0 if none
+     */
+    synchronized int release()
+    {
+        return withheld ? replenish(false) : 0;
+    }
+
+    /**
+     * @return whether a top-up is waiting for release()
+     */
+    synchronized boolean isWithheld()
+    {
+        return withheld;
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity - outstanding, tokens + (now - refilledAt) * tokensPerNano); //credit counts towards the burst
+        refilledAt = now;
+    }
+}
@@ -1,135 +1,1291 @@
 package com.giotis_kal.gchatserver;
 
 import gchatdata.ChatMessage;
+import gchatdata.Credit;
+import gchatdata.DirectMessage;
+import gchatdata.FrameIO;
+import gchatdata.Heartbeat;
+import gchatdata.HistoryBatch;
 import gchatdata.Poison;
+import gchatdata.PresenceDelta;
+import gchatdata.PresenceSnapshot;
+import gchatdata.RoomCommand;
+import gchatdata.Session;
+import gchatdata.WriteCoalescing;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 
 /**
  * The implementation of a multithreaded TCP Chat Server, able to handle
- * multiple clients, in a virtual public chat room.
+ * multiple clients, in a virtual public chat room and any number of named rooms.
+ *
+ * Connections are served by the ServerEngine chosen at construction time,
+ * all engines share the same broadcast and username list logic found here.
+ *
+ * The server has no UI of its own: it reports to any number of ServerListeners,
+ * such as the Swing GChatServerFrame, and runs equally well headless.
  */
 public class GChatServer
 {
     //Handles multithreading
     private ExecutorService exec;
+    private ServerEngine engine;
+    private NioEngine nioEngine; //only set when running the NIO engine
 
     //Networking variables
     private ServerSocket serverSocket;
     private int portNumber;
+    private static final int ACCEPT_BACKLOG = 1024; //absorbs reconnect storms, the default of 50 drops SYNs
 
-    //maintain reference to JFrame
-    private GChatServerFrame frame;
+    //status updates go through the event log to the listeners, the username list is kept here
+    private final List<ServerListener> listeners = new CopyOnWriteArrayList<>();
+    private final PresenceStore presence = new PresenceStore();
+    private final EventLog eventLog = new EventLog(LOG_CAPACITY, LOG_DRAIN_MILLIS);
+    private static final int LOG_CAPACITY = 16 * 1024; //lines buffered before logging starts dropping
+    private static final long LOG_DRAIN_MILLIS = 20;
+    private static final long LOG_LINGER_MILLIS = 5000; //how long shutdown waits for the log to be written out
 
-    //internal list of clients
-    private List<ObjectOutputStream> clients;
-    private final Object clientsLock = new Object();
+    //internal registry of clients, and of the rooms they are in
+    private ClientRegistry clients;
+    private RoomDirectory rooms;
+
+    //Orders broadcasts so every client's queue receives messages in the same order, also guards
+    //presenceVersion. A j.u.c. lock rather than a monitor, so virtual threads never pin their carrier on it.
+    private final ReentrantLock broadcastLock; //a MeteredLock, see ServerMetrics
+    private long presenceVersion; //version of the last PresenceDelta broadcast
+
+    //Messages broadcast so far, replayed to clients entering a room and optionally persisted
+    private final MessageHistory history = new MessageHistory();
+    private static final int DEFAULT_HISTORY_REPLAY = 50;
+    private static final int MAX_BATCH_BYTES = FrameIO.MAX_FRAME_LENGTH / 2; //per HistoryBatch, leaves the codec room for its own overhead
+    private static final long SEGMENT_BYTES = 16 * 1024 * 1024;
+    private int historyReplay = DEFAULT_HISTORY_REPLAY;
+
+    //Other nodes of the cluster, null when running alone
+    private ClusterBus bus;
+
+    //Sessions outlive dropped connections for a while, so that clients can resume them
+    private static final long SESSION_GRACE_MILLIS = 60 * 1000;
+    private final SessionStore sessions = new SessionStore(SESSION_GRACE_MILLIS);
+
+    //Per-client outbound queues
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    private WriteCoalescing coalescing = WriteCoalescing.IMMEDIATE;
+
+    //Coarse timer for the IdleReaper and flow control
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_WHEEL_SIZE = 1024;
+    private final TimerWheel timers = new TimerWheel("gchat-timers", TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE);
+
+    //Evicts connections that went silent, see IdleReaper
+    private long pingMillis = IdleReaper.DEFAULT_PING_MILLIS;
+    private long readTimeoutMillis = IdleReaper.DEFAULT_READ_TIMEOUT_MILLIS;
+    private long writeTimeoutMillis = IdleReaper.DEFAULT_WRITE_TIMEOUT_MILLIS;
+    private IdleReaper reaper;
+
+    //Flow control of what clients send, see FlowControl. Credit is withheld while most outbound queues are backed up.
+    private static final double DEFAULT_RATE_PER_SECOND = 10;
+    private static final int DEFAULT_RATE_BURST = 20;
+    private static final int DEFAULT_CREDIT_WINDOW = 16;
+    private static final long BACKPRESSURE_SAMPLE_MILLIS = 250;
+    private double ratePerSecond = DEFAULT_RATE_PER_SECOND;
+    private int rateBurst = DEFAULT_RATE_BURST;
+    private int creditWindow = DEFAULT_CREDIT_WINDOW;
+    private volatile boolean congested;
+    private volatile boolean creditWithheld; //some client is waiting for release() of its credit
+
+    //TLS, see enableTls()
+    private static final int TLS_SESSION_CACHE_SIZE = 64 * 1024; //sessions kept for resumption
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+    static final long TLS_HANDSHAKE_TIMEOUT_MILLIS = 10 * 1000; //keeps clients that do not speak TLS from holding on to a connection
+    private SSLContext tls;
+    private final HandshakeMetrics handshakes = new HandshakeMetrics();
+
+    //Counters and latencies, registered with JMX while online and optionally served over HTTP
+    private static final long METRICS_SAMPLE_MILLIS = 1000;
+    private final ServerMetrics metrics;
+    private int metricsPort = -1; //no HTTP endpoint unless enableMetricsEndpoint() is called
+    private MetricsEndpoint metricsEndpoint;
+    private ObjectName metricsName;
+
+    //Shutdown drains connections: clients are told to leave and given some time to acknowledge, see shutdown(long)
+    public static final long DEFAULT_DRAIN_MILLIS = 5000;
+    private static final long DRAIN_POLL_MILLIS = 10;
+    private volatile boolean shuttingDown; //set before the server socket is closed, so accept() failing is expected
+    private volatile boolean draining;
 
     /**
-     * Public constructor of GChatServer
+     * Public constructor of a GChatServer without any UI attached. A UI, such as the
+     * GChatServerFrame, subscribes to status updates with addListener() once it is constructed.
      *
      * @param portNumber the port number to set up the server at
-     * @param frame an internal reference to the JFrame managing the server (used for status updates)
-     *              @See GChatServerFrame's printMsg() method.
+     * @param engine the I/O engine serving client connections
      */
-    public GChatServer(int portNumber, GChatServerFrame frame)
+    public GChatServer(int portNumber, ServerEngine engine)
     {
-        this.exec = Executors.newCachedThreadPool();
+        this.exec = engine == ServerEngine.VIRTUAL ? newVirtualThreadExecutor() : null;
+        if (exec == null) this.exec = Executors.newCachedThreadPool(); //also when virtual threads are not supported by this JVM
+        this.engine = engine;
         this.portNumber = portNumber;
-        this.frame = frame;
 
-        this.clients = new ArrayList<>(); //implemented as an arraylist
+        eventLog.addSink(msgs -> {
+            for (ServerListener listener : listeners) listener.printMsgs(msgs);
+        });
+
+        this.clients = new ClientRegistry(); //implemented as a concurrent map keyed by connection id
+        this.metrics = new ServerMetrics(clients, handshakes);
+        this.broadcastLock = new MeteredLock(metrics.getLockHolds());
+        this.rooms = new RoomDirectory(metrics.getLockHolds());
+    }
+
+    /**
+     * Subscribes a listener to status updates and username list changes.
+     * Listeners added after putOnline() only see what happens from then on.
+     *
+     * @param listener the listener to be added
+     */
+    public void addListener(ServerListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ServerListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adds a destination for the server's log, such as a RollingFileSink.
+     * Sinks are closed by shutdown(), once the log is written out.
+     *
+     * @param sink the sink to be added
+     */
+    public void addLogSink(LogSink sink)
+    {
+        eventLog.addSink(sink);
+    }
+
+    /**
+     * @return a copy of the list of usernames currently online
+     */
+    public List<String> getUsernames()
+    {
+        return presence.snapshot();
     }
 
     /**
      * Sets up the TCPServer and puts it in waiting state for connections.
-     * Whenever a connection occurs, a ConnectionHandler task is spawned in the cached thread pool.
+     * Whenever a connection occurs, it is either handed to a ConnectionHandler task in the
+     * cached thread pool or registered with an NIO event loop, depending on the engine.
      *
      * @throws IOException in case the socket chosen is already in use by another app on the localhost
      */
     public void putOnline() throws IOException
     {
-        frame.printMsg("Attempting connection...");
-        serverSocket = new ServerSocket(portNumber); //Set up the server
-        frame.printMsg("Connected successfully to port " + portNumber);
-        frame.printMsg("Server up and running...");
+        eventLog.start();
+        printMsg("Attempting connection...");
+        if (engine == ServerEngine.VIRTUAL && exec instanceof ThreadPoolExecutor) //the cached pool fallback
+            printMsg("Virtual threads not supported by this JVM, using platform threads");
+        try
+        {
+            if (engine == ServerEngine.NIO) serverSocket = openChannel(); //Set up the server
+            else if (tls != null) serverSocket = tls.getServerSocketFactory().createServerSocket(portNumber, ACCEPT_BACKLOG);
+            else serverSocket = new ServerSocket(portNumber, ACCEPT_BACKLOG);
+            if (bus != null) bus.start(new ClusterHandler());
+        } catch (IOException e)
+        {
+            if (serverSocket != null) serverSocket.close();
+            eventLog.close(LOG_LINGER_MILLIS);
+            throw e;
+        }
+        printMsg("Connected successfully to port " + portNumber);
+        startMetrics();
+        reaper = new IdleReaper(timers, clients, pingMillis, readTimeoutMillis, writeTimeoutMillis, this::connectionTimedOut);
+        timers.schedule(this::sampleBackpressure, BACKPRESSURE_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        timers.start();
+        if (bus != null) printMsg("Cluster node " + bus.nodeId());
+        printMsg("Server up and running (" + engine + " engine, " + coalescing + " flushing" + (tls != null ? ", TLS" : "") + ")...");
 
         while (true) //Infinite loop enter, waiting for client connections.
         {
             try
             {
-                frame.printMsg("Waiting for client connection...");
+                printMsg("Waiting for client connection...");
                 Socket socket = serverSocket.accept();
 
-                exec.submit(new ConnectionHandler(socket)); //Start thread to handle connection
+                if (nioEngine != null) nioEngine.register(socket.getChannel()); //Multiplex on an event loop
+                else exec.submit(new ConnectionHandler(socket, socket.getInputStream())); //Start thread to handle connection
             }
             catch (IOException e)
             {
-                frame.printMsg("Server shut down (Reason: " + e.getMessage() + ")");
+                if (shuttingDown) printMsg("Server shut down");
+                else printMsg("Server shut down (Reason: " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()) + ")");
                 break;
             }
         }
     }
 
     /**
-     * Closes the server socket, shuts down the executor and clears the clients list
+     * Binds a ServerSocketChannel and starts the NIO event loops.
+     * Accepting stays blocking, on the thread running putOnline().
+     *
+     * @return the channel's ServerSocket adaptor, whose accepted sockets carry their SocketChannel
+     * @throws IOException in case the port is already in use
+     */
+    private ServerSocket openChannel() throws IOException
+    {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try
+        {
+            channel.bind(new InetSocketAddress(portNumber), ACCEPT_BACKLOG);
+            nioEngine = new NioEngine(this, NioEngine.DEFAULT_LOOPS, coalescing, tls, metrics);
+            nioEngine.start();
+        } catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
+    }
+
+    /**
+     * Configures the outbound queue every client gets. Must be called before putOnline().
+     *
+     * @param capacity the maximum number of messages waiting to be written to a single client
+     * @param policy what to do with a client whose queue is full
+     */
+    public void setOutboundQueue(int capacity, OverflowPolicy policy)
+    {
+        this.queueCapacity = capacity;
+        this.overflowPolicy = policy;
+    }
+
+    /**
+     * Persists every broadcast message to an append-only log in the given directory, and
+     * recovers the most recent messages already in it. Must be called before putOnline().
+     *
+     * @param directory where the log's segment files are kept
+     * @param retentionBytes roughly how much disk space the log may take, older segments are deleted
+     * @param retentionMillis how long messages are kept
+     * @throws IOException in case the log cannot be opened
+     * @see SegmentedLog
+     */
+    public void enableMessageLog(Path directory, long retentionBytes, long retentionMillis) throws IOException
+    {
+        history.open(directory, SEGMENT_BYTES, retentionBytes, retentionMillis);
+    }
+
+    /**
+     * Makes the server a node of a cluster: messages posted on any node reach the members of their
+     * room on every node, and the username list is the one of the whole cluster.
+     * Must be called before putOnline().
+     *
+     * @param bus the link to the other nodes, such as a TcpClusterBus
+     */
+    public void setClusterBus(ClusterBus bus)
+    {
+        this.bus = bus;
+    }
+
+    /**
+     * Sets how many recent messages a client is sent when it enters a room, 0 for none
+     *
+     * @param count the number of messages
+     */
+    public void setHistoryReplay(int count)
+    {
+        this.historyReplay = count;
+    }
+
+    /**
+     * Sets how eagerly messages are flushed to clients. By default a client's writer flushes as
+     * soon as its queue is empty; a coalescing window trades some latency for fewer, larger
+     * writes under load. Must be called before putOnline().
+     *
+     * @param coalescing the flush policy
+     */
+    public void setWriteCoalescing(WriteCoalescing coalescing)
+    {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * Encrypts every client connection with TLS. Must be called before putOnline().
+     *
+     * The context's session cache is sized for reconnect storms, so that clients coming back
+     * after a network blip resume their sessions rather than go through a full handshake.
+     * The engines encrypt each broadcast per connection, but still encode it only once.
+     *
+     * @param context the server's context, see gchatdata.TlsContexts
+     */
+    public void enableTls(SSLContext context)
+    {
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+        this.tls = context;
+    }
+
+    /**
+     * Sets when silent connections are pinged and when they are considered dead.
+     * Must be called before putOnline().
+     *
+     * @param pingMillis a client nothing was read from for this long is sent a ping
+     * @param readTimeoutMillis a client nothing was read from for this long, despite pings, is disconnected
+     * @param writeTimeoutMillis a client whose writes made no progress for this long is disconnected
+     * @see IdleReaper
+     */
+    public void setIdleTimeouts(long pingMillis, long readTimeoutMillis, long writeTimeoutMillis)
+    {
+        this.pingMillis = pingMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+    }
+
+    /**
+     * Sets how fast clients may send messages. Must be called before putOnline().
+     *
+     * @param ratePerSecond the messages (chat messages, direct messages and room commands) a client may send per second on average,
+     *                      any more are dropped
+     * @param burst the most messages a client may send at once
+     * @param creditWindow the most messages a framed client may send before it is granted more credit, at most burst
+     * @see FlowControl
+     */
+    public void setFlowControl(double ratePerSecond, int burst, int creditWindow)
+    {
+        this.ratePerSecond = ratePerSecond;
+        this.rateBurst = burst;
+        this.creditWindow = Math.min(creditWindow, burst);
+    }
+
+    /**
+     * Serves the server's metrics as plain text over HTTP, on the loopback interface only.
+     * Must be called before putOnline(). The metrics are available through JMX either way.
+     *
+     * @param port the local port, 0 for any free one
+     * @see MetricsEndpoint
+     */
+    public void enableMetricsEndpoint(int port)
+    {
+        this.metricsPort = port;
+    }
+
+    /**
+     * Reports how many messages are waiting to be written to each client
+     *
+     * @return queue depths keyed by "username (address)"
+     */
+    public Map<String, Integer> getQueueDepths()
+    {
+        return metrics.getQueueDepths();
+    }
+
+    /**
+     * @return a new, empty outbound queue for a client connection
+     */
+    <T> OutboundQueue<T> newOutboundQueue()
+    {
+        return new OutboundQueue<>(queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * @return the server's counters and latencies, see ServerMetricsMXBean
+     */
+    ServerMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics with JMX, starts the HTTP endpoint if enabled and the sampling of rates.
+     * Failing to do either is logged, the server runs on without.
+     */
+    private void startMetrics()
+    {
+        try
+        {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            metricsName = new ObjectName("com.giotis_kal.gchatserver:type=GChatServer,port=" + portNumber);
+            mbeans.registerMBean(new StandardMBean(metrics, ServerMetricsMXBean.class, true), metricsName);
+        } catch (JMException e)
+        {
+            metricsName = null;
+            printMsg("Metrics not registered with JMX (Reason: " + e.getMessage() + ")");
+        }
+        if (metricsPort >= 0)
+        {
+            try
+            {
+                metricsEndpoint = new MetricsEndpoint(metricsPort, metrics);
+                printMsg("Metrics at http://localhost:" + metricsEndpoint.getPort() + MetricsEndpoint.PATH);
+            } catch (IOException e)
+            {
+                printMsg("Metrics endpoint not started (Reason: " + e.getMessage() + ")");
+            }
+        }
+        timers.schedule(this::sampleMetrics, METRICS_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void sampleMetrics()
+    {
+        metrics.sample();
+        timers.schedule(this::sampleMetrics, METRICS_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopMetrics()
+    {
+        if (metricsEndpoint != null) metricsEndpoint.close();
+        if (metricsName == null) return;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs a task on the server's timer thread once the delay has passed, see TimerWheel
+     */
+    void schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        timers.schedule(task, delay, unit);
+    }
+
+    /**
+     * Logs a status line asynchronously, see EventLog
+     *
+     * @param msg the line, or an object whose toString() is only called on the EventLog's thread
+     */
+    private void printMsg(Object msg)
+    {
+        eventLog.log(msg);
+    }
+
+    /**
+     * Looks Executors.newVirtualThreadPerTaskExecutor() up reflectively, so that the server
+     * still compiles and runs on JVMs that predate virtual threads.
+     *
+     * @return the executor, or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Shuts the server down, draining its connections for up to DEFAULT_DRAIN_MILLIS
+     *
+     * @see #shutdown(long)
      */
     public void shutdown()
     {
+        shutdown(DEFAULT_DRAIN_MILLIS);
+    }
+
+    /**
+     * Shuts the server down gracefully, e.g. for a rolling restart. New connections are refused
+     * right away, then every client is sent a Poison behind whatever is already queued for it and
+     * the server waits, up to the deadline, for the clients to echo it and disconnect. Clients that
+     * have not by then are disconnected forcibly, and the executor, engine and cluster link are shut down.
+     *
+     * Messages received while draining are dropped: they could only be queued behind the Poison.
+     *
+     * @param drainMillis how long to wait for clients to leave, 0 to disconnect them all right away
+     * @return how long draining took, in milliseconds
+     */
+    public long shutdown(long drainMillis)
+    {
+        long drained = 0;
+        shuttingDown = true;
         try
         {
+            sessions.close(); //clients told to shut down must not keep their sessions
             if (serverSocket != null)
             {
-                shutdownClients();
-                serverSocket.close();
+                serverSocket.close(); //stop accepting first
+                drained = drainClients(drainMillis);
+                timers.close();
+                if (bus != null) bus.close();
+                if (nioEngine != null) nioEngine.shutdown();
                 exec.shutdown();
+                stopMetrics();
             }
         } catch (IOException e)
         {
             e.printStackTrace();
         }
+        history.close(LOG_LINGER_MILLIS);
+        if (history.dropped() > 0) printMsg(history.dropped() + " messages could not be written to the message log");
+        if (tls != null) printMsg(handshakes);
+        eventLog.close(LOG_LINGER_MILLIS);
+        return drained;
+    }
+
+    /**
+     * Serves a connection with a blocking ConnectionHandler. Used by the NIO engine
+     * for legacy clients, whose object streams cannot be read in a non-blocking way.
+     *
+     * @param socket the client's socket, in blocking mode
+     * @param in the socket's input, including any bytes the engine has already consumed
+     */
+    void serveBlocking(Socket socket, InputStream in)
+    {
+        exec.submit(new ConnectionHandler(socket, in));
+    }
+
+    /**
+     * Keeps track of a new connection for message forwarding
+     */
+    void clientConnected(ClientConnection connection)
+    {
+        connection.setFlowControl(new FlowControl(ratePerSecond, rateBurst, connection.isFramed() ? creditWindow : 0));
+        clients.add(connection);
+        reaper.watch(connection);
+        if (draining) //accepted just before the server socket closed
+        {
+            try
+            {
+                if (!connection.send(new OutboundMessage(new Poison(true)))) connection.disconnect();
+            } catch (IOException e)
+            {
+                connection.disconnect();
+            }
+        }
     }
 
     /**
-     * Used to broadcast a client's message to all connected clients.
+     * Grants a framed client more send credit, if any is due
+     *
+     * @param credits the credit to grant, nothing is sent if 0
+     */
+    private void grantCredit(ClientConnection connection, int credits) throws IOException
+    {
+        if (credits > 0 && !connection.send(new OutboundMessage(new Credit(credits))))
+        {
+            dropSlowConsumer(connection);
+            return;
+        }
+        if (connection.getFlowControl().isWithheld()) creditWithheld = true; //sampleBackpressure() grants it later
+    }
+
+    /**
+     * Applies a client's flow control to a chat message, direct message or room command it sent.
+     * Only chat messages use up credit, and every one of them, dropped or not, may top the credit
+     * up, so that a client is never left waiting for credit that is never granted. The first
+     * message dropped in a row gets the client a notice.
+     *
+     * @return false if the rate limit is exceeded and the message must be dropped
+     */
+    private boolean admitted(ClientConnection connection, Object msg) throws IOException
+    {
+        FlowControl flow = connection.getFlowControl();
+        boolean admitted = flow.tryAcquire(msg instanceof ChatMessage);
+        if (!admitted && flow.getRefusals() == 1) sendNotice(connection, "You are sending messages too fast, some were dropped");
+        if (msg instanceof ChatMessage) grantCredit(connection, flow.replenish(congested));
+        return admitted;
+    }
+
+    /**
+     * Runs on the timer: the fan-out is considered backed up while more than half of the clients'
+     * outbound queues are over a quarter full, and clear again once fewer than a quarter of them are.
+     * Credit withheld meanwhile (or because a client's rate limit was low) is then granted.
+     */
+    private void sampleBackpressure()
+    {
+        int count = 0, backedUp = 0;
+        for (ClientConnection client : clients)
+        {
+            count++;
+            if (client.getQueueDepth() * 4 >= queueCapacity) backedUp++;
+        }
+
+        if (!congested && backedUp * 2 > count)
+        {
+            congested = true;
+            printMsg(backedUp + " of " + count + " clients backed up, withholding send credit");
+        }
+        else if (congested && backedUp * 4 < count)
+        {
+            congested = false;
+            printMsg("Outbound queues drained, granting send credit again");
+        }
+
+        if (!congested && creditWithheld)
+        {
+            creditWithheld = false;
+            for (ClientConnection client : clients)
+            {
+                try
+                {
+                    grantCredit(client, client.getFlowControl().release());
+                } catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+        timers.schedule(this::sampleBackpressure, BACKPRESSURE_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Disconnects a client the IdleReaper found dead. Its session is kept, as for any dropped connection.
+     */
+    private void connectionTimedOut(ClientConnection connection, String reason)
+    {
+        if (!clients.remove(connection)) return; //already being dropped
+
+        printMsg(connection.getUsername() + " " + connection.getRemoteAddress() + " " + reason + ", disconnecting");
+        connection.disconnect();
+    }
+
+    /**
+     * Answers a client's ping. Pongs need no handling, reading them was enough.
+     */
+    private void heartbeatReceived(ClientConnection connection, Heartbeat heartbeat) throws IOException
+    {
+        if (!heartbeat.isPong() && !connection.send(new OutboundMessage(heartbeat.pong()))) dropSlowConsumer(connection);
+    }
+
+    /**
+     * Called with the first message of a connection: either a ChatMessage carrying the username
+     * of a new user, who starts out in the public room, or a Session being resumed.
+     *
+     * @return false if no user joined yet: a Session could not be resumed and the client is
+     *         expected to join anew, the username is blank or taken and the client was sent a
+     *         Poison, or the message was a Heartbeat
+     * @throws IOException in case broadcasting the new username list fails
+     */
+    boolean userJoined(ClientConnection connection, Object msg) throws IOException
+    {
+        if (msg instanceof Heartbeat)
+        {
+            heartbeatReceived(connection, (Heartbeat) msg);
+            return false;
+        }
+        if (msg instanceof Session) return resumeSession(connection, (Session) msg);
+
+        //Bind the username, unless it is blank or someone has it, and update username list
+        String username = ((ChatMessage) msg).getUsername();
+        if (username == null || username.trim().isEmpty()) return refuseJoin(connection, "A username is required to join");
+        if (username.length() > ChatMessage.MAX_NAME_LENGTH)
+            return refuseJoin(connection, "A username can be at most " + ChatMessage.MAX_NAME_LENGTH + " characters");
+        if (!clients.claimUsername(connection, username)) return refuseJoin(connection, "Username " + username + " is taken, pick another one");
+        if (connection.isFramed())
+        {
+            ClientSession session = sessions.create(username, connection);
+            connection.setSession(session);
+            if (!connection.send(new OutboundMessage(new Session(session.getToken(), null)))) dropSlowConsumer(connection);
+            grantCredit(connection, connection.getFlowControl().replenish(congested));
+        }
+        enterRoom(connection, ChatMessage.PUBLIC_ROOM, -1);
+
+        broadcastLock.lock();
+        try
+        {
+            presence.add(username);
+            broadcastPresence(username, true, connection); //update other clients jList with new username
+            if (bus != null) bus.publish(ClusterEvent.presence(bus.nodeId(), username, true));
+            sendPresenceSnapshot(connection); //and send the new client the whole list, once
+        } finally
+        {
+            broadcastLock.unlock();
+        }
+        for (ServerListener listener : listeners) listener.userJoined(username);
+        printMsg(username + " connected (IP: " + connection.getRemoteAddress() + ")"); //Log info
+        return true;
+    }
+
+    /**
+     * Tells a client why its user cannot join and sends it a Poison, upon which it disconnects
+     *
+     * @return false, no user joined
+     */
+    private boolean refuseJoin(ClientConnection connection, String reason) throws IOException
+    {
+        sendNotice(connection, reason);
+        if (!connection.send(new OutboundMessage(new Poison(false)))) dropSlowConsumer(connection);
+        return false;
+    }
+
+    /**
+     * Moves a session over to a reconnected client and replays what it missed in each of its rooms.
+     * The user never left, so no presence change is broadcast.
+     *
+     * @return false if the session expired, in which case the client is told so
+     * @throws IOException in case a reply cannot be encoded
+     */
+    private boolean resumeSession(ClientConnection connection, Session resume) throws IOException
+    {
+        ClientSession session = sessions.resume(resume.getToken(), connection);
+        if (session == null)
+        {
+            sendNotice(connection, "Session expired, rejoining");
+            if (!connection.send(new OutboundMessage(new Session(null, null)))) dropSlowConsumer(connection);
+            return false;
+        }
+
+        clients.setUsername(connection, session.getUsername());
+        connection.setSession(session);
+        if (!connection.send(new OutboundMessage(new Session(session.getToken(), null)))) dropSlowConsumer(connection);
+        grantCredit(connection, connection.getFlowControl().replenish(congested));
+        for (Map.Entry<String, Long> room : new ArrayList<>(session.getRooms().entrySet()))
+            enterRoom(connection, room.getKey(), Math.max(resume.getLastSequence(room.getKey()), room.getValue()));
+
+        broadcastLock.lock();
+        try
+        {
+            sendPresenceSnapshot(connection); //the client's list may be stale
+        } finally
+        {
+            broadcastLock.unlock();
+        }
+        printMsg(session.getUsername() + " resumed session (IP: " + connection.getRemoteAddress() + ")");
+        return true;
+    }
+
+    /**
+     * Adds a client to a room. Under the room's broadcast lock, so that nothing is missed or
+     * received twice, it is sent the room's recent history or, when resuming, what it missed.
+     *
+     * @param resumeAfter the sequence of the last message the client received in the room, -1 if not resuming
+     */
+    private void enterRoom(ClientConnection connection, String name, long resumeAfter)
+    {
+        rooms.join(name, connection, room -> {
+            ClientSession session = connection.getSession();
+            if (session != null) session.getRooms().put(name, history.lastSequence());
+            if (resumeAfter < 0) sendHistory(connection, room);
+            else sendMissed(connection, room, resumeAfter);
+        });
+    }
+
+    /**
+     * Handles a message received from a client. Whenever a client sends a message,
+     * the server broadcasts it to all members of its room, including the sender.
+     *
+     * @return false if a Poison was received and the connection should stop reading
+     * @throws IOException in case broadcasting or echoing the Poison fails
+     * @see Poison
+     */
+    boolean messageReceived(ClientConnection connection, Object msg) throws IOException
+    {
+        if (msg instanceof Poison) //in case of Poison
+        {
+            //In case of regular Poison shutdown, resend it to the client
+            //to let them disconnect. Then shut down the connection.
+            if (connection.getSession() != null) sessions.end(connection.getSession()); //left on purpose, no resuming
+            if (!((Poison) msg).isToShutdownServer()) connection.send(new OutboundMessage(msg));
+            return false;
+        }
+        if (msg instanceof ChatMessage || msg instanceof DirectMessage || msg instanceof RoomCommand)
+        {
+            if (draining || !admitted(connection, msg)) return true;
+        }
+        if (msg instanceof ChatMessage) //in case of regular Message
+        {
+            if (((ChatMessage) msg).isTooLong())
+            {
+                sendNotice(connection, "Messages can be at most " + ChatMessage.MAX_MESSAGE_LENGTH + " characters, yours was dropped");
+                return true;
+            }
+            //the username bound at join, whatever the client claims
+            ((ChatMessage) msg).setUsername(connection.getUsername());
+            //then print and broadcast msg
+            Room room = rooms.get(((ChatMessage) msg).getRoom());
+            if (room == null || !room.contains(connection))
+            {
+                sendNotice(connection, "You are not in #" + ((ChatMessage) msg).getRoom());
+                return true;
+            }
+            printMsg(msg); //formatted off the hot path
+            broadcastMessage(room, (ChatMessage) msg, true); //broadcast msg to all clients in the room, and on the other nodes
+        }
+        if (msg instanceof DirectMessage) //to a single user, never broadcast
+        {
+            String text = ((DirectMessage) msg).getMessage();
+            if (text != null && text.length() > ChatMessage.MAX_MESSAGE_LENGTH)
+            {
+                sendNotice(connection, "Messages can be at most " + ChatMessage.MAX_MESSAGE_LENGTH + " characters, yours was dropped");
+                return true;
+            }
+            sendDirect(connection, ((DirectMessage) msg).from(connection.getUsername()));
+        }
+        if (msg instanceof Heartbeat) //client checking the connection, or answering our ping
+        {
+            heartbeatReceived(connection, (Heartbeat) msg);
+        }
+        if (msg instanceof PresenceSnapshot) //client lost track of presence, resend it
+        {
+            broadcastLock.lock();
+            try
+            {
+                sendPresenceSnapshot(connection);
+            } finally
+            {
+                broadcastLock.unlock();
+            }
+        }
+        if (msg instanceof RoomCommand)
+        {
+            String room = ((RoomCommand) msg).getRoom();
+            if (room == null || room.isEmpty()) return true;
+            if (room.length() > ChatMessage.MAX_NAME_LENGTH)
+            {
+                sendNotice(connection, "A room name can be at most " + ChatMessage.MAX_NAME_LENGTH + " characters");
+                return true;
+            }
+
+            if (((RoomCommand) msg).isJoin())
+            {
+                sendNotice(connection, "Joined #" + room);
+                enterRoom(connection, room, -1);
+            }
+            else
+            {
+                rooms.leave(room, connection);
+                if (connection.getSession() != null) connection.getSession().getRooms().remove(room);
+                sendNotice(connection, "Left #" + room);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends a client the most recent messages of a room it just entered, in as few HistoryBatches
+     * as fit in frames. Legacy clients get them one ChatMessage at a time. Called under the
+     * room's broadcast lock, see RoomDirectory.join().
+     */
+    private void sendHistory(ClientConnection connection, Room room)
+    {
+        if (historyReplay > 0) sendBatch(connection, room, history.recent(room.getName(), historyReplay));
+    }
+
+    /**
+     * Sends a resuming client the messages of a room that came after the last one it received
+     */
+    private void sendMissed(ClientConnection connection, Room room, long after)
+    {
+        if (!history.covers(room.getName(), after))
+        {
+            sendBatch(connection, room, new ArrayList<>(Collections.singletonList(
+                    new ChatMessage("", "Some messages in #" + room.getName() + " could not be recovered", room.getName()))));
+        }
+        sendBatch(connection, room, history.since(room.getName(), after));
+    }
+
+    private void sendBatch(ClientConnection connection, Room room, ArrayList<ChatMessage> messages)
+    {
+        if (messages.isEmpty()) return;
+
+        try
+        {
+            if (connection.isFramed())
+            {
+                //split by size, one frame too large for the client to read would drop its connection
+                int from = 0;
+                int bytes = 0;
+                for (int i = 0; i <= messages.size(); i++)
+                {
+                    int size = i < messages.size() ? messages.get(i).sizeBound() : 0;
+                    if (i > from && (i == messages.size() || bytes + size > MAX_BATCH_BYTES))
+                    {
+                        ArrayList<ChatMessage> part = from == 0 && i == messages.size() ? messages : new ArrayList<>(messages.subList(from, i));
+                        HistoryBatch batch = new HistoryBatch(room.getName(), part);
+                        if (!connection.send(new OutboundMessage(batch)))
+                        {
+                            dropSlowConsumer(connection);
+                            return;
+                        }
+                        from = i;
+                        bytes = 0;
+                    }
+                    bytes += size;
+                }
+                return;
+            }
+            for (ChatMessage msg : messages)
+            {
+                if (!connection.send(new OutboundMessage(msg)))
+                {
+                    dropSlowConsumer(connection);
+                    return;
+                }
+            }
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Delivers a direct message to its recipient, found in O(1) by the ClientRegistry's username
+     * index, and echoes it back to the sender. No room, no broadcast lock and no history is involved.
+     * A recipient not connected to this node may be connected to another one of the cluster.
+     *
+     * @param msg the message, its sender already set from the connection it was read on
+     */
+    private void sendDirect(ClientConnection sender, DirectMessage msg) throws IOException
+    {
+        ClientConnection recipient = clients.get(msg.getRecipient());
+        if (recipient != null) deliverDirect(recipient, msg);
+        else if (bus != null) bus.publish(ClusterEvent.direct(bus.nodeId(), msg)); //dropped if no node has the user either
+        else
+        {
+            sendNotice(sender, msg.getRecipient() + " is not connected");
+            return;
+        }
+        if (recipient != sender) deliverDirect(sender, msg);
+    }
+
+    /**
+     * Queues a direct message for one client. Legacy clients get it as a ChatMessage.
+     */
+    private void deliverDirect(ClientConnection connection, DirectMessage msg) throws IOException
+    {
+        Object outbound = connection.isFramed() ? msg : new ChatMessage("", msg.toString());
+        if (!connection.send(new OutboundMessage(outbound))) dropSlowConsumer(connection);
+    }
+
+    /**
+     * Sends a server message (no username) to a single client
+     */
+    private void sendNotice(ClientConnection connection, String notice) throws IOException
+    {
+        if (!connection.send(new OutboundMessage(new ChatMessage("", notice)))) dropSlowConsumer(connection);
+    }
+
+    /**
+     * Stops forwarding messages to a connection that went away. Unless the user can
+     * still resume their session, updates the username list. Nothing else is undone for a
+     * connection whose user never joined.
+     */
+    void clientDisconnected(ClientConnection connection)
+    {
+        clients.remove(connection); //remove connection from client registry
+        rooms.leaveAll(connection);
+        if (connection.getUsername() == null) //refused or gone before joining
+        {
+            printMsg(connection.getRemoteAddress() + " disconnected without joining");
+            return;
+        }
+
+        ClientSession session = connection.getSession();
+        if (session != null && sessions.detach(session, connection, () -> userLeft(connection)))
+        {
+            printMsg(connection.getUsername() + " " + connection.getRemoteAddress() + " connection closed, session kept for "
+                    + sessions.getGraceMillis() / 1000 + "s");
+            return;
+        }
+        userLeft(connection);
+    }
+
+    /**
+     * Removes the user of a connection from the username list, for good
+     */
+    private void userLeft(ClientConnection connection)
+    {
+        String username = connection.getUsername();
+        broadcastLock.lock();
+        try
+        {
+            presence.remove(username); //remove username from list
+            if (!draining) broadcastPresence(username, false, null); //update other clients jList, unless they are all leaving
+            if (bus != null) bus.publish(ClusterEvent.presence(bus.nodeId(), username, false));
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        } finally
+        {
+            broadcastLock.unlock();
+        }
+        clients.releaseUsername(username);
+        for (ServerListener listener : listeners) listener.userLeft(username);
+        printMsg(username + " " + connection.getRemoteAddress() + " disconnected from server"); //log d/c
+    }
+
+    /**
+     * Used to broadcast a message, such as the username list, to all connected clients.
      *
      * @param msg the message to be broadcast
-     * @throws IOException in case writing or flushing fails, in which case
+     * @throws IOException in case the message cannot be encoded, in which case
      *         the handling method prints the stacktrace
      */
     private void broadcastMessage(Object msg) throws IOException
     {
-        synchronized (clientsLock) //avoid iterating while another client might be added
+        broadcastLock.lock();
+        try
+        {
+            fanOut(clients, new OutboundMessage(msg));
+        } finally
+        {
+            broadcastLock.unlock();
+        }
+    }
+
+    /**
+     * Broadcasts a user joining or leaving. Clients that understand PresenceDeltas only get
+     * the change, legacy clients still get the whole username list. Must hold broadcastLock.
+     *
+     * @param username the user who joined or left
+     * @param joined true if the user joined
+     * @param joiner the connection about to receive a snapshot including this change, if any
+     * @throws IOException in case the update cannot be encoded
+     */
+    private void broadcastPresence(String username, boolean joined, ClientConnection joiner) throws IOException
+    {
+        OutboundMessage delta = new OutboundMessage(new PresenceDelta(++presenceVersion, username, joined));
+        OutboundMessage fullList = null; //built on first use, most clients never need it
+
+        for (ClientConnection client : clients)
         {
-            for (ObjectOutputStream writer : clients)
+            OutboundMessage update;
+            if (client.isFramed())
+            {
+                if (client == joiner) continue;
+                update = delta;
+            }
+            else
             {
-                writer.writeObject(msg);
-                writer.flush();
+                if (fullList == null) fullList = new OutboundMessage(presence.snapshot());
+                update = fullList;
             }
+            if (!client.send(update)) dropSlowConsumer(client);
+        }
+    }
+
+    /**
+     * Sends the current username list to a single client. Must hold broadcastLock,
+     * so that the snapshot's version matches the deltas queued after it.
+     */
+    private void sendPresenceSnapshot(ClientConnection connection) throws IOException
+    {
+        if (!connection.isFramed()) return; //gets the full list with every change anyway
+
+        PresenceSnapshot snapshot = new PresenceSnapshot(presenceVersion, presence.snapshot());
+        if (!connection.send(new OutboundMessage(snapshot))) dropSlowConsumer(connection);
+    }
+
+    /**
+     * Used to broadcast a client's message to the members of a room only,
+     * recording it in the message history in broadcast order.
+     *
+     * A message posted on this node is published on the ClusterBus under the same lock, so
+     * that every node receives the messages of a room in the order its local members did.
+     *
+     * @param room the room the message was posted in
+     * @param msg the message to be broadcast
+     * @param local whether it was posted by a client of this node rather than received from a peer
+     * @throws IOException in case the message cannot be encoded
+     */
+    private void broadcastMessage(Room room, ChatMessage msg, boolean local) throws IOException
+    {
+        room.getBroadcastLock().lock();
+        try
+        {
+            history.append(msg);
+            fanOut(room.getMembers(), new OutboundMessage(msg));
+            if (local && bus != null) bus.publish(ClusterEvent.chat(bus.nodeId(), msg)); //only queued, never blocks
+        } finally
+        {
+            room.getBroadcastLock().unlock();
+        }
+    }
+
+    /**
+     * Queues a message for every given client.
+     *
+     * Iterating a ClientRegistry takes no lock, so joins and leaves never wait
+     * for broadcasts. The message is encoded once per codec and the same frame
+     * is queued for every client, whose own writer then sends it. Clients whose queue
+     * is full are disconnected, depending on the OverflowPolicy.
+     */
+    private void fanOut(ClientRegistry recipients, OutboundMessage outbound) throws IOException
+    {
+        long start = System.nanoTime();
+        for (ClientConnection client : recipients)
+        {
+            if (!client.send(outbound)) dropSlowConsumer(client);
         }
+        metrics.fanOut(System.nanoTime() - start);
+    }
+
+    private void dropSlowConsumer(ClientConnection client)
+    {
+        if (!clients.remove(client)) return; //already being dropped, stop queueing for it right away
+
+        printMsg(client.getUsername() + " " + client.getRemoteAddress() + " too slow, outbound queue full (" + queueCapacity + ")");
+        client.disconnect();
     }
 
     /**
-     * Shuts down all clients to allow for server shutdown by dipatching
-     * Poison objects
+     * Shuts down all clients to allow for server shutdown by dispatching Poison objects, waits for
+     * them to disconnect until the deadline and disconnects the rest. Clients leave the registry as
+     * their connections close, see clientDisconnected().
      *
-     * @throws IOException if writeObject method fails.
+     * @param drainMillis how long to wait for clients to leave
+     * @return how long draining took, in milliseconds
+     * @throws IOException if the Poison cannot be encoded.
      * @see Poison
      */
-    private void shutdownClients() throws IOException
+    private long drainClients(long drainMillis) throws IOException
     {
-        synchronized (clientsLock)
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        draining = true; //clients registering from now on are sent the Poison by clientConnected()
+
+        int count = 0;
+        OutboundMessage poison = new OutboundMessage(new Poison(true));
+        for (ClientConnection client : clients)
         {
-            for (ObjectOutputStream writer : clients) writer.writeObject(new Poison(true));
+            count++;
+            if (!client.send(poison)) dropSlowConsumer(client); //could never read as far as the Poison
+        }
+
+        while (clients.size() > 0 && System.nanoTime() < deadline)
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(DRAIN_POLL_MILLIS));
+
+        List<ClientConnection> remaining = clients.removeAll();
+        for (ClientConnection client : remaining) client.disconnect();
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        printMsg("Drained " + count + " clients in " + millis + "ms"
+                + (remaining.isEmpty() ? "" : ", disconnected " + remaining.size() + " that had not left by the deadline"));
+        return millis;
+    }
+
+    /**
+     * The server's side of the ClusterBus: fans the messages posted on other nodes out to
+     * local clients and merges the users of other nodes into the username list.
+     */
+    private class ClusterHandler implements ClusterBus.Handler
+    {
+        @Override
+        public void peerConnected(Consumer<ClusterEvent> peer)
+        {
+            broadcastLock.lock(); //presence changes are published under it too, so they reach the peer in order with the snapshot
+            try
+            {
+                peer.accept(ClusterEvent.users(bus.nodeId(), presence.local()));
+            } finally
+            {
+                broadcastLock.unlock();
+            }
+        }
+
+        @Override
+        public void eventReceived(ClusterEvent event)
+        {
+            try
+            {
+                switch (event.getKind())
+                {
+                    case CHAT:
+                        ChatMessage msg = event.toChatMessage();
+                        Room room = rooms.get(msg.getRoom());
+                        if (room == null) return; //no member on this node
+                        printMsg(msg);
+                        broadcastMessage(room, msg, false); //never published again, see ClusterEvent
+                        break;
+                    case DIRECT:
+                        DirectMessage direct = event.toDirectMessage();
+                        ClientConnection recipient = clients.get(direct.getRecipient());
+                        if (recipient != null) deliverDirect(recipient, direct); //else the user is on another node, or nowhere
+                        break;
+                    case USER_JOINED:
+                        updateRemoteUsers((joined, left) -> {
+                            presence.addRemote(event.getNode(), event.getUsername());
+                            joined.add(event.getUsername());
+                        });
+                        break;
+                    case USER_LEFT:
+                        updateRemoteUsers((joined, left) -> {
+                            if (presence.removeRemote(event.getNode(), event.getUsername())) left.add(event.getUsername());
+                        });
+                        break;
+                    case USERS:
+                        updateRemoteUsers((joined, left) -> presence.replaceRemote(event.getNode(), event.getUsernames(), joined, left));
+                        break;
+                }
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void peerDisconnected(String node)
+        {
+            List<String> left = updateRemoteUsers((joined, removed) -> removed.addAll(presence.removeNode(node)));
+            printMsg("Cluster node " + node + " disconnected (" + left.size() + " users)");
+        }
+
+        /**
+         * Applies a change to the users of other nodes, under broadcastLock, then broadcasts
+         * it to local clients and listeners
+         *
+         * @param change fills in the users who joined and left
+         * @return the users who left
+         */
+        private List<String> updateRemoteUsers(BiConsumer<List<String>, List<String>> change)
+        {
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            broadcastLock.lock();
+            try
+            {
+                change.accept(joined, left);
+                for (String username : left) broadcastPresence(username, false, null);
+                for (String username : joined) broadcastPresence(username, true, null);
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            } finally
+            {
+                broadcastLock.unlock();
+            }
+            for (ServerListener listener : listeners)
+            {
+                for (String username : left) listener.userLeft(username);
+                for (String username : joined) listener.userJoined(username);
+            }
+            return left;
         }
-        clients.clear();
     }
 
     /**
@@ -139,15 +1295,17 @@ public class GChatServer
     private class ConnectionHandler implements Runnable
     {
         private Socket socket; //endpoint between server-client
+        private InputStream in; //the socket's input
 
-        public ConnectionHandler(Socket socket)
+        public ConnectionHandler(Socket socket, InputStream in)
         {
             this.socket = socket;
+            this.in = in;
         }
 
         /**
-         * Handles the connection between server and client. Whenever a client sends a message,
-         * the server broadcasts it to all clients including the sender.
+         * Handles the connection between server and client, reading its messages
+         * and passing them on to messageReceived().
          *
          * The infinite reading loop is broken when a Poison object is received.
          *
@@ -156,46 +1314,16 @@ public class GChatServer
         @Override
         public void run()
         {
-            ObjectOutputStream writer = null; //initialize output stream
-            String username = null; //reference that caches the name of the user connected
+            StreamConnection connection = null;
 
-            try (ObjectInputStream reader = new ObjectInputStream(socket.getInputStream()))
+            try
             {
-                //Get ObjectOutputStream of this specific client and cache it
-                writer = new ObjectOutputStream(socket.getOutputStream());
-
-                synchronized (clientsLock)
-                {
-                    clients.add(writer); //keep track for message forwarding
-                }
-
-                //Cache username and update username list
-                username = ((ChatMessage) reader.readObject()).getUsername();
-                frame.addUsername(username);
-                frame.printMsg(username == null ? "User" : username + " connected (IP: " + socket.getRemoteSocketAddress() + ")"); //Log info
-                broadcastMessage(frame.getUsernameList()); //update other clients jList with new username
+                if (socket instanceof SSLSocket) handshake((SSLSocket) socket);
+                connection = StreamConnection.open(socket, in, newOutboundQueue(), exec, coalescing, metrics);
+                clientConnected(connection); //keep track for message forwarding
 
-                Object msg;
-                while (true)
-                {
-                    msg = reader.readObject(); //receive msg
-
-                    if (msg instanceof Poison) //in case of Poison
-                    {
-                        //In case of regular Poison shutdown, resend it to the client
-                        //to let them disconnect. Then shut down ConnectionHandler.
-                        if (!((Poison) msg).isToShutdownServer()) writer.writeObject(msg);
-                        break;
-                    }
-                    if (msg instanceof ChatMessage) //in case of regular Message
-                    {
-                        //cache username
-                        username = ((ChatMessage) msg).getUsername();
-                        //then print and broadcast msg
-                        frame.printMsg(msg.toString());
-                        broadcastMessage(msg); //broadcast msg to all connected clients
-                    }
-                }
+                while (!userJoined(connection, connection.read())); //until a session is resumed or a user joins
+                while (messageReceived(connection, connection.read()));
             }
             catch (IOException | ClassNotFoundException e)
             {
@@ -203,24 +1331,48 @@ public class GChatServer
             }
             finally
             {
-                if (writer != null)
+                if (connection != null)
                 {
-                    synchronized (clientsLock)
+                    clientDisconnected(connection);
+                    try
+                    {
+                        connection.close();
+                    } catch (IOException e)
                     {
-                        clients.remove(writer); //remove writer from client list if it's cached
+                        e.printStackTrace();
                     }
+                }
+                else
+                {
                     try
                     {
-                        frame.removeUsername(username); //remove username from JList
-                        broadcastMessage(frame.getUsernameList()); //update other clients jList with new list
-                        writer.close();
+                        socket.close(); //handshake failed
                     } catch (IOException e)
                     {
                         e.printStackTrace();
                     }
                 }
-                frame.printMsg(username == null ? "User" : username + " " + socket.getRemoteSocketAddress() + " disconnected from server"); //log d/c
             }
         }
+
+        /**
+         * Runs the TLS handshake up front, rather than on the first read, so that it can be timed
+         */
+        private void handshake(SSLSocket socket) throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                socket.setSoTimeout((int) TLS_HANDSHAKE_TIMEOUT_MILLIS);
+                socket.startHandshake();
+                socket.setSoTimeout(0);
+            } catch (IOException e)
+            {
+                handshakes.failed();
+                throw e;
+            }
+            handshakes.completed(System.nanoTime() - start,
+                    HandshakeMetrics.isResumed(socket.getSession().getCreationTime(), start));
+        }
     }
-}
\ No newline at end of file
+}
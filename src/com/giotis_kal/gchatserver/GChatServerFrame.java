@@ -7,21 +7,26 @@ import java.awt.HeadlessException;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 
 /**
- * The Frame which holds the TCP Chat Server functionality
+ * The Frame which holds the TCP Chat Server functionality.
+ * It subscribes to its GChatServer as a ServerListener.
  */
-public class GChatServerFrame extends JFrame
+public class GChatServerFrame extends JFrame implements ServerListener
 {
     private static final long serialVersionUID = 2809486332370935187L;
+    private static final int MAX_LINES = 1000; //statuses kept in msgArea
 
     private JLabel portLabel;
     private JTextField portField;
+    private JLabel engineLabel;
+    private JComboBox<ServerEngine> engineBox;
     private JButton goOnlineButton;
     private JTextArea msgArea;
     private JPanel northwest, north;
@@ -40,6 +45,8 @@ public class GChatServerFrame extends JFrame
 
         portLabel = new JLabel("Port: ");
         portField = new JTextField("54321", 4);
+        engineLabel = new JLabel("Engine: ");
+        engineBox = new JComboBox<>(ServerEngine.values());
         /**
          * Go Online button has two states:
          * 1) Go Online
@@ -59,7 +66,8 @@ public class GChatServerFrame extends JFrame
                 }
 
                 //if ok - put server online
-                chatServer = new GChatServer(Integer.parseInt(portField.getText()), GChatServerFrame.this);
+                chatServer = new GChatServer(Integer.parseInt(portField.getText()), (ServerEngine) engineBox.getSelectedItem());
+                chatServer.addListener(GChatServerFrame.this); //for status updates, see printMsgs()
 
                 ExecutorService exec = Executors.newSingleThreadExecutor();
                 exec.submit(() -> {
@@ -84,6 +92,8 @@ public class GChatServerFrame extends JFrame
 
         northwest.add(portLabel);
         northwest.add(portField);
+        northwest.add(engineLabel);
+        northwest.add(engineBox);
 
         north.add(northwest, BorderLayout.WEST);
         north.add(goOnlineButton, BorderLayout.EAST);
@@ -116,17 +126,16 @@ public class GChatServerFrame extends JFrame
         });
     }
 
-    //Methods to add/remove a username to model list of JList
-    public void addUsername(String username)
+    //ServerListener methods to add/remove a username to model list of JList on the EDT
+    @Override
+    public void userJoined(String username)
     {
-        listModel.addElement(username);
+        SwingUtilities.invokeLater(() -> listModel.addElement(username));
     }
-    public void removeUsername(String username)
+    @Override
+    public void userLeft(String username)
     {
-        listModel.removeElement(username);
-    }
-    public ArrayList<String> getUsernameList() {
-        return Collections.list(listModel.elements());
+        SwingUtilities.invokeLater(() -> listModel.removeElement(username));
     }
 
     //Used to display pop-up messages on the ETD
@@ -136,9 +145,36 @@ public class GChatServerFrame extends JFrame
     }
 
     //Used to update the statuses in the JTextArea of the frame
+    @Override
     public void printMsg(String msg)
     {
-        SwingUtilities.invokeLater(() -> msgArea.append(">>>" + msg + "\r\n"));
+        printMsgs(Collections.singletonList(msg));
+    }
+
+    /**
+     * Appends a whole batch of statuses with a single trip to the EDT, keeping only
+     * the last MAX_LINES lines in the JTextArea so that it does not grow forever.
+     */
+    @Override
+    public void printMsgs(List<String> msgs)
+    {
+        StringBuilder text = new StringBuilder();
+        for (String msg : msgs) text.append(">>>").append(msg).append("\r\n");
+
+        SwingUtilities.invokeLater(() -> {
+            msgArea.append(text.toString());
+            int excess = msgArea.getLineCount() - MAX_LINES;
+            if (excess > 0)
+            {
+                try
+                {
+                    msgArea.replaceRange("", 0, msgArea.getLineEndOffset(excess - 1));
+                } catch (BadLocationException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        });
     }
 
     /**
@@ -161,6 +197,7 @@ public class GChatServerFrame extends JFrame
     {
         SwingUtilities.invokeLater(() -> {
             portField.setEnabled(!portField.isEnabled());
+            engineBox.setEnabled(portField.isEnabled());
             goOnlineButton.setText(goOnlineButton.getText().contains("Online") ? "Go Offline" : "Go Online");
         });
     }
@@ -0,0 +1,86 @@
+package com.giotis_kal.gchatserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the TLS handshakes of the server and how long they took, from the first handshake
+ * byte to the last. Full handshakes and resumed ones are counted apart: during a reconnect
+ * storm most should be resumed, which skips the certificate and the key exchange.
+ *
+ * Recorded by the engines' threads, read by anyone.
+ */
+final class HandshakeMetrics
+{
+    private final LongAdder full = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos how long the handshake took
+     * @param resumption whether an earlier session was resumed
+     */
+    void completed(long nanos, boolean resumption)
+    {
+        (resumption ? resumed : full).increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    void failed()
+    {
+        failed.increment();
+    }
+
+    long getFull()
+    {
+        return full.sum();
+    }
+
+    long getResumed()
+    {
+        return resumed.sum();
+    }
+
+    long getFailed()
+    {
+        return failed.sum();
+    }
+
+    /**
+     * @return the average time of the completed handshakes, in nanoseconds
+     */
+    long getAverageNanos()
+    {
+        long count = full.sum() + resumed.sum();
+        return count == 0 ? 0 : totalNanos.sum() / count;
+    }
+
+    long getMaxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("TLS handshakes: %d full, %d resumed, %d failed, %.1fms average, %.1fms max",
+                getFull(), getResumed(), getFailed(), getAverageNanos() / 1e6, getMaxNanos() / 1e6);
+    }
+
+    /**
+     * Tells a resumed session apart from a new one, which the JSSE API does not do directly:
+     * a resumed session was created before the handshake started.
+     *
+     * @param creationTime the session's SSLSession.getCreationTime()
+     * @param startNanos System.nanoTime() when the handshake started
+     */
+    static boolean isResumed(long creationTime, long startNanos)
+    {
+        long startMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        return creationTime < startMillis;
+    }
+}
@@ -0,0 +1,99 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.Heartbeat;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Finds connections that went silent and evicts the dead ones.
+ *
+ * The engines only stamp a connection whenever they read from it, or whenever its writes
+ * make progress, so that the hot paths stay a single volatile write. Each connection has one
+ * idle check pending on a TimerWheel at any time, due when it would next become idle.
+ *
+ * Nothing read for pingMillis: a framed client is sent a Heartbeat ping, which it answers.
+ * Nothing read for readTimeoutMillis, pings included: the client is considered gone.
+ * A write blocked without progress for writeTimeoutMillis: the client is not reading any more.
+ *
+ * Legacy clients cannot be pinged, so they are only subject to the write timeout (and TCP keepalive).
+ */
+final class IdleReaper
+{
+    static final long DEFAULT_PING_MILLIS = 30 * 1000;
+    static final long DEFAULT_READ_TIMEOUT_MILLIS = 90 * 1000;
+    static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 30 * 1000;
+    private final ClientRegistry clients;
+    private final long pingNanos;
+    private final long readTimeoutNanos;
+    private final long writeTimeoutNanos;
+    private final BiConsumer<ClientConnection, String> onTimeout;
+    private final TimerWheel wheel;
+
+    /**
+     * @param wheel the timer the checks run on
+     * @param clients the registered clients, a connection no longer registered is not checked any more
+     * @param onTimeout called with a dead connection and the reason, expected to disconnect it
+     */
+    IdleReaper(TimerWheel wheel, ClientRegistry clients, long pingMillis, long readTimeoutMillis, long writeTimeoutMillis,
+               BiConsumer<ClientConnection, String> onTimeout)
+    {
+        this.wheel = wheel;
+        this.clients = clients;
+        this.pingNanos = TimeUnit.MILLISECONDS.toNanos(pingMillis);
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        this.onTimeout = onTimeout;
+    }
+
+    /**
+     * Starts checking a newly registered connection
+     */
+    void watch(ClientConnection connection)
+    {
+        wheel.schedule(() -> check(connection), Math.min(pingNanos, writeTimeoutNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs on the wheel's thread: evicts or pings the connection if due, then schedules its next check
+     */
+    private void check(ClientConnection connection)
+    {
+        if (!clients.contains(connection)) return; //disconnected meanwhile
+
+        long now = System.nanoTime();
+        long writePending = connection.getWritePendingSince();
+        if (writePending != 0 && now - writePending >= writeTimeoutNanos)
+        {
+            onTimeout.accept(connection, "write timed out");
+            return;
+        }
+
+        long next = writePending != 0 ? writePending + writeTimeoutNanos - now : writeTimeoutNanos;
+        if (connection.isFramed())
+        {
+            long idle = now - connection.getLastReadNanos();
+            if (idle >= readTimeoutNanos)
+            {
+                onTimeout.accept(connection, "read timed out");
+                return;
+            }
+            if (idle >= pingNanos)
+            {
+                try
+                {
+                    connection.send(new OutboundMessage(Heartbeat.ping())); //a full queue is handled by the write timeout
+                } catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+                next = Math.min(next, Math.min(pingNanos, readTimeoutNanos - idle)); //ping again if still silent
+            }
+            else
+            {
+                next = Math.min(next, pingNanos - idle);
+            }
+        }
+        wheel.schedule(() -> check(connection), next, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,28 @@
+package com.giotis_kal.gchatserver;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A destination for the server's log lines, fed in batches by the EventLog's drain thread.
+ *
+ * @see GChatServer#addLogSink(LogSink)
+ * @see RollingFileSink
+ */
+public interface LogSink
+{
+    /**
+     * Writes a batch of lines. Called on the EventLog's thread only, never concurrently.
+     *
+     * @param lines the lines logged since the previous batch, in order. The sink may keep the list.
+     * @throws IOException in case writing fails, the EventLog reports it and carries on
+     */
+    void write(List<String> lines) throws IOException;
+
+    /**
+     * Releases the sink's resources once the EventLog is closed
+     */
+    default void close() throws IOException
+    {
+    }
+}
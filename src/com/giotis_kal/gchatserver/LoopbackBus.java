@@ -0,0 +1,99 @@
+package com.giotis_kal.gchatserver;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * ClusterBus between nodes running in the same process, such as in tests.
+ *
+ * Every node has its own delivery thread, so a node publishing while holding its
+ * locks never waits for another node's.
+ */
+public final class LoopbackBus implements ClusterBus
+{
+    private final Network network;
+    private final String nodeId;
+    private final ExecutorService inbox;
+    private volatile Handler handler;
+
+    private LoopbackBus(Network network, String nodeId)
+    {
+        this.network = network;
+        this.nodeId = nodeId;
+        this.inbox = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "gchat-loopback-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String nodeId()
+    {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Handler handler)
+    {
+        this.handler = handler;
+        synchronized (network)
+        {
+            for (LoopbackBus peer : network.nodes)
+            {
+                peer.inbox.execute(() -> peer.handler.peerConnected(this::deliver));
+                inbox.execute(() -> handler.peerConnected(peer::deliver));
+            }
+            network.nodes.add(this);
+        }
+    }
+
+    @Override
+    public void publish(ClusterEvent event)
+    {
+        for (LoopbackBus peer : network.nodes)
+            if (peer != this) peer.deliver(event);
+    }
+
+    private void deliver(ClusterEvent event)
+    {
+        try
+        {
+            inbox.execute(() -> handler.eventReceived(event));
+        } catch (RejectedExecutionException e)
+        {
+            //closed meanwhile, like a link going down
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (network)
+        {
+            if (!network.nodes.remove(this)) return;
+            for (LoopbackBus peer : network.nodes) peer.inbox.execute(() -> peer.handler.peerDisconnected(nodeId));
+        }
+        inbox.shutdown();
+    }
+
+    /**
+     * A set of nodes reaching each other
+     */
+    public static final class Network
+    {
+        private final List<LoopbackBus> nodes = new CopyOnWriteArrayList<>();
+
+        /**
+         * @param nodeId the id of the new node, unique within the network
+         * @return the bus of a new node, which joins the network once started
+         */
+        public LoopbackBus node(String nodeId)
+        {
+            return new LoopbackBus(this, nodeId);
+        }
+    }
+}
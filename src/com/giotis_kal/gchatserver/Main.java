@@ -0,0 +1,211 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.TlsContexts;
+import gchatdata.WriteCoalescing;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+
+/**
+ * Entry point of the GChat server.
+ *
+ * Without arguments the Swing GChatServerFrame is displayed, its port and engine set in the frame.
+ * With --headless the server goes online straight away without any UI, logging to the console,
+ * which is how it is meant to be run on servers. The other options all require --headless:
+ *
+ *      java com.giotis_kal.gchatserver.Main --headless [--port 54321] [--engine threaded|virtual|nio] [--log file]
+ *              [--history directory] [--node id --cluster-port 54400 [--cluster-bind address] --peers host:port,...]
+ *              [--coalesce windowMicros:maxBytes] [--idle pingSeconds:readTimeoutSeconds:writeTimeoutSeconds]
+ *              [--rate messagesPerSecond:burst:creditWindow] [--tls keystore.p12] [--metrics port] [--drain seconds]
+ *
+ * With --log the server's log also goes to the given file, rolled over every 10MB.
+ * With --history every message is persisted in the given directory, for up to 1GB and 7 days.
+ * With --cluster-port the server joins a cluster with the nodes listening on the given peers' cluster ports.
+ * It listens to them on the loopback interface unless --cluster-bind gives another address. Every node
+ * must be given the same secret in the GCHAT_CLUSTER_SECRET environment variable, see TcpClusterBus.
+ * With --coalesce writes to clients are batched for up to the given window or byte budget, see WriteCoalescing.
+ * With --idle silent clients are pinged and dead ones dropped after the given times, see IdleReaper (default 30:90:30).
+ * With --rate clients may send messages at the given rate, see FlowControl (default 10:20:16).
+ * With --tls connections are encrypted with the key in the given PKCS12 store, see TlsContexts.
+ * Its password is read from the GCHAT_TLS_PASSWORD environment variable (default "changeit").
+ * With --metrics the server's metrics are served at http://localhost:port/metrics, see ServerMetrics.
+ * They are always available through JMX.
+ * With --drain clients are given up to the given time to leave when the server is stopped, see GChatServer.shutdown(long) (default 5).
+ */
+public class Main
+{
+    private static final int DEFAULT_PORT = 54321;
+    private static final long LOG_FILE_BYTES = 10 * 1024 * 1024;
+    private static final int LOG_FILE_BACKUPS = 5;
+    private static final long HISTORY_BYTES = 1024L * 1024 * 1024;
+    private static final long HISTORY_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final String TLS_PASSWORD_VARIABLE = "GCHAT_TLS_PASSWORD";
+    private static final String DEFAULT_TLS_PASSWORD = "changeit"; //keytool's customary one, for local testing
+    private static final String CLUSTER_SECRET_VARIABLE = "GCHAT_CLUSTER_SECRET"; //no default, peers would be anyone
+
+    public static void main(String[] args)
+    {
+        boolean headless = false;
+        int port = DEFAULT_PORT;
+        ServerEngine engine = ServerEngine.THREADED;
+        String logFile = null;
+        String historyDirectory = null;
+        String nodeId = null;
+        int clusterPort = -1;
+        String clusterBind = null;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        WriteCoalescing coalescing = WriteCoalescing.IMMEDIATE;
+        long[] idleSeconds = null; //ping, read timeout, write timeout
+        String[] rate = null; //messages per second, burst, credit window
+        double ratePerSecond = 0;
+        String keyStore = null;
+        int metricsPort = -1;
+        long drainMillis = GChatServer.DEFAULT_DRAIN_MILLIS;
+
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "--headless":
+                        headless = true;
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--engine":
+                        engine = ServerEngine.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--log":
+                        logFile = args[++i];
+                        break;
+                    case "--history":
+                        historyDirectory = args[++i];
+                        break;
+                    case "--coalesce":
+                        coalescing = WriteCoalescing.parse(args[++i]);
+                        break;
+                    case "--idle":
+                        String[] idle = args[++i].split(":");
+                        if (idle.length != 3) throw new IllegalArgumentException("Expected ping:read:write, got " + args[i]);
+                        idleSeconds = new long[]{Long.parseLong(idle[0]), Long.parseLong(idle[1]), Long.parseLong(idle[2])};
+                        break;
+                    case "--rate":
+                        rate = args[++i].split(":");
+                        if (rate.length != 3) throw new IllegalArgumentException("Expected rate:burst:window, got " + args[i]);
+                        ratePerSecond = Double.parseDouble(rate[0]);
+                        Integer.parseInt(rate[1]); //fail here on bad numbers, with the usage
+                        Integer.parseInt(rate[2]);
+                        break;
+                    case "--tls":
+                        keyStore = args[++i];
+                        break;
+                    case "--metrics":
+                        metricsPort = Integer.parseInt(args[++i]);
+                        break;
+                    case "--drain":
+                        drainMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                        break;
+                    case "--node":
+                        nodeId = args[++i];
+                        break;
+                    case "--cluster-port":
+                        clusterPort = Integer.parseInt(args[++i]);
+                        break;
+                    case "--cluster-bind":
+                        clusterBind = args[++i];
+                        break;
+                    case "--peers":
+                        for (String peer : args[++i].split(","))
+                        {
+                            int colon = peer.lastIndexOf(':');
+                            peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                }
+            }
+        } catch (RuntimeException e) //bad number, engine name or missing value
+        {
+            System.err.println("Usage: Main [--headless] [--port number] [--engine threaded|virtual|nio] [--log file] [--history directory]"
+                    + " [--node id --cluster-port number [--cluster-bind address] --peers host:port,...] [--coalesce windowMicros:maxBytes]"
+                    + " [--idle pingSeconds:readTimeoutSeconds:writeTimeoutSeconds] [--rate messagesPerSecond:burst:creditWindow]"
+                    + " [--tls keystore.p12] [--metrics port] [--drain seconds]");
+            System.exit(1);
+        }
+
+        if (!headless)
+        {
+            if (args.length > 0) //the frame has no way of applying them
+            {
+                System.err.println("Options other than --headless require --headless, the Swing UI only sets the port and engine");
+                System.exit(1);
+            }
+            SwingUtilities.invokeLater(Main::displayGChatServerFrame);
+            return;
+        }
+
+        GChatServer server = new GChatServer(port, engine);
+        if (clusterPort > 0)
+        {
+            String secret = System.getenv(CLUSTER_SECRET_VARIABLE);
+            if (secret == null || secret.isEmpty())
+            {
+                System.err.println("--cluster-port requires the cluster's shared secret in " + CLUSTER_SECRET_VARIABLE);
+                System.exit(1);
+            }
+            InetSocketAddress bindAddress = clusterBind != null ? new InetSocketAddress(clusterBind, clusterPort)
+                    : new InetSocketAddress(InetAddress.getLoopbackAddress(), clusterPort);
+            server.setClusterBus(new TcpClusterBus(nodeId != null ? nodeId : "node-" + port, bindAddress, peers,
+                    secret.getBytes(StandardCharsets.UTF_8)));
+        }
+        server.setWriteCoalescing(coalescing);
+        if (idleSeconds != null) server.setIdleTimeouts(idleSeconds[0] * 1000, idleSeconds[1] * 1000, idleSeconds[2] * 1000);
+        if (rate != null) server.setFlowControl(ratePerSecond, Integer.parseInt(rate[1]), Integer.parseInt(rate[2]));
+        if (metricsPort >= 0) server.enableMetricsEndpoint(metricsPort);
+        runHeadless(server, logFile, historyDirectory, keyStore, drainMillis);
+    }
+
+    /**
+     * Puts a server online on the calling thread, until the JVM is shut down, e.g. by SIGTERM,
+     * upon which its connections are drained
+     */
+    private static void runHeadless(GChatServer server, String logFile, String historyDirectory, String keyStore, long drainMillis)
+    {
+        server.addListener(msg -> System.out.println(">>>" + msg));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.shutdown(drainMillis), "gchat-shutdown"));
+
+        try
+        {
+            if (logFile != null) server.addLogSink(new RollingFileSink(Paths.get(logFile), LOG_FILE_BYTES, LOG_FILE_BACKUPS));
+            if (historyDirectory != null) server.enableMessageLog(Paths.get(historyDirectory), HISTORY_BYTES, HISTORY_MILLIS);
+            if (keyStore != null)
+            {
+                String password = System.getenv().getOrDefault(TLS_PASSWORD_VARIABLE, DEFAULT_TLS_PASSWORD);
+                server.enableTls(TlsContexts.fromKeyStore(Paths.get(keyStore), password.toCharArray()));
+            }
+            server.putOnline();
+        } catch (IOException e)
+        {
+            System.err.println("Could not go online: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void displayGChatServerFrame()
+    {
+        GChatServerFrame serverApp = new GChatServerFrame();
+        serverApp.setSize(640, 480);
+        serverApp.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+        serverApp.setLocationByPlatform(true);
+        serverApp.setVisible(true);
+    }
+}
@@ -0,0 +1,236 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.ChatMessage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Every message broadcast by the server, numbered in the order it was broadcast.
+ *
+ * The most recent messages of each room are kept in memory, for replaying to clients entering
+ * the room, so that a busy room never evicts the history of quiet ones. Only the rooms most
+ * recently posted in are kept, which bounds the memory used however many rooms clients create.
+ * Tails are bounded in bytes as well as in messages, by ChatMessage.sizeBound(), so that long
+ * messages cannot pin more memory than short ones.
+ * When a SegmentedLog is attached, every message is also persisted, off the broadcasting
+ * thread, and the in-memory tails are recovered from it on startup.
+ */
+final class MessageHistory
+{
+    static final int ROOM_TAIL_CAPACITY = 1024; //messages kept in memory per room
+    static final int MAX_ROOM_TAILS = 128; //rooms whose messages are kept, the least recently active are forgotten first
+    static final long ROOM_TAIL_BYTES = 8 * 1024 * 1024; //per room, its oldest messages are evicted first
+    static final long MAX_TAIL_BYTES = 64 * 1024 * 1024; //across rooms, the least recently active are forgotten first
+    static final int RECOVERED_CAPACITY = 16 * 1024; //most recent messages read back from the log on startup
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, RoomTail> tails = new LinkedHashMap<>(16, 0.75f, true); //in access order, guarded by lock
+    private long tailBytes; //of every room's tail, guarded by lock
+    private long missingUpTo; //messages up to this sequence may be missing from rooms: not recovered, or their room forgotten
+    private long nextSequence = 1;
+    private SegmentedLog log; //null unless persistence is enabled
+
+    /**
+     * Opens a SegmentedLog and continues its sequence. Must be called before any message is appended.
+     *
+     * @throws IOException in case the log cannot be opened
+     */
+    void open(Path directory, long segmentBytes, long retentionBytes, long retentionMillis) throws IOException
+    {
+        List<SegmentedLog.Record> recovered = new ArrayList<>();
+        log = new SegmentedLog(directory, segmentBytes, retentionBytes, retentionMillis, recovered, RECOVERED_CAPACITY);
+        nextSequence = log.nextSequence();
+        missingUpTo = recovered.isEmpty() ? nextSequence - 1 : recovered.get(0).sequence - 1; //older ones stay on disk only
+        for (SegmentedLog.Record record : recovered) add(record);
+        log.start();
+    }
+
+    /**
+     * Numbers a message and records it. Never blocks on disk.
+     *
+     * @return the message's sequence number
+     */
+    long append(ChatMessage msg)
+    {
+        lock.lock();
+        try
+        {
+            msg.setSequence(nextSequence++);
+            SegmentedLog.Record record = new SegmentedLog.Record(msg.getSequence(), System.currentTimeMillis(), msg);
+            add(record);
+            if (log != null) log.append(record);
+            return record.sequence;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a record to the tail of its room, evicting the room's oldest if it is full and the
+     * least recently active rooms if there are too many or they take too many bytes. Must hold
+     * lock, or be opening.
+     */
+    private void add(SegmentedLog.Record record)
+    {
+        String room = record.message.getRoom();
+        RoomTail tail = tails.get(room);
+        if (tail == null)
+        {
+            if (tails.size() == MAX_ROOM_TAILS) forgetLeastRecent();
+            tail = new RoomTail(missingUpTo);
+            tails.put(room, tail);
+        }
+        tailBytes += tail.add(record);
+        while (tailBytes > MAX_TAIL_BYTES && tails.size() > 1) forgetLeastRecent(); //never the room just posted in, it is the most recent
+    }
+
+    private void forgetLeastRecent()
+    {
+        Iterator<RoomTail> eldest = tails.values().iterator();
+        RoomTail forgotten = eldest.next();
+        eldest.remove();
+        tailBytes -= forgotten.bytes;
+        if (!forgotten.records.isEmpty()) missingUpTo = Math.max(missingUpTo, forgotten.records.peekLast().sequence);
+    }
+
+    /**
+     * @param room the room the messages were posted in
+     * @param count the maximum number of messages to return
+     * @return the most recent messages of the room still in memory, oldest first
+     */
+    ArrayList<ChatMessage> recent(String room, int count)
+    {
+        ArrayList<ChatMessage> messages = new ArrayList<>(Math.min(count, 64));
+        lock.lock();
+        try
+        {
+            RoomTail tail = tails.get(room);
+            if (tail == null) return messages;
+            for (Iterator<SegmentedLog.Record> it = tail.records.descendingIterator(); it.hasNext() && messages.size() < count; )
+                messages.add(it.next().message);
+        } finally
+        {
+            lock.unlock();
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    /**
+     * @param room the room the messages were posted in
+     * @param after the sequence of the last message already received
+     * @return the messages of the room still in memory that came after the given one, oldest first
+     */
+    ArrayList<ChatMessage> since(String room, long after)
+    {
+        ArrayList<ChatMessage> messages = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            RoomTail tail = tails.get(room);
+            if (tail == null) return messages;
+            for (Iterator<SegmentedLog.Record> it = tail.records.descendingIterator(); it.hasNext(); )
+            {
+                SegmentedLog.Record record = it.next();
+                if (record.sequence <= after) break;
+                messages.add(record.message);
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    /**
+     * @return whether every message of the room after the given sequence is still in memory
+     */
+    boolean covers(String room, long after)
+    {
+        lock.lock();
+        try
+        {
+            RoomTail tail = tails.get(room);
+            return after >= (tail == null ? missingUpTo : tail.evictedUpTo);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the sequence of the last message appended, 0 if none
+     */
+    long lastSequence()
+    {
+        lock.lock();
+        try
+        {
+            return nextSequence - 1;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of messages that could not be persisted because the disk could not keep up
+     */
+    long dropped()
+    {
+        return log == null ? 0 : log.dropped();
+    }
+
+    /**
+     * Persists whatever is still pending and closes the log, if any
+     */
+    void close(long timeoutMillis)
+    {
+        if (log != null) log.close(timeoutMillis);
+    }
+
+    /**
+     * The most recent messages of a single room, oldest first
+     */
+    private static final class RoomTail
+    {
+        private final ArrayDeque<SegmentedLog.Record> records = new ArrayDeque<>();
+        private long evictedUpTo; //messages of the room up to this sequence may no longer be in records
+        private long bytes; //of the messages in records
+
+        RoomTail(long evictedUpTo)
+        {
+            this.evictedUpTo = evictedUpTo;
+        }
+
+        /**
+         * Adds a record, evicting the oldest ones while there are too many or they take too many
+         * bytes. The record itself is always kept.
+         *
+         * @return the change in the bytes of the tail
+         */
+        long add(SegmentedLog.Record record)
+        {
+            long before = bytes;
+            records.addLast(record);
+            bytes += record.message.sizeBound();
+            while (records.size() > ROOM_TAIL_CAPACITY || (bytes > ROOM_TAIL_BYTES && records.size() > 1))
+            {
+                SegmentedLog.Record evicted = records.removeFirst();
+                evictedUpTo = evicted.sequence;
+                bytes -= evicted.message.sizeBound();
+            }
+            return bytes - before;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.LatencyHistogram;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ReentrantLock that records how long it is held, from the outermost lock() to the matching
+ * unlock(). Every broadcast lock is one, so that the time clients' messages wait on each other
+ * shows in the server's metrics.
+ *
+ * Only lock() and unlock() are timed; the server never uses tryLock() or conditions on these.
+ */
+final class MeteredLock extends ReentrantLock
+{
+    private static final long serialVersionUID = 1L;
+
+    private final transient LatencyHistogram holds;
+    private long acquiredNanos; //guarded by the lock itself
+
+    /**
+     * @param holds where the hold times are recorded, shared by all locks of a kind
+     */
+    MeteredLock(LatencyHistogram holds)
+    {
+        this.holds = holds;
+    }
+
+    @Override
+    public void lock()
+    {
+        super.lock();
+        if (getHoldCount() == 1) acquiredNanos = System.nanoTime();
+    }
+
+    @Override
+    public void unlock()
+    {
+        if (getHoldCount() == 1) holds.record(System.nanoTime() - acquiredNanos);
+        super.unlock();
+    }
+}
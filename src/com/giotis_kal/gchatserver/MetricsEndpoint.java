@@ -0,0 +1,74 @@
+package com.giotis_kal.gchatserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the server's metrics as plain text at http://localhost:&lt;port&gt;/metrics, in the
+ * Prometheus text format, so that they can be scraped or simply looked at with curl.
+ *
+ * Built on the JDK's own HttpServer, on a single thread of its own. It only listens on the
+ * loopback interface: the metrics name users and addresses, put a proxy in front to scrape
+ * them from elsewhere.
+ */
+final class MetricsEndpoint
+{
+    static final String PATH = "/metrics";
+    private static final int BACKLOG = 16;
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer http;
+
+    /**
+     * Starts serving right away
+     *
+     * @param port the local port to listen on
+     * @throws IOException in case the port is in use
+     */
+    MetricsEndpoint(int port, ServerMetrics metrics) throws IOException
+    {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        http.createContext(PATH, exchange -> serve(exchange, metrics));
+        http.start(); //without an executor, requests are served on the dispatcher thread
+    }
+
+    private static void serve(HttpExchange exchange, ServerMetrics metrics) throws IOException
+    {
+        try
+        {
+            if (!"GET".equals(exchange.getRequestMethod()))
+            {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(4096);
+            metrics.writeText(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write(body);
+            }
+        } finally
+        {
+            exchange.close();
+        }
+    }
+
+    int getPort()
+    {
+        return http.getAddress().getPort();
+    }
+
+    void close()
+    {
+        http.stop(0);
+    }
+}
@@ -0,0 +1,563 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.FrameIO;
+import gchatdata.MessageCodec;
+import gchatdata.MessageDecoder;
+import gchatdata.WriteCoalescing;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Non-blocking server engine built on java.nio Selectors.
+ *
+ * Accepted channels are spread round-robin over a small fixed set of EventLoops, each
+ * one a single thread multiplexing all of its connections on one Selector, so the number
+ * of threads no longer grows with the number of connected users.
+ *
+ * Framed clients are served entirely by the event loops. Legacy clients, which send one
+ * endless ObjectOutputStream that cannot be cut into frames, are switched back to blocking
+ * mode and handed over to a ConnectionHandler.
+ *
+ * With a WriteCoalescing window, a connection's first queued frame schedules its flush at the
+ * end of the window rather than right away. The loop's selector timeout serves as the timer,
+ * so windows below a millisecond are rounded up to one.
+ *
+ * With TLS every channel is wrapped in an SslChannel. Legacy clients cannot be handed over
+ * then, and are refused: they never spoke TLS anyway.
+ *
+ * @see ServerEngine#NIO
+ */
+class NioEngine
+{
+    static final int DEFAULT_LOOPS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_GATHER = 64; //frames per gathering write
+    private static final long SHUTDOWN_GRACE_MILLIS = 2000; //time given to the loops to close what is left after draining
+
+    private final GChatServer server;
+    private final EventLoop[] loops;
+    private final WriteCoalescing coalescing;
+    private final SSLContext tls; //null for plain connections
+    private final ServerMetrics metrics;
+    private final HandshakeMetrics handshakes;
+    private int next; //round-robin index, only touched by the accepting thread
+
+    /**
+     * @param tls the context encrypting every connection, null for none
+     * @param metrics where traffic, encoding times and TLS handshakes are recorded
+     */
+    NioEngine(GChatServer server, int loopCount, WriteCoalescing coalescing, SSLContext tls, ServerMetrics metrics)
+    {
+        this.server = server;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        this.coalescing = coalescing;
+        this.tls = tls;
+        this.metrics = metrics;
+        this.handshakes = metrics.getHandshakes();
+    }
+
+    /**
+     * Opens the selectors and starts the event loop threads
+     *
+     * @throws IOException if a Selector cannot be opened
+     */
+    void start() throws IOException
+    {
+        for (int i = 0; i < loops.length; i++)
+        {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "gchat-nio-" + i);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands a freshly accepted channel to the next event loop
+     *
+     * @param channel the accepted client channel
+     * @throws IOException in case the channel cannot be switched to non-blocking mode
+     */
+    void register(SocketChannel channel) throws IOException
+    {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true); //batching is up to the loop, see WriteCoalescing
+        EventLoop loop = loops[next];
+        next = (next + 1) % loops.length;
+        loop.execute(() -> loop.add(channel));
+    }
+
+    /**
+     * Lets every loop flush its pending writes, then closes all remaining connections
+     * once they are idle or the grace period runs out.
+     */
+    void shutdown()
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_GRACE_MILLIS);
+        for (EventLoop loop : loops)
+            if (loop != null) loop.execute(() -> loop.stopAt(deadline));
+    }
+
+    /**
+     * A single selector thread
+     */
+    private class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; //reused by every flush on this loop
+        private final ArrayDeque<NioConnection> delayed = new ArrayDeque<>(); //flushes waiting for their window to end, in deadline order
+
+        private boolean stopping;
+        private long deadline;
+
+        EventLoop() throws IOException
+        {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Queues a task to be run on this loop's thread and wakes the selector up
+         */
+        void execute(Runnable task)
+        {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Flushes a connection once the coalescing window is over. Runs on the loop thread.
+         */
+        void flushLater(NioConnection connection)
+        {
+            connection.flushDeadline = System.nanoTime() + coalescing.getWindowNanos();
+            delayed.add(connection); //every window has the same length, so the deque stays sorted
+        }
+
+        /**
+         * @return how long select() may block before the next delayed flush is due, 0 for no limit
+         */
+        private long selectTimeout()
+        {
+            if (delayed.isEmpty()) return 0;
+            long nanos = delayed.peek().flushDeadline - System.nanoTime();
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999_999)); //round up, 0 would mean forever
+        }
+
+        void stopAt(long deadline)
+        {
+            this.stopping = true;
+            this.deadline = deadline;
+        }
+
+        void add(SocketChannel channel)
+        {
+            try
+            {
+                NioConnection connection = new NioConnection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (!stopping || (!selector.keys().isEmpty() && System.nanoTime() < deadline))
+                {
+                    selector.select(stopping ? 100 : selectTimeout());
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext())
+                    {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+
+                        if (key.isValid() && key.isWritable()) connection.flush();
+                        if (key.isValid() && key.isReadable()) connection.read();
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+
+                    long now = System.nanoTime();
+                    while (!delayed.isEmpty() && delayed.peek().flushDeadline - now <= 0) delayed.poll().flush();
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                for (SelectionKey key : selector.keys())
+                    if (key.attachment() instanceof NioConnection) ((NioConnection) key.attachment()).close();
+                closeQuietly(selector);
+            }
+        }
+    }
+
+    /**
+     * A client connection owned by one EventLoop. Reads, writes and state changes all
+     * happen on the loop thread, send() may be called from anywhere.
+     *
+     * Sent frames wait in a bounded OutboundQueue. The loop moves them to the inFlight
+     * list right before writing, so that DROP_OLDEST never discards a half-written frame.
+     */
+    private class NioConnection extends ClientConnection
+    {
+        private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SslChannel ssl; //null for plain connections
+        private SelectionKey key;
+
+        private ByteBuffer readBuffer;
+        private MessageCodec codec; //null until the handshake is read
+        private MessageDecoder decoder; //the codec's, for this connection only
+        private boolean joined; //whether a user joined or resumed their session on this connection
+
+        private final OutboundQueue<ByteBuffer> writeQueue = server.newOutboundQueue();
+        private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>(MAX_GATHER);
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicInteger unflushedBytes = new AtomicInteger(); //queued since the last flush, for the coalescing budget
+        private long flushDeadline; //when a delayed flush is due, see EventLoop.flushLater()
+        private volatile int inFlightCount; //inFlight.size(), published for getQueueDepth()
+        private boolean closeWhenFlushed;
+        private volatile boolean closed;
+
+        NioConnection(EventLoop loop, SocketChannel channel) throws IOException
+        {
+            this.loop = loop;
+            this.channel = channel;
+            if (tls != null)
+            {
+                SSLEngine engine = tls.createSSLEngine();
+                engine.setUseClientMode(false);
+                this.ssl = new SslChannel(channel, engine, handshakes);
+                this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE + ssl.applicationBufferSize());
+                server.schedule(() -> loop.execute(this::handshakeTimedOut), GChatServer.TLS_HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            else
+            {
+                this.ssl = null;
+                this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            }
+        }
+
+        @Override
+        boolean send(OutboundMessage msg) throws IOException
+        {
+            if (closed) return true; //the loop is about to unregister us
+            ByteBuffer frame = msg.directFrame(codec, metrics);
+            if (!writeQueue.offer(frame, msg.isDroppable())) return false;
+
+            if (coalescing.isImmediate())
+            {
+                if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+            }
+            else if (flushScheduled.compareAndSet(false, true))
+            {
+                unflushedBytes.set(frame.remaining());
+                loop.execute(() -> loop.flushLater(this));
+            }
+            else if (unflushedBytes.addAndGet(frame.remaining()) >= coalescing.getMaxBytes())
+            {
+                loop.execute(this::flush); //budget used up, the delayed flush finds nothing left to do
+            }
+            return true;
+        }
+
+        @Override
+        void disconnect()
+        {
+            loop.execute(this::close);
+        }
+
+        @Override
+        int getQueueDepth()
+        {
+            return writeQueue.depth() + inFlightCount;
+        }
+
+        @Override
+        SocketAddress getRemoteAddress()
+        {
+            return channel.socket().getRemoteSocketAddress();
+        }
+
+        /**
+         * Reads whatever is available and dispatches every complete frame
+         */
+        private void read()
+        {
+            try
+            {
+                do
+                {
+                    readAvailable();
+                } while (ssl != null && !closed && ssl.hasBufferedInput()); //decrypted as far as readBuffer had room
+
+                if (ssl != null && !closed && ssl.hasPendingOutput())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE); //handshake records, see flush()
+            }
+            catch (IOException | RuntimeException e)
+            {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        private void readAvailable() throws IOException
+        {
+            if (ssl != null && readBuffer.remaining() < ssl.applicationBufferSize()) reserveReadBuffer();
+            int read = ssl != null ? ssl.read(readBuffer) : channel.read(readBuffer);
+            if (read < 0)
+            {
+                close();
+                return;
+            }
+            if (read > 0)
+            {
+                readProgress();
+                metrics.bytesIn(read);
+            }
+
+            readBuffer.flip();
+            if (codec == null && !readHandshake()) return;
+
+            while (readBuffer.remaining() >= FrameIO.HEADER_LENGTH && !closed)
+            {
+                int length = readBuffer.getInt(readBuffer.position());
+                FrameIO.checkLength(length);
+
+                int frameLength = FrameIO.HEADER_LENGTH + length;
+                if (readBuffer.remaining() < frameLength)
+                {
+                    if (frameLength > readBuffer.capacity()) growReadBuffer(frameLength);
+                    break;
+                }
+
+                int start = readBuffer.position() + FrameIO.HEADER_LENGTH;
+                Object msg = decoder.decode(readBuffer.array(), readBuffer.arrayOffset() + start, length); //in place
+                readBuffer.position(start + length);
+                dispatch(msg);
+            }
+            readBuffer.compact();
+        }
+
+        /**
+         * Reads the first 4 bytes of the connection, with readBuffer in read mode.
+         *
+         * @return true if a framed codec was selected, false if more bytes are needed
+         *         or the connection was handed over to a blocking ConnectionHandler
+         */
+        private boolean readHandshake() throws IOException
+        {
+            if (readBuffer.remaining() < FrameIO.HEADER_LENGTH)
+            {
+                readBuffer.compact();
+                return false;
+            }
+
+            int header = readBuffer.getInt(readBuffer.position());
+            if (FrameIO.isLegacyHeader(header))
+            {
+                if (ssl != null) throw new IOException("Legacy clients cannot use TLS");
+                handOver();
+                return false;
+            }
+
+            codec = MessageCodec.forMagic(header);
+            if (codec == null) throw new IOException("Unknown handshake: " + Integer.toHexString(header));
+            decoder = codec.newDecoder();
+
+            readBuffer.position(readBuffer.position() + FrameIO.HEADER_LENGTH);
+            server.clientConnected(this);
+            return true;
+        }
+
+        /**
+         * Switches a legacy connection back to blocking mode and gives it to a ConnectionHandler,
+         * along with the bytes already read from it
+         */
+        private void handOver() throws IOException
+        {
+            byte[] prefix = new byte[readBuffer.remaining()];
+            readBuffer.get(prefix);
+
+            key.cancel();
+            closed = true;
+            loop.execute(() -> {
+                try
+                {
+                    loop.selector.selectNow(); //deregisters the cancelled key
+                    channel.configureBlocking(true);
+                    server.serveBlocking(channel.socket(), new SequenceInputStream(
+                            new ByteArrayInputStream(prefix), channel.socket().getInputStream()));
+                } catch (IOException e)
+                {
+                    e.printStackTrace();
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /**
+         * Closes a connection that did not get through the TLS handshake and the codec handshake in time
+         */
+        private void handshakeTimedOut()
+        {
+            if (codec != null || closed) return;
+            if (ssl.isHandshaking()) handshakes.failed();
+            close();
+        }
+
+        /**
+         * Replaces readBuffer (in write mode) with one that has room for a full TLS record after the bytes it holds
+         */
+        private void reserveReadBuffer()
+        {
+            ByteBuffer bigger = ByteBuffer.allocate(readBuffer.position() + ssl.applicationBufferSize());
+            readBuffer.flip();
+            readBuffer = bigger.put(readBuffer);
+        }
+
+        /**
+         * Replaces readBuffer (in read mode) with a larger one holding the same bytes
+         */
+        private void growReadBuffer(int minCapacity)
+        {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(minCapacity, readBuffer.capacity() * 2));
+            bigger.put(readBuffer).flip();
+            readBuffer = bigger;
+        }
+
+        private void dispatch(Object msg) throws IOException
+        {
+            metrics.messageIn();
+            if (!joined)
+            {
+                joined = server.userJoined(this, msg);
+            }
+            else if (!server.messageReceived(this, msg))
+            {
+                //stop reading, close as soon as the Poison echo (if any) is written out
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeWhenFlushed = true;
+                flush();
+            }
+        }
+
+        /**
+         * Writes as much of the write queue as the socket accepts, registering for OP_WRITE
+         * if some of it is left over. Queued frames are written with gathering writes of up
+         * to MAX_GATHER buffers at a time. Runs on the loop thread.
+         */
+        private void flush()
+        {
+            if (closed) return;
+            unflushedBytes.set(0);
+
+            try
+            {
+                if (ssl != null && !ssl.flushPending())
+                {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE); //records encrypted earlier come first
+                    return;
+                }
+
+                ByteBuffer[] batch = loop.gather;
+                long written = 0;
+                while (true)
+                {
+                    ByteBuffer frame;
+                    while (inFlight.size() < MAX_GATHER && (frame = writeQueue.poll()) != null) inFlight.add(frame);
+                    if (inFlight.isEmpty()) break;
+
+                    int count = 0;
+                    for (ByteBuffer pending : inFlight) batch[count++] = pending;
+                    written += ssl != null ? ssl.write(batch, 0, count) : channel.write(batch, 0, count);
+                    Arrays.fill(batch, 0, count, null);
+
+                    while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining())
+                    {
+                        inFlight.poll();
+                        metrics.messageOut();
+                    }
+                    if (!inFlight.isEmpty()) break; //socket buffer full
+                }
+                inFlightCount = inFlight.size();
+                if (written > 0) metrics.bytesOut(written);
+
+                if (!inFlight.isEmpty() || ssl != null && ssl.hasPendingOutput())
+                {
+                    if (written > 0 || getWritePendingSince() == 0) writeProgress(true);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                if (written > 0) writeProgress(false);
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                flushScheduled.set(false);
+                if (!writeQueue.isEmpty() && flushScheduled.compareAndSet(false, true))
+                    loop.execute(this::flush); //raced with a concurrent send()
+                else if (closeWhenFlushed)
+                    close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        /**
+         * Closes the channel and lets the server know the client is gone
+         */
+        private void close()
+        {
+            if (closed) return;
+            closed = true;
+
+            key.cancel();
+            if (ssl != null) ssl.close();
+            closeQuietly(channel);
+            if (codec != null) server.clientDisconnected(this);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.ChatMessage;
+import gchatdata.FrameIO;
+import gchatdata.MessageCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A message on its way out to one or more clients.
+ *
+ * The message is encoded at most once per codec, no matter how many connections it is
+ * sent to. Every recipient then writes the same immutable frame: stream connections
+ * the shared byte array, NIO connections their own view of a shared direct buffer.
+ * Encoding is timed into the server's metrics, once per codec like the encoding itself.
+ */
+final class OutboundMessage
+{
+    private final Object msg;
+    private final Map<MessageCodec, Frame> frames = new IdentityHashMap<>(4);
+
+    OutboundMessage(Object msg)
+    {
+        this.msg = msg;
+    }
+
+    /**
+     * @return the message itself, for legacy object stream connections
+     */
+    Object message()
+    {
+        return msg;
+    }
+
+    /**
+     * @return whether a full outbound queue may drop the message, see OverflowPolicy.DROP_OLDEST.
+     *         Only chat messages may be: the client can do without one, not without a Credit,
+     *         Session, presence update or Poison.
+     */
+    boolean isDroppable()
+    {
+        return msg instanceof ChatMessage;
+    }
+
+    /**
+     * @param metrics where the time taken is recorded, if the message still has to be encoded
+     * @return the whole frame (length header and payload), must not be modified
+     * @throws IOException in case the message cannot be encoded
+     */
+    byte[] frame(MessageCodec codec, ServerMetrics metrics) throws IOException
+    {
+        return encoded(codec, metrics).bytes;
+    }
+
+    /**
+     * @param metrics where the time taken is recorded, if the message still has to be encoded
+     * @return a view of the shared direct buffer holding the whole frame, with its own position
+     * @throws IOException in case the message cannot be encoded
+     */
+    ByteBuffer directFrame(MessageCodec codec, ServerMetrics metrics) throws IOException
+    {
+        Frame frame = encoded(codec, metrics);
+        synchronized (frame)
+        {
+            if (frame.direct == null)
+            {
+                ByteBuffer direct = ByteBuffer.allocateDirect(frame.bytes.length);
+                direct.put(frame.bytes).flip();
+                frame.direct = direct.asReadOnlyBuffer();
+            }
+            return frame.direct.duplicate();
+        }
+    }
+
+    private Frame encoded(MessageCodec codec, ServerMetrics metrics) throws IOException
+    {
+        synchronized (frames)
+        {
+            Frame frame = frames.get(codec);
+            if (frame == null)
+            {
+                long start = System.nanoTime();
+                byte[] payload = codec.encode(msg);
+                byte[] bytes = new byte[FrameIO.HEADER_LENGTH + payload.length];
+                ByteBuffer.wrap(bytes).putInt(payload.length).put(payload);
+                metrics.encoded(System.nanoTime() - start);
+
+                frame = new Frame(bytes);
+                frames.put(codec, frame);
+            }
+            return frame;
+        }
+    }
+
+    private static final class Frame
+    {
+        private final byte[] bytes;
+        private ByteBuffer direct; //created on first use by an NIO connection
+
+        Frame(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+    }
+}
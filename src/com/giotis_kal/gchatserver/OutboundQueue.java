@@ -0,0 +1,179 @@
+package com.giotis_kal.gchatserver;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of messages waiting to be written to one client.
+ *
+ * Any thread may offer, a single writer drains it. When the queue is full the
+ * OverflowPolicy decides whether the oldest chat message is dropped or the offer is refused,
+ * in which case the caller disconnects the client.
+ *
+ * Only items offered as droppable are ever dropped. The others, such as Credit, Session or
+ * PresenceDelta frames, carry state the client cannot do without: they are queued even over
+ * capacity, and a client that stops reading altogether is left to the IdleReaper.
+ *
+ * @param <T> the queued item, an OutboundMessage or an already encoded frame
+ */
+final class OutboundQueue<T>
+{
+    private static final Object CLOSED = new Object(); //marks the end of the queue for take()
+
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    OutboundQueue(int capacity, OverflowPolicy policy)
+    {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues an item, applying the overflow policy if the queue is full. With DROP_OLDEST the
+     * oldest droppable item is discarded, or this one if it is droppable and no older one is.
+     *
+     * @param droppable whether DROP_OLDEST may discard the item, see OutboundMessage.isDroppable()
+     * @return false if the queue is full and the client should be disconnected
+     */
+    boolean offer(T item, boolean droppable)
+    {
+        if (depth.incrementAndGet() > capacity)
+        {
+            if (policy == OverflowPolicy.DISCONNECT)
+            {
+                depth.decrementAndGet();
+                return false;
+            }
+            if (dropOldest()) dropped.incrementAndGet();
+            else if (droppable) //nothing but kept items queued, drop this one instead
+            {
+                depth.decrementAndGet();
+                dropped.incrementAndGet();
+                return true;
+            }
+            //else a kept item is queued over capacity
+        }
+        queue.add(droppable || policy == OverflowPolicy.DISCONNECT ? item : new Kept(item));
+        return true;
+    }
+
+    /**
+     * Removes the oldest droppable item still queued
+     *
+     * @return false if there was none
+     */
+    private boolean dropOldest()
+    {
+        for (Object item : queue)
+        {
+            if (item instanceof Kept || item == CLOSED) continue;
+            if (queue.remove(item)) //unless the writer just took it
+            {
+                depth.decrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the oldest item, or null if the queue is empty or closed
+     */
+    T poll()
+    {
+        Object item = queue.poll();
+        if (item == CLOSED)
+        {
+            queue.add(CLOSED); //keep the queue closed for the writer
+            return null;
+        }
+        return taken(item);
+    }
+
+    /**
+     * Waits up to the given time for an item
+     *
+     * @return the oldest item, or null if none arrived in time or the queue is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    T poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        Object item = queue.poll(timeout, unit);
+        if (item == CLOSED)
+        {
+            queue.add(CLOSED);
+            return null;
+        }
+        return taken(item);
+    }
+
+    /**
+     * Blocks until an item is available
+     *
+     * @return the oldest item, or null once the queue is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    T take() throws InterruptedException
+    {
+        Object item = queue.take();
+        return item == CLOSED ? null : taken(item);
+    }
+
+    /**
+     * Lets the writer finish whatever is already queued, then makes take() return null
+     */
+    void close()
+    {
+        queue.add(CLOSED);
+    }
+
+    boolean isEmpty()
+    {
+        return depth.get() == 0;
+    }
+
+    /**
+     * @return the number of items waiting to be written
+     */
+    int depth()
+    {
+        return depth.get();
+    }
+
+    /**
+     * @return the number of droppable items discarded by DROP_OLDEST so far
+     */
+    long dropped()
+    {
+        return dropped.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private T taken(Object item)
+    {
+        if (item == null) return null;
+        depth.decrementAndGet();
+        return (T) (item instanceof Kept ? ((Kept) item).item : item);
+    }
+
+    /**
+     * Wraps the items DROP_OLDEST must never discard, so that they can be told apart from the
+     * others when shedding. Other policies queue every item as it is.
+     */
+    private static final class Kept
+    {
+        private final Object item;
+
+        Kept(Object item)
+        {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.giotis_kal.gchatserver;
+
+/**
+ * What to do when a client's outbound queue is full, i.e. when the client reads
+ * slower than the room is talking.
+ */
+public enum OverflowPolicy
+{
+    /**
+     * Discard the oldest queued chat message to make room for the new one. Control messages,
+     * such as credit, sessions and presence updates, are never discarded.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Disconnect the slow consumer, leaving its queue untouched
+     */
+    DISCONNECT
+}
@@ -0,0 +1,102 @@
+package com.giotis_kal.gchatserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The list of usernames online, in order of arrival. Names are unique on each node, see
+ * ClientRegistry, but users of different nodes may still pick the same one.
+ *
+ * In a cluster, the users of every other node are kept apart, so that they can be
+ * dropped all at once when that node goes away. The list shown to clients is the
+ * users of this node followed by those of the others.
+ *
+ * Thread-safe, none of its methods block.
+ */
+final class PresenceStore
+{
+    private final ArrayList<String> usernames = new ArrayList<>(); //users of this node
+    private final Map<String, ArrayList<String>> remote = new HashMap<>(); //node id to the users of that node
+
+    synchronized void add(String username)
+    {
+        usernames.add(username);
+    }
+
+    /**
+     * Removes one occurrence of the username
+     */
+    synchronized void remove(String username)
+    {
+        usernames.remove(username);
+    }
+
+    synchronized void addRemote(String node, String username)
+    {
+        remote.computeIfAbsent(node, key -> new ArrayList<>()).add(username);
+    }
+
+    /**
+     * @return whether the node had such a user
+     */
+    synchronized boolean removeRemote(String node, String username)
+    {
+        ArrayList<String> users = remote.get(node);
+        return users != null && users.remove(username);
+    }
+
+    /**
+     * Replaces the users of a node with the given ones
+     *
+     * @param joined receives the users that were not listed for the node before
+     * @param left receives the users that are no longer listed for the node
+     */
+    synchronized void replaceRemote(String node, List<String> users, List<String> joined, List<String> left)
+    {
+        ArrayList<String> previous = remote.put(node, new ArrayList<>(users));
+        left.addAll(previous == null ? new ArrayList<>() : previous);
+        for (String username : users)
+        {
+            if (!left.remove(username)) joined.add(username);
+        }
+    }
+
+    /**
+     * Drops a node that left the cluster
+     *
+     * @return the users it had
+     */
+    synchronized List<String> removeNode(String node)
+    {
+        ArrayList<String> users = remote.remove(node);
+        return users == null ? new ArrayList<>() : users;
+    }
+
+    synchronized int size()
+    {
+        int size = usernames.size();
+        for (ArrayList<String> users : remote.values()) size += users.size();
+        return size;
+    }
+
+    /**
+     * @return a copy of the users of this node only
+     */
+    synchronized ArrayList<String> local()
+    {
+        return new ArrayList<>(usernames);
+    }
+
+    /**
+     * @return a copy of the current list, across the cluster
+     */
+    synchronized ArrayList<String> snapshot()
+    {
+        ArrayList<String> all = new ArrayList<>(size());
+        all.addAll(usernames);
+        for (ArrayList<String> users : remote.values()) all.addAll(users);
+        return all;
+    }
+}
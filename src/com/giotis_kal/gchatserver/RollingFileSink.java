@@ -0,0 +1,92 @@
+package com.giotis_kal.gchatserver;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * LogSink appending to a file, which is rolled over once it reaches a maximum size:
+ * gchat.log becomes gchat.log.1, gchat.log.1 becomes gchat.log.2 and so on, the
+ * oldest file being deleted.
+ *
+ * Every line is prefixed with the time its batch was written.
+ */
+public class RollingFileSink implements LogSink
+{
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private final Path file;
+    private final long maxBytes;
+    private final int maxBackups;
+
+    private Writer out;
+    private long size;
+
+    /**
+     * @param file the file to log to, appended to if it exists
+     * @param maxBytes the size after which the file is rolled over
+     * @param maxBackups how many rolled over files are kept
+     * @throws IOException in case the file cannot be opened
+     */
+    public RollingFileSink(Path file, long maxBytes, int maxBackups) throws IOException
+    {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxBackups = maxBackups;
+        open();
+    }
+
+    @Override
+    public void write(List<String> lines) throws IOException
+    {
+        String timestamp = LocalDateTime.now().format(TIMESTAMP);
+        for (String line : lines)
+        {
+            String entry = timestamp + " " + line + System.lineSeparator();
+            long length = entry.getBytes(StandardCharsets.UTF_8).length;
+            if (size > 0 && size + length > maxBytes) roll();
+
+            out.write(entry);
+            size += length;
+        }
+        out.flush(); //once per batch
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        out.close();
+    }
+
+    private void open() throws IOException
+    {
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        size = Files.size(file);
+    }
+
+    private void roll() throws IOException
+    {
+        out.close();
+        for (int i = maxBackups - 1; i >= 1; i--)
+        {
+            Path older = backup(i);
+            if (Files.exists(older)) Files.move(older, backup(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (maxBackups > 0) Files.move(file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+        else Files.delete(file);
+        open();
+    }
+
+    private Path backup(int index)
+    {
+        return Paths.get(file.toString() + "." + index);
+    }
+}
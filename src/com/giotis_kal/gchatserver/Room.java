@@ -0,0 +1,46 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.LatencyHistogram;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named chat room and its members.
+ *
+ * Messages posted in a room are only queued for its members, so the cost of a
+ * broadcast grows with the size of the room rather than with the number of clients.
+ */
+final class Room
+{
+    private final String name;
+    private final ClientRegistry members = new ClientRegistry();
+    private final ReentrantLock broadcastLock; //keeps one message order per room
+
+    /**
+     * @param lockHolds where the time the broadcast lock is held is recorded, see MeteredLock
+     */
+    Room(String name, LatencyHistogram lockHolds)
+    {
+        this.name = name;
+        this.broadcastLock = new MeteredLock(lockHolds);
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    ClientRegistry getMembers()
+    {
+        return members;
+    }
+
+    ReentrantLock getBroadcastLock()
+    {
+        return broadcastLock;
+    }
+
+    boolean contains(ClientConnection client)
+    {
+        return members.contains(client);
+    }
+}
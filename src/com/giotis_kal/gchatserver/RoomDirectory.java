@@ -0,0 +1,81 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.ChatMessage;
+import gchatdata.LatencyHistogram;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Index of room name to Room. Rooms are created by their first member joining and
+ * removed when their last member leaves, except for the public room, which always exists.
+ *
+ * Every client also remembers the rooms it is in, so that leaving all of them on
+ * disconnect does not require scanning every room.
+ */
+final class RoomDirectory
+{
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final LatencyHistogram lockHolds;
+
+    /**
+     * @param lockHolds where the rooms record how long their broadcast locks are held
+     */
+    RoomDirectory(LatencyHistogram lockHolds)
+    {
+        this.lockHolds = lockHolds;
+        rooms.put(ChatMessage.PUBLIC_ROOM, new Room(ChatMessage.PUBLIC_ROOM, lockHolds));
+    }
+
+    /**
+     * @return the room, or null if nobody is in it
+     */
+    Room get(String name)
+    {
+        return rooms.get(name);
+    }
+
+    /**
+     * Adds a client to a room, creating the room if needed
+     *
+     * @param onJoin run under the room's broadcast lock right after the client is added, so that
+     *               nothing broadcast in the room reaches the client before what it sends, may be null
+     */
+    void join(String name, ClientConnection client, Consumer<Room> onJoin)
+    {
+        //compute() runs atomically per room, so a room cannot be removed while someone joins it
+        rooms.compute(name, (key, room) -> {
+            if (room == null) room = new Room(key, lockHolds);
+            room.getBroadcastLock().lock();
+            try
+            {
+                room.getMembers().add(client);
+                if (onJoin != null) onJoin.accept(room);
+            } finally
+            {
+                room.getBroadcastLock().unlock();
+            }
+            return room;
+        });
+        client.getRooms().add(name);
+    }
+
+    /**
+     * Removes a client from a room, removing the room if it became empty
+     */
+    void leave(String name, ClientConnection client)
+    {
+        client.getRooms().remove(name);
+        rooms.computeIfPresent(name, (key, room) -> {
+            room.getMembers().remove(client);
+            return room.getMembers().size() == 0 && !key.equals(ChatMessage.PUBLIC_ROOM) ? null : room;
+        });
+    }
+
+    /**
+     * Removes a disconnecting client from every room it is in
+     */
+    void leaveAll(ClientConnection client)
+    {
+        for (String name : client.getRooms()) leave(name, client);
+    }
+}
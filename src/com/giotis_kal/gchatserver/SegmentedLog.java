@@ -0,0 +1,348 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.BinaryCodec;
+import gchatdata.ChatMessage;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only, segmented, memory-mapped log of chat messages.
+ *
+ * The log is a directory of fixed-size segment files, each named after the sequence number
+ * of its first record and memory-mapped while being written. A record is
+ *
+ *      [length of what follows (4 bytes)][sequence (8)][timestamp millis (8)][ChatMessage, BinaryCodec]
+ *
+ * and a length of 0 marks the end of a segment's data, mapped files being zero-filled.
+ *
+ * append() never blocks: records are queued and written by a single thread which drains
+ * the queue in batches and forces the segment to disk once per batch (group commit).
+ * Whenever a new segment is started, and at least every minute however little is written,
+ * the oldest ones are deleted until the log is within its size and age limits. A current
+ * segment whose records have all expired is rolled over, so that it can be deleted too.
+ */
+final class SegmentedLog implements Runnable
+{
+    private static final String SUFFIX = ".seg";
+    private static final int RECORD_HEADER = 4 + 8 + 8;
+    private static final int MAX_PENDING = 64 * 1024; //records queued before appends are dropped
+    private static final int MAX_BATCH = 1024; //records per group commit
+    private static final long RETENTION_CHECK_MILLIS = 60 * 1000; //or the retention time, if shorter
+    private static final Record CLOSE = new Record(0, 0, null); //wakes the writer up on close
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final long retentionCheckNanos;
+
+    private final BlockingQueue<Record> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+    private Thread writer;
+
+    //current segment, touched by the writer thread only (and the constructor)
+    private final Deque<Path> segments = new ArrayDeque<>(); //oldest first, the last one is current
+    private MappedByteBuffer current;
+    private long currentWritten; //timestamp of the current segment's last record, 0 if it has none
+    private long nextSequence = 1;
+
+    /**
+     * Opens the log, creating the directory if needed, and recovers its last records
+     *
+     * @param directory where the segment files are kept
+     * @param segmentBytes the size of a segment file, must exceed the largest record
+     * @param retentionBytes the total size of the segments kept
+     * @param retentionMillis how long a segment is kept after it was last written
+     * @param tail receives the most recent records of the log, oldest first
+     * @param tailSize how many records to recover into tail
+     * @throws IOException in case the log cannot be opened
+     */
+    SegmentedLog(Path directory, long segmentBytes, long retentionBytes, long retentionMillis, List<Record> tail, int tailSize)
+            throws IOException
+    {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.retentionCheckNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Math.min(RETENTION_CHECK_MILLIS, retentionMillis)));
+
+        Files.createDirectories(directory);
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX))
+        {
+            for (Path file : files) existing.add(file);
+        }
+        existing.sort(null); //zero-padded names, lexical order is sequence order
+        segments.addAll(existing);
+
+        recover(tail, tailSize);
+        if (current == null) startSegment();
+    }
+
+    void start()
+    {
+        writer = new Thread(this, "gchat-history");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return the sequence number the next record recovered or appended will get
+     */
+    long nextSequence()
+    {
+        return nextSequence;
+    }
+
+    /**
+     * Queues a record for writing, never blocks
+     *
+     * @return false if the writer is too far behind and the record was dropped
+     */
+    boolean append(Record record)
+    {
+        if (closed || !pending.offer(record))
+        {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of records dropped because the writer could not keep up
+     */
+    long dropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Writes whatever is still queued, forces it to disk and stops the writer
+     *
+     * @param timeoutMillis how long to wait for the writer
+     */
+    void close(long timeoutMillis)
+    {
+        closed = true;
+        if (writer == null) return;
+
+        pending.offer(CLOSE); //no interrupt, it would close the FileChannels the writer maps
+        try
+        {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        long retentionChecked = System.nanoTime();
+        while (!closed || !pending.isEmpty())
+        {
+            try
+            {
+                Record first = pending.poll(retentionCheckNanos, TimeUnit.NANOSECONDS);
+                if (first != null) batch.add(first);
+                pending.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException e)
+            {
+                return;
+            }
+            batch.remove(CLOSE);
+
+            try
+            {
+                if (!batch.isEmpty())
+                {
+                    for (Record record : batch) write(record);
+                    current.force(); //group commit: one sync per batch
+                }
+                if (System.nanoTime() - retentionChecked >= retentionCheckNanos)
+                {
+                    retentionChecked = System.nanoTime();
+                    expire();
+                }
+            } catch (IOException | RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Applies retention even if no new segment was started for a while, rolling the current
+     * segment over if everything in it is too old
+     */
+    private void expire() throws IOException
+    {
+        if (currentWritten > 0 && currentWritten < System.currentTimeMillis() - retentionMillis) startSegment();
+        else applyRetention();
+    }
+
+    private void write(Record record) throws IOException
+    {
+        byte[] payload = BinaryCodec.INSTANCE.encode(record.message);
+        int length = 8 + 8 + payload.length;
+        if (current.remaining() < 4 + length + 4) //keep room for the end marker
+        {
+            current.force();
+            startSegment();
+        }
+
+        current.putInt(length).putLong(record.sequence).putLong(record.timestamp).put(payload);
+        currentWritten = record.timestamp;
+        nextSequence = record.sequence + 1;
+    }
+
+    /**
+     * Starts a new segment named after the next sequence, then applies retention
+     */
+    private void startSegment() throws IOException
+    {
+        Path file = directory.resolve(String.format("%020d", nextSequence) + SUFFIX);
+        current = map(file);
+        currentWritten = 0;
+        segments.addLast(file);
+        applyRetention();
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size()));
+        }
+    }
+
+    /**
+     * Deletes the oldest segments, never the current one, while the log is too large or they are too old
+     */
+    private void applyRetention() throws IOException
+    {
+        long total = 0;
+        for (Path segment : segments) total += Files.size(segment);
+
+        long oldestAllowed = System.currentTimeMillis() - retentionMillis;
+        while (segments.size() > 1)
+        {
+            Path oldest = segments.peekFirst();
+            long size = Files.size(oldest);
+            if (total <= retentionBytes && Files.getLastModifiedTime(oldest).toMillis() >= oldestAllowed) break;
+
+            segments.removeFirst();
+            Files.deleteIfExists(oldest); //a mapping still held by the GC does not prevent this on Unix
+            total -= size;
+        }
+    }
+
+    /**
+     * Reads the most recent records, newest segments first, and positions the current
+     * segment after its last record
+     */
+    private void recover(List<Record> tail, int tailSize) throws IOException
+    {
+        Deque<Record> recovered = new ArrayDeque<>();
+        boolean newest = true;
+        for (Path segment : reversed(segments))
+        {
+            MappedByteBuffer buffer = map(segment);
+            List<Record> records = new ArrayList<>();
+            while (buffer.remaining() >= RECORD_HEADER)
+            {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                if (length <= 16 || length > buffer.remaining()) //end of data, or a torn write
+                {
+                    buffer.position(start);
+                    break;
+                }
+
+                long sequence = buffer.getLong();
+                long timestamp = buffer.getLong();
+                byte[] payload = new byte[length - 16];
+                buffer.get(payload);
+                try
+                {
+                    ChatMessage message = (ChatMessage) BinaryCodec.INSTANCE.decode(payload, 0, payload.length);
+                    message.setSequence(sequence);
+                    records.add(new Record(sequence, timestamp, message));
+                } catch (IOException | ClassCastException e)
+                {
+                    buffer.position(start); //corrupt record, appends continue over it
+                    break;
+                }
+            }
+
+            if (newest)
+            {
+                current = buffer;
+                currentWritten = records.isEmpty() ? 0 : records.get(records.size() - 1).timestamp;
+                nextSequence = records.isEmpty() ? firstSequence(segment) : records.get(records.size() - 1).sequence + 1;
+                newest = false;
+            }
+            for (int i = records.size() - 1; i >= 0 && recovered.size() < tailSize; i--) recovered.addFirst(records.get(i));
+            if (recovered.size() >= tailSize) break;
+        }
+        tail.addAll(recovered);
+    }
+
+    /**
+     * @return the sequence number a segment was named after
+     */
+    private static long firstSequence(Path segment) throws IOException
+    {
+        String name = segment.getFileName().toString();
+        try
+        {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e)
+        {
+            throw new IOException("Not a log segment: " + segment);
+        }
+    }
+
+    private static List<Path> reversed(Deque<Path> paths)
+    {
+        List<Path> list = new ArrayList<>(paths);
+        Collections.reverse(list);
+        return list;
+    }
+
+    /**
+     * A single logged message
+     */
+    static final class Record
+    {
+        final long sequence;
+        final long timestamp;
+        final ChatMessage message;
+
+        Record(long sequence, long timestamp, ChatMessage message)
+        {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.giotis_kal.gchatserver;
+
+/**
+ * The I/O engines GChatServer can be started with.
+ */
+public enum ServerEngine
+{
+    /**
+     * One blocking ConnectionHandler per client on a cached thread pool
+     */
+    THREADED("Threaded"),
+
+    /**
+     * One blocking ConnectionHandler per client, each on its own virtual thread.
+     * Falls back to THREADED on JVMs without virtual threads (before Java 21).
+     */
+    VIRTUAL("Virtual threads"),
+
+    /**
+     * A small fixed set of java.nio Selector event loops shared by all clients.
+     * Legacy (plain ObjectOutputStream) clients are handed over to a ConnectionHandler.
+     */
+    NIO("NIO");
+
+    private final String displayName;
+
+    ServerEngine(String displayName)
+    {
+        this.displayName = displayName;
+    }
+
+    @Override
+    public String toString()
+    {
+        return displayName;
+    }
+}
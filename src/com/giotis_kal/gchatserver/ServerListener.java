@@ -0,0 +1,48 @@
+package com.giotis_kal.gchatserver;
+
+import java.util.List;
+
+/**
+ * Receives status updates from a GChatServer. The Swing GChatServerFrame is one such
+ * listener, a headless server logs to the console instead.
+ *
+ * Methods are called on the server's own threads (status lines on its EventLog thread):
+ * listeners must be thread-safe, must not block and are responsible for getting onto
+ * their UI thread, if any.
+ *
+ * @see GChatServer#addListener(ServerListener)
+ */
+public interface ServerListener
+{
+    /**
+     * A status line, such as a client connecting or a chat message being broadcast
+     *
+     * @param msg the line to be logged
+     */
+    void printMsg(String msg);
+
+    /**
+     * A batch of status lines, logged since the previous batch. Override to update
+     * a UI once per batch instead of once per line.
+     *
+     * @param msgs the lines to be logged, in order
+     */
+    default void printMsgs(List<String> msgs)
+    {
+        for (String msg : msgs) printMsg(msg);
+    }
+
+    /**
+     * @param username the user who just connected
+     */
+    default void userJoined(String username)
+    {
+    }
+
+    /**
+     * @param username the user who just disconnected
+     */
+    default void userLeft(String username)
+    {
+    }
+}
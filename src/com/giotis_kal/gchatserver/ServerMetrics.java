@@ -0,0 +1,299 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.LatencyHistogram;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The server's counters and latency histograms.
+ *
+ * Recorded by the engines' and the writers' threads on every message, so recording only
+ * ever adds to LongAdders and LatencyHistograms: no locks, no allocation. Gauges such as
+ * queue depths are read from the clients when asked for. Rates are worked out once a
+ * second on the server's timer, see sample().
+ *
+ * Exposed through JMX as a ServerMetricsMXBean, and as plain text by a MetricsEndpoint.
+ */
+final class ServerMetrics implements ServerMetricsMXBean
+{
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_KEYS = {"p50", "p90", "p99", "p99.9"};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final ClientRegistry clients;
+    private final HandshakeMetrics handshakes;
+
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final LatencyHistogram lockHolds = new LatencyHistogram();
+    private final LatencyHistogram encoding = new LatencyHistogram();
+
+    //Per second over the last sample() period, the previous totals are only touched by the timer thread
+    private volatile double messagesInRate, messagesOutRate, bytesInRate, bytesOutRate;
+    private long lastSampleNanos = System.nanoTime();
+    private long lastMessagesIn, lastMessagesOut, lastBytesIn, lastBytesOut;
+
+    ServerMetrics(ClientRegistry clients, HandshakeMetrics handshakes)
+    {
+        this.clients = clients;
+        this.handshakes = handshakes;
+    }
+
+    HandshakeMetrics getHandshakes()
+    {
+        return handshakes;
+    }
+
+    /**
+     * @return the histogram every broadcast lock records its hold times in, see MeteredLock
+     */
+    LatencyHistogram getLockHolds()
+    {
+        return lockHolds;
+    }
+
+    void messageIn()
+    {
+        messagesIn.increment();
+    }
+
+    void messageOut()
+    {
+        messagesOut.increment();
+    }
+
+    void bytesIn(long bytes)
+    {
+        bytesIn.add(bytes);
+    }
+
+    void bytesOut(long bytes)
+    {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * @param nanos how long queueing a broadcast for every recipient took
+     */
+    void fanOut(long nanos)
+    {
+        fanOut.record(nanos);
+    }
+
+    /**
+     * @param nanos how long encoding or serializing a message took
+     */
+    void encoded(long nanos)
+    {
+        encoding.record(nanos);
+    }
+
+    /**
+     * Works the rates out from how much the counters grew since the last call. Runs on the server's timer.
+     */
+    void sample()
+    {
+        long now = System.nanoTime();
+        double seconds = (now - lastSampleNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        if (seconds <= 0) return;
+        lastSampleNanos = now;
+
+        long in = messagesIn.sum(), out = messagesOut.sum(), read = bytesIn.sum(), written = bytesOut.sum();
+        messagesInRate = (in - lastMessagesIn) / seconds;
+        messagesOutRate = (out - lastMessagesOut) / seconds;
+        bytesInRate = (read - lastBytesIn) / seconds;
+        bytesOutRate = (written - lastBytesOut) / seconds;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+        lastBytesIn = read;
+        lastBytesOut = written;
+    }
+
+    @Override
+    public int getConnectedClients()
+    {
+        return clients.size();
+    }
+
+    @Override
+    public long getMessagesIn()
+    {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut()
+    {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn()
+    {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut()
+    {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond()
+    {
+        return messagesInRate;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond()
+    {
+        return messagesOutRate;
+    }
+
+    @Override
+    public double getBytesInPerSecond()
+    {
+        return bytesInRate;
+    }
+
+    @Override
+    public double getBytesOutPerSecond()
+    {
+        return bytesOutRate;
+    }
+
+    @Override
+    public int getMaxQueueDepth()
+    {
+        int max = 0;
+        for (ClientConnection client : clients) max = Math.max(max, client.getQueueDepth());
+        return max;
+    }
+
+    @Override
+    public long getTotalQueueDepth()
+    {
+        long total = 0;
+        for (ClientConnection client : clients) total += client.getQueueDepth();
+        return total;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths()
+    {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        for (ClientConnection client : clients)
+            depths.put(client.getUsername() + " (" + client.getRemoteAddress() + ")", client.getQueueDepth());
+        return depths;
+    }
+
+    @Override
+    public Map<String, Double> getFanOutMicros()
+    {
+        return micros(fanOut);
+    }
+
+    @Override
+    public Map<String, Double> getBroadcastLockHoldMicros()
+    {
+        return micros(lockHolds);
+    }
+
+    @Override
+    public Map<String, Double> getEncodeMicros()
+    {
+        return micros(encoding);
+    }
+
+    @Override
+    public Map<String, Long> getTlsHandshakes()
+    {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        counts.put("full", handshakes.getFull());
+        counts.put("resumed", handshakes.getResumed());
+        counts.put("failed", handshakes.getFailed());
+        return counts;
+    }
+
+    @Override
+    public void resetLatencies()
+    {
+        fanOut.reset();
+        lockHolds.reset();
+        encoding.reset();
+    }
+
+    private static Map<String, Double> micros(LatencyHistogram histogram)
+    {
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (int i = 0; i < PERCENTILES.length; i++)
+            values.put(PERCENTILE_KEYS[i], histogram.getValueAtPercentile(PERCENTILES[i]) / 1e3);
+        values.put("max", histogram.getMaxNanos() / 1e3);
+        return values;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format, durations in seconds
+     *
+     * @param out where the lines are appended
+     */
+    void writeText(StringBuilder out)
+    {
+        gauge(out, "gchat_connected_clients", "Clients connected to this node", getConnectedClients());
+        counter(out, "gchat_messages_in_total", "Messages received from clients", getMessagesIn());
+        counter(out, "gchat_messages_out_total", "Messages written to clients", getMessagesOut());
+        counter(out, "gchat_bytes_in_total", "Bytes received from clients", getBytesIn());
+        counter(out, "gchat_bytes_out_total", "Bytes written to clients", getBytesOut());
+        gauge(out, "gchat_messages_in_per_second", "Messages received per second, over the last second", messagesInRate);
+        gauge(out, "gchat_messages_out_per_second", "Messages written per second, over the last second", messagesOutRate);
+        gauge(out, "gchat_bytes_in_per_second", "Bytes received per second, over the last second", bytesInRate);
+        gauge(out, "gchat_bytes_out_per_second", "Bytes written per second, over the last second", bytesOutRate);
+        gauge(out, "gchat_outbound_queue_depth_max", "Deepest outbound queue of any client", getMaxQueueDepth());
+        gauge(out, "gchat_outbound_queue_depth_total", "Messages waiting in all outbound queues", getTotalQueueDepth());
+        summary(out, "gchat_fan_out_seconds", "Time to queue a broadcast for every member of its room", fanOut);
+        summary(out, "gchat_broadcast_lock_hold_seconds", "Time a broadcast lock was held", lockHolds);
+        summary(out, "gchat_encode_seconds", "Time to encode a message once per codec, or serialize it for a legacy client", encoding);
+        counter(out, "gchat_tls_handshakes_full_total", "Full TLS handshakes", handshakes.getFull());
+        counter(out, "gchat_tls_handshakes_resumed_total", "TLS handshakes resuming a session", handshakes.getResumed());
+        counter(out, "gchat_tls_handshakes_failed_total", "TLS handshakes that failed or timed out", handshakes.getFailed());
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value)
+    {
+        header(out, name, help, "counter").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value)
+    {
+        header(out, name, help, "gauge").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value)
+    {
+        header(out, name, help, "gauge").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram)
+    {
+        header(out, name, help, "summary");
+        for (int i = 0; i < PERCENTILES.length; i++)
+        {
+            out.append(name).append("{quantile=\"").append(QUANTILE_LABELS[i]).append("\"} ")
+                    .append(histogram.getValueAtPercentile(PERCENTILES[i]) / 1e9).append('\n');
+        }
+        out.append(name).append("_sum ").append(histogram.getTotalNanos() / 1e9).append('\n');
+        out.append(name).append("_count ").append(histogram.getTotalCount()).append('\n');
+    }
+
+    private static StringBuilder header(StringBuilder out, String name, String help, String type)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        return out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
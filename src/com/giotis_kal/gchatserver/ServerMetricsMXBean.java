@@ -0,0 +1,74 @@
+package com.giotis_kal.gchatserver;
+
+import java.util.Map;
+
+/**
+ * The server's metrics as seen through JMX, e.g. in JConsole or VisualVM, registered as
+ * com.giotis_kal.gchatserver:type=GChatServer,port=&lt;port&gt; while the server is online.
+ *
+ * Counters are totals since the server started, rates are per second over the last second.
+ * Bytes are those of the protocol, before TLS encryption.
+ * Latencies are percentiles in microseconds, keyed p50, p90, p99, p99.9 and max.
+ *
+ * @see GChatServer#enableMetricsEndpoint(int) for the same metrics as plain text over HTTP
+ */
+public interface ServerMetricsMXBean
+{
+    int getConnectedClients();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+
+    /**
+     * @return the deepest outbound queue of any client
+     */
+    int getMaxQueueDepth();
+
+    /**
+     * @return the messages waiting in all outbound queues together
+     */
+    long getTotalQueueDepth();
+
+    /**
+     * @return every client's outbound queue depth, keyed by "username (address)"
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * @return how long queueing a broadcast for all the members of its room took
+     */
+    Map<String, Double> getFanOutMicros();
+
+    /**
+     * @return how long the broadcast locks (the presence lock and every room's) were held at a time
+     */
+    Map<String, Double> getBroadcastLockHoldMicros();
+
+    /**
+     * @return how long encoding a message took, once per codec, or serializing it onto a legacy stream
+     */
+    Map<String, Double> getEncodeMicros();
+
+    /**
+     * @return the TLS handshakes so far, keyed full, resumed and failed
+     */
+    Map<String, Long> getTlsHandshakes();
+
+    /**
+     * Forgets the latencies recorded so far, e.g. after warming up
+     */
+    void resetLatencies();
+}
@@ -0,0 +1,110 @@
+package com.giotis_kal.gchatserver;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of session token to ClientSession.
+ *
+ * Detached sessions are ended once their grace period runs out, on a single timer thread.
+ */
+final class SessionStore
+{
+    private static final int TOKEN_BYTES = 16;
+
+    private final ConcurrentHashMap<String, ClientSession> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long graceMillis;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "gchat-sessions");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed;
+
+    /**
+     * @param graceMillis how long a detached session can still be resumed
+     */
+    SessionStore(long graceMillis)
+    {
+        this.graceMillis = graceMillis;
+    }
+
+    /**
+     * Starts a new session with an unguessable token
+     */
+    ClientSession create(String username, ClientConnection connection)
+    {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        ClientSession session = new ClientSession(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), username, connection);
+        sessions.put(session.getToken(), session);
+        return session;
+    }
+
+    /**
+     * Moves a session over to a new connection
+     *
+     * @return the session, or null if there is no such session (any more)
+     */
+    ClientSession resume(String token, ClientConnection connection)
+    {
+        ClientSession session = token == null || closed ? null : sessions.get(token);
+        return session != null && session.attach(connection) ? session : null;
+    }
+
+    /**
+     * Keeps a session whose connection went away until it is resumed or its grace period runs out
+     *
+     * @param onExpiry run if the session expires
+     * @return false if the session has ended and the user should be considered gone right away
+     */
+    boolean detach(ClientSession session, ClientConnection connection, Runnable onExpiry)
+    {
+        if (closed)
+        {
+            end(session);
+            return false;
+        }
+        try
+        {
+            return session.detach(connection, () -> timer.schedule(() -> {
+                if (end(session)) onExpiry.run();
+            }, graceMillis, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) //closed meanwhile
+        {
+            end(session);
+            return false;
+        }
+    }
+
+    /**
+     * Ends a session for good, such as when the user disconnects on purpose
+     *
+     * @return false if it had already ended
+     */
+    boolean end(ClientSession session)
+    {
+        sessions.remove(session.getToken(), session);
+        return session.end();
+    }
+
+    long getGraceMillis()
+    {
+        return graceMillis;
+    }
+
+    /**
+     * Stops keeping sessions, detached sessions pending expiry are dropped with the server
+     */
+    void close()
+    {
+        closed = true;
+        timer.shutdownNow();
+    }
+}
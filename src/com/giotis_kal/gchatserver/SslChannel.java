@@ -0,0 +1,253 @@
+package com.giotis_kal.gchatserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+
+/**
+ * A non-blocking SocketChannel encrypted with an SSLEngine, for the NIO engine.
+ *
+ * read() and write() work on plaintext like the channel's own methods do, and drive the
+ * handshake along the way: the handshake's delegated tasks run inline on the loop thread,
+ * and its records are written out as they are produced. No application data is sent before
+ * the handshake is over, since the server only ever answers its client.
+ *
+ * write() encrypts straight from the frames shared by all the clients of a broadcast, so a
+ * message is still encoded once and only encrypted per connection. Several TLS records are
+ * packed into one network buffer before it is written. Records the socket does not take yet
+ * stay in that buffer, and nothing more is encrypted until it has been written out.
+ *
+ * Not thread-safe, used by the connection's loop thread only.
+ */
+final class SslChannel
+{
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int RECORDS_PER_WRITE = 4;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final HandshakeMetrics metrics;
+    private final int packetSize;
+    private final ByteBuffer netIn; //received, not yet decrypted, in write mode
+    private final ByteBuffer netOut; //encrypted, not yet written, in read mode
+    private boolean stalled; //netIn holds nothing that can be decrypted yet, such as an incomplete record
+    private final long handshakeStart = System.nanoTime();
+    private boolean handshaking = true;
+
+    /**
+     * @param engine a server mode engine, not used yet
+     * @param metrics where the handshake is recorded
+     */
+    SslChannel(SocketChannel channel, SSLEngine engine, HandshakeMetrics metrics) throws SSLException
+    {
+        this.channel = channel;
+        this.engine = engine;
+        this.metrics = metrics;
+        this.packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocateDirect(packetSize * RECORDS_PER_WRITE);
+        netOut.flip();
+        engine.beginHandshake();
+    }
+
+    /**
+     * @return the room a read() needs in its buffer to decrypt a full record
+     */
+    int applicationBufferSize()
+    {
+        return engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * Reads what the socket has and decrypts as much of it as fits into dst
+     *
+     * @param dst the buffer to decrypt to, in write mode, with at least applicationBufferSize() bytes free
+     * @return the number of plaintext bytes added to dst, -1 at the end of the stream
+     * @throws IOException in case the handshake fails or the peer sends garbage
+     */
+    int read(ByteBuffer dst) throws IOException
+    {
+        int read = channel.read(netIn);
+        if (read < 0)
+        {
+            if (!handshaking) return -1;
+            metrics.failed();
+            throw new EOFException("Connection closed during the TLS handshake");
+        }
+
+        int produced = 0;
+        netIn.flip();
+        try
+        {
+            while (netIn.hasRemaining() && dst.remaining() >= applicationBufferSize())
+            {
+                SSLEngineResult result = engine.unwrap(netIn, dst);
+                produced += result.bytesProduced();
+                handshake(result.getHandshakeStatus());
+
+                if (result.getStatus() == Status.CLOSED) return produced > 0 ? produced : -1;
+                stalled = result.getStatus() == Status.BUFFER_UNDERFLOW
+                        || result.bytesConsumed() == 0 && result.bytesProduced() == 0; //waiting for our own handshake records
+                if (stalled || result.getStatus() == Status.BUFFER_OVERFLOW) break;
+            }
+        } catch (SSLException e)
+        {
+            if (handshaking) metrics.failed();
+            throw e;
+        } finally
+        {
+            netIn.compact();
+        }
+        return produced;
+    }
+
+    /**
+     * @return whether complete records are still waiting to be decrypted, i.e. read() should be
+     *         called again once dst has room, even if the socket has nothing new
+     */
+    boolean hasBufferedInput()
+    {
+        return netIn.position() > 0 && !stalled;
+    }
+
+    /**
+     * Encrypts and writes as much of srcs as the socket accepts
+     *
+     * @return the number of plaintext bytes consumed from srcs
+     * @throws IOException in case the socket or the engine is closed
+     */
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        long consumed = 0;
+        boolean progress = true;
+        while (progress && flushPending() && hasRemaining(srcs, offset, length))
+        {
+            progress = false;
+            netOut.clear();
+            try
+            {
+                while (netOut.remaining() >= packetSize && hasRemaining(srcs, offset, length))
+                {
+                    SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+                    if (result.getStatus() == Status.CLOSED) throw new SSLException("TLS connection closed");
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) break; //still handshaking
+                    consumed += result.bytesConsumed();
+                    progress = true;
+                }
+            } finally
+            {
+                netOut.flip();
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Writes out the records encrypted so far, and goes on with a handshake that was waiting for them
+     *
+     * @return true if none are left, false if the socket buffer is full
+     */
+    boolean flushPending() throws IOException
+    {
+        if (netOut.hasRemaining()) channel.write(netOut);
+        if (netOut.hasRemaining()) return false;
+
+        if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) handshake(HandshakeStatus.NEED_WRAP);
+        return !netOut.hasRemaining();
+    }
+
+    /**
+     * @return whether the handshake is still under way
+     */
+    boolean isHandshaking()
+    {
+        return handshaking;
+    }
+
+    /**
+     * @return whether encrypted records are waiting for the socket, see flushPending()
+     */
+    boolean hasPendingOutput()
+    {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * Sends close_notify, as far as the socket takes it without blocking
+     */
+    void close()
+    {
+        engine.closeOutbound();
+        try
+        {
+            if (!netOut.hasRemaining()) wrapHandshake();
+            channel.write(netOut);
+        } catch (IOException e)
+        {
+            //the peer is gone already, which is fine
+        }
+    }
+
+    /**
+     * Does whatever the handshake needs next that does not depend on the peer
+     */
+    private void handshake(HandshakeStatus status) throws IOException
+    {
+        while (true)
+        {
+            switch (status)
+            {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) task.run();
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    if (netOut.hasRemaining()) channel.write(netOut);
+                    if (netOut.hasRemaining()) return; //resumed by flushPending() once the socket drains
+                    status = wrapHandshake();
+                    channel.write(netOut);
+                    break;
+                case FINISHED:
+                    if (handshaking)
+                    {
+                        handshaking = false;
+                        metrics.completed(System.nanoTime() - handshakeStart,
+                                HandshakeMetrics.isResumed(engine.getSession().getCreationTime(), handshakeStart));
+                    }
+                    status = engine.getHandshakeStatus(); //TLS 1.3 servers go on to send session tickets
+                    break;
+                default: //NEED_UNWRAP, NOT_HANDSHAKING
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Encrypts handshake records into the empty netOut
+     */
+    private HandshakeStatus wrapHandshake() throws SSLException
+    {
+        netOut.clear();
+        try
+        {
+            return engine.wrap(EMPTY, netOut).getHandshakeStatus();
+        } finally
+        {
+            netOut.flip();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length)
+    {
+        for (int i = offset; i < offset + length; i++)
+            if (buffers[i].hasRemaining()) return true;
+        return false;
+    }
+}
@@ -0,0 +1,332 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.FrameIO;
+import gchatdata.MessageCodec;
+import gchatdata.MessageDecoder;
+import gchatdata.WriteCoalescing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A blocking client connection, used by ConnectionHandler.
+ *
+ * It speaks either the legacy protocol (one long-lived ObjectInputStream/ObjectOutputStream
+ * pair) or the framed protocol, depending on the first bytes sent by the client.
+ * The bytes and messages it reads and writes are counted in the server's metrics.
+ * Frames are read into a buffer reused for the whole connection and decoded by the
+ * connection's own MessageDecoder.
+ */
+class StreamConnection extends ClientConnection implements Closeable
+{
+    private static final int BUFFER_SIZE = 2048; //kept small, idle connections may number in the tens of thousands
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000; //time the writer gets to flush its queue on close
+    private static final int MIN_FRAME_BUFFER = 256;
+    private static final int MAX_FRAME_BUFFER = 64 * 1024; //larger frames are read into a buffer of their own
+
+    private final Socket socket;
+    private final OutboundQueue<OutboundMessage> queue;
+    private final WriteCoalescing coalescing;
+    private final ServerMetrics metrics;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+
+    //Legacy protocol streams
+    private ObjectInputStream objectReader;
+    private ObjectOutputStream objectWriter;
+
+    //Framed protocol streams
+    private MessageCodec codec;
+    private MessageDecoder decoder;
+    private byte[] frameBuffer; //allocated on the first frame, grown up to MAX_FRAME_BUFFER
+    private DataInputStream frameReader;
+    private DataOutputStream frameWriter;
+
+    private StreamConnection(Socket socket, OutboundQueue<OutboundMessage> queue, WriteCoalescing coalescing,
+                             ServerMetrics metrics)
+    {
+        this.socket = socket;
+        this.queue = queue;
+        this.coalescing = coalescing;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reads the client's handshake, sets up the matching streams and starts the writer
+     *
+     * @param socket the client's socket
+     * @param in the socket's input stream, possibly prefixed with bytes already read by another engine
+     * @param queue the queue outgoing messages wait in
+     * @param writerExec runs the task draining the queue
+     * @param coalescing how eagerly the writer flushes
+     * @param metrics where traffic and encoding times are recorded
+     * @return the connection, ready to read()
+     * @throws StreamCorruptedException if the handshake is neither legacy nor a known codec
+     */
+    static StreamConnection open(Socket socket, InputStream in, OutboundQueue<OutboundMessage> queue,
+                                 Executor writerExec, WriteCoalescing coalescing, ServerMetrics metrics) throws IOException
+    {
+        StreamConnection connection = new StreamConnection(socket, queue, coalescing, metrics);
+        socket.setTcpNoDelay(true); //batching is up to the writer, Nagle would only add latency
+        socket.setKeepAlive(true); //legacy clients cannot be pinged, see IdleReaper
+
+        InputStream counted = new CountingInputStream(in, metrics);
+        OutputStream out = new CountingOutputStream(socket.getOutputStream(), metrics);
+        PushbackInputStream pushback = new PushbackInputStream(new BufferedInputStream(counted, BUFFER_SIZE), FrameIO.HEADER_LENGTH);
+        DataInputStream data = new DataInputStream(pushback);
+        int header = data.readInt();
+
+        if (FrameIO.isLegacyHeader(header))
+        {
+            //give the header back, ObjectInputStream wants to read it itself
+            pushback.unread(new byte[]{(byte) (header >>> 24), (byte) (header >>> 16), (byte) (header >>> 8), (byte) header});
+            connection.objectReader = new ObjectInputStream(pushback);
+            connection.objectWriter = new ObjectOutputStream(out);
+        }
+        else
+        {
+            connection.codec = MessageCodec.forMagic(header);
+            if (connection.codec == null)
+                throw new StreamCorruptedException("Unknown handshake: " + Integer.toHexString(header));
+
+            connection.decoder = connection.codec.newDecoder();
+            connection.frameReader = data;
+            int bufferSize = Math.max(BUFFER_SIZE, coalescing.getMaxBytes()); //a batch goes out in a single write
+            connection.frameWriter = new DataOutputStream(new BufferedOutputStream(out, bufferSize));
+        }
+
+        writerExec.execute(connection::drainQueue);
+        return connection;
+    }
+
+    /**
+     * Blocks until the next message from the client arrives
+     *
+     * @return the message received
+     * @throws ClassNotFoundException in case an Object of unknown class is received
+     */
+    Object read() throws IOException, ClassNotFoundException
+    {
+        if (objectReader != null)
+        {
+            Object msg = objectReader.readObject();
+            readProgress();
+            metrics.messageIn();
+            return msg;
+        }
+
+        int length = frameReader.readInt();
+        FrameIO.checkLength(length);
+        byte[] payload = frameBuffer(length);
+        frameReader.readFully(payload, 0, length);
+        readProgress();
+        metrics.messageIn();
+        return decoder.decode(payload, 0, length);
+    }
+
+    /**
+     * @return the buffer to read a frame of the given length into
+     */
+    private byte[] frameBuffer(int length)
+    {
+        if (frameBuffer != null && length <= frameBuffer.length) return frameBuffer;
+        if (length > MAX_FRAME_BUFFER) return new byte[length];
+
+        int size = frameBuffer == null ? MIN_FRAME_BUFFER : frameBuffer.length;
+        while (size < length) size *= 2;
+        frameBuffer = new byte[size];
+        return frameBuffer;
+    }
+
+    @Override
+    boolean send(OutboundMessage msg)
+    {
+        return queue.offer(msg, msg.isDroppable());
+    }
+
+    @Override
+    boolean isFramed()
+    {
+        return objectWriter == null; //legacy clients only know ChatMessages, Poisons and the full username list
+    }
+
+    @Override
+    void disconnect()
+    {
+        try
+        {
+            socket.close(); //unblocks the reader, which then cleans up
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    int getQueueDepth()
+    {
+        return queue.depth();
+    }
+
+    /**
+     * The writer task: writes queued messages until the queue is closed or the socket fails.
+     *
+     * Messages already queued are written without flushing in between. Then, with a coalescing
+     * window, the writer waits up to the rest of the window for more before it flushes, unless
+     * the byte budget is used up.
+     */
+    private void drainQueue()
+    {
+        try
+        {
+            OutboundMessage msg = queue.take();
+            int unflushed = 0; //bytes written since the last flush, framed protocol only
+            long deadline = 0; //when the oldest unflushed message must be flushed
+            while (msg != null)
+            {
+                writeProgress(true); //stamped per message, so only a write blocked for the whole timeout counts as stalled
+                if (objectWriter != null)
+                {
+                    long start = System.nanoTime(); //serialized anew for every legacy client
+                    objectWriter.writeObject(msg.message());
+                    metrics.encoded(System.nanoTime() - start);
+                }
+                else
+                {
+                    byte[] frame = msg.frame(codec, metrics);
+                    frameWriter.write(frame);
+                    unflushed += frame.length;
+                }
+                metrics.messageOut();
+
+                OutboundMessage next = queue.poll();
+                if (next == null && !coalescing.isImmediate() && unflushed < coalescing.getMaxBytes())
+                {
+                    if (deadline == 0) deadline = System.nanoTime() + coalescing.getWindowNanos();
+                    long wait = deadline - System.nanoTime();
+                    if (wait > 0) next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                }
+
+                if (next == null || (!coalescing.isImmediate() && unflushed >= coalescing.getMaxBytes())
+                        || (deadline != 0 && System.nanoTime() >= deadline))
+                {
+                    if (objectWriter != null) objectWriter.flush();
+                    else frameWriter.flush();
+                    unflushed = 0;
+                    deadline = 0;
+                    if (next == null) writeProgress(false);
+                }
+                msg = next != null ? next : queue.take();
+            }
+        }
+        catch (IOException e)
+        {
+            if (!socket.isClosed()) e.printStackTrace();
+            disconnect();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            writerDone.countDown();
+        }
+    }
+
+    @Override
+    SocketAddress getRemoteAddress()
+    {
+        return socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * Counts the bytes read from the socket as bytes in
+     */
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        private final ServerMetrics metrics;
+
+        CountingInputStream(InputStream in, ServerMetrics metrics)
+        {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = in.read();
+            if (b >= 0) metrics.bytesIn(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int read = in.read(b, off, len);
+            if (read > 0) metrics.bytesIn(read);
+            return read;
+        }
+    }
+
+    /**
+     * Counts the bytes written to the socket as bytes out
+     */
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        private final ServerMetrics metrics;
+
+        CountingOutputStream(OutputStream out, ServerMetrics metrics)
+        {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            metrics.bytesOut(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len); //FilterOutputStream would write byte by byte
+            metrics.bytesOut(len);
+        }
+    }
+
+    /**
+     * Lets the writer flush what is already queued (up to CLOSE_TIMEOUT_MILLIS), then closes the socket
+     */
+    @Override
+    public void close() throws IOException
+    {
+        queue.close();
+        try
+        {
+            writerDone.await(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        socket.close();
+    }
+}
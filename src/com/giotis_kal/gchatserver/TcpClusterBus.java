@@ -0,0 +1,319 @@
+package com.giotis_kal.gchatserver;
+
+import gchatdata.FrameIO;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ClusterBus over TCP, between a fixed set of nodes that all know each other.
+ *
+ * Every node listens on its cluster port and dials every peer, so each pair of nodes is
+ * joined by two connections, one per direction: a node only ever writes to the connections
+ * it dialed and only ever reads from the ones it accepted. Events are sent as frames, see
+ * FrameIO and ClusterEvent.
+ *
+ * Every outgoing link has its own bounded queue and writer thread. A peer that is not reachable,
+ * or too slow to keep up, is dialed again every few seconds and resynchronized from scratch.
+ *
+ * Nodes listen on the loopback interface unless given another address, and only read the
+ * events of peers that know the cluster's shared secret: an accepted connection is sent a
+ * random challenge first, and dropped unless the dialer answers with its HMAC-SHA256 under
+ * the secret. The events themselves are not encrypted, the cluster network must be trusted.
+ */
+public final class TcpClusterBus implements ClusterBus
+{
+    private static final long RECONNECT_MILLIS = 2000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_PENDING = 64 * 1024; //events queued for a peer before the link is dropped
+    private static final int CHALLENGE_BYTES = 16;
+    private static final int RESPONSE_BYTES = 32; //HMAC-SHA256
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final String nodeId;
+    private final InetSocketAddress bindAddress;
+    private final List<InetSocketAddress> peers;
+    private final SecretKeySpec secret;
+    private final SecureRandom random = new SecureRandom();
+
+    private final List<Link> links = new CopyOnWriteArrayList<>(); //outgoing links currently up
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>(); //node id to its current incoming connection
+    private final ExecutorService threads = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "gchat-cluster");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocket serverSocket;
+    private Handler handler;
+    private volatile boolean closed;
+
+    /**
+     * A node listening to its peers on the loopback interface only, for clusters on a single host
+     *
+     * @param nodeId the id of this node, unique within the cluster
+     * @param port the port this node listens to its peers on
+     * @param peers the cluster ports of all other nodes
+     * @param secret the secret shared by all nodes of the cluster
+     */
+    public TcpClusterBus(String nodeId, int port, List<InetSocketAddress> peers, byte[] secret)
+    {
+        this(nodeId, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), peers, secret);
+    }
+
+    /**
+     * @param nodeId the id of this node, unique within the cluster
+     * @param bindAddress the address and port this node listens to its peers on
+     * @param peers the cluster ports of all other nodes
+     * @param secret the secret shared by all nodes of the cluster
+     * @throws IllegalArgumentException if the secret is empty
+     */
+    public TcpClusterBus(String nodeId, InetSocketAddress bindAddress, List<InetSocketAddress> peers, byte[] secret)
+    {
+        if (secret == null || secret.length == 0) throw new IllegalArgumentException("The cluster secret must not be empty");
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.peers = peers;
+        this.secret = new SecretKeySpec(secret, MAC_ALGORITHM);
+    }
+
+    @Override
+    public String nodeId()
+    {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Handler handler) throws IOException
+    {
+        this.handler = handler;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(bindAddress);
+        threads.execute(this::acceptLoop);
+        for (InetSocketAddress peer : peers) threads.execute(() -> dialLoop(peer));
+    }
+
+    @Override
+    public void publish(ClusterEvent event)
+    {
+        for (Link link : links) link.send(event);
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        closeQuietly(serverSocket);
+        for (Link link : links) closeQuietly(link.socket);
+        for (Socket socket : inbound.values()) closeQuietly(socket);
+        threads.shutdownNow();
+    }
+
+    private void acceptLoop()
+    {
+        while (!closed)
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                threads.execute(() -> readLoop(socket));
+            } catch (IOException e)
+            {
+                if (!closed) e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads the events of a peer, once it proved it knows the secret. A peer that reconnects
+     * replaces its previous connection, which then goes away without reporting the peer disconnected.
+     */
+    private void readLoop(Socket socket)
+    {
+        String node = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream())))
+        {
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            random.nextBytes(challenge);
+            byte[] response = new byte[RESPONSE_BYTES];
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS); //no thread held by connections that never answer
+            socket.getOutputStream().write(challenge);
+            in.readFully(response);
+            if (!MessageDigest.isEqual(response, sign(challenge)))
+            {
+                System.err.println("Cluster connection from " + socket.getRemoteSocketAddress() + " rejected, wrong secret");
+                return;
+            }
+            socket.setSoTimeout(0);
+
+            while (!closed)
+            {
+                byte[] frame = FrameIO.readFrame(in);
+                ClusterEvent event = ClusterEvent.decode(frame);
+                if (node == null)
+                {
+                    node = event.getNode();
+                    Socket previous = inbound.put(node, socket);
+                    if (previous != null) closeQuietly(previous);
+                }
+                handler.eventReceived(event);
+            }
+        } catch (IOException e)
+        {
+            //peer gone
+        } finally
+        {
+            closeQuietly(socket);
+            if (node != null && inbound.remove(node, socket) && !closed) handler.peerDisconnected(node);
+        }
+    }
+
+    /**
+     * Keeps an outgoing link to a peer up for as long as the bus is open
+     */
+    private void dialLoop(InetSocketAddress peer)
+    {
+        while (!closed)
+        {
+            try (Socket socket = new Socket())
+            {
+                socket.connect(peer, CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                answerChallenge(socket);
+
+                Link link = new Link(socket);
+                threads.execute(link::watch);
+                links.add(link);
+                try
+                {
+                    handler.peerConnected(link::send); //the node's state goes first
+                    link.writeLoop();
+                } finally
+                {
+                    links.remove(link);
+                }
+            } catch (IOException e)
+            {
+                //not up (yet), or the link broke
+            } catch (InterruptedException e)
+            {
+                return; //closed
+            }
+
+            try
+            {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Proves to the peer just dialed that this node knows the secret
+     */
+    private void answerChallenge(Socket socket) throws IOException
+    {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+        new DataInputStream(socket.getInputStream()).readFully(challenge); //unbuffered, watch() reads what follows
+        socket.setSoTimeout(0);
+        socket.getOutputStream().write(sign(challenge));
+    }
+
+    private byte[] sign(byte[] challenge) throws IOException
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e)
+        {
+            throw new IOException("Cannot authenticate cluster connections", e);
+        }
+    }
+
+    /**
+     * An outgoing connection to a peer
+     */
+    private static final class Link
+    {
+        private final Socket socket;
+        private final BlockingQueue<ClusterEvent> queue = new LinkedBlockingQueue<>(MAX_PENDING);
+
+        Link(Socket socket)
+        {
+            this.socket = socket;
+        }
+
+        void send(ClusterEvent event)
+        {
+            if (!queue.offer(event)) closeQuietly(socket); //too slow, it gets resynchronized on reconnect
+        }
+
+        /**
+         * Writes queued events until the connection fails or is closed
+         */
+        void writeLoop() throws IOException, InterruptedException
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (!socket.isClosed())
+            {
+                ClusterEvent event = queue.poll(1, TimeUnit.SECONDS);
+                if (event == null) continue;
+
+                FrameIO.writeFrame(out, event.encode());
+                if (queue.isEmpty()) out.flush();
+            }
+        }
+
+        /**
+         * Closes the link as soon as the peer closes its end. Peers never write to it, so
+         * this is the only way to notice a peer going away while there is nothing to send.
+         */
+        void watch()
+        {
+            try
+            {
+                while (socket.getInputStream().read() >= 0);
+            } catch (IOException e)
+            {
+                //closed
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            if (closeable != null) closeable.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
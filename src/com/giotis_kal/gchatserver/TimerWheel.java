@@ -0,0 +1,130 @@
+package com.giotis_kal.gchatserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel: a coarse timer for very many timeouts that mostly never need to fire
+ * exactly, such as one idle check per connection.
+ *
+ * Time is cut into ticks and the wheel has a bucket per tick, reused every round. Scheduling
+ * only appends to a lock-free queue, which the wheel's thread moves into the bucket of the
+ * deadline's tick, so it costs O(1) however many timeouts are pending. Every tick the thread
+ * runs the tasks in one bucket that are due by now; tasks due in a later round stay in it.
+ *
+ * Tasks run on the wheel's thread and must be quick. There is no cancellation: a task that
+ * is no longer needed just does nothing when it runs.
+ */
+final class TimerWheel implements Runnable
+{
+    private final String name;
+    private final long tickNanos;
+    private final List<List<Timeout>> buckets;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>(); //not yet in a bucket
+    private final long start = System.nanoTime();
+    private long tick; //ticks elapsed since start, touched by the wheel's thread only
+    private volatile boolean closed;
+    private Thread thread;
+
+    /**
+     * @param name the name of the wheel's thread
+     * @param tickMillis how precise the timeouts are
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    TimerWheel(String name, long tickMillis, int wheelSize)
+    {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) buckets.add(new ArrayList<>());
+    }
+
+    void start()
+    {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs a task on the wheel's thread once the delay has passed, within a tick. Safe to call from any thread.
+     */
+    void schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        if (!closed) scheduled.add(new Timeout(task, System.nanoTime() + unit.toNanos(delay)));
+    }
+
+    /**
+     * Stops the wheel, pending timeouts never run
+     */
+    void close()
+    {
+        closed = true;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run()
+    {
+        while (!closed)
+        {
+            tick++;
+            long wait;
+            while (!closed && (wait = start + tick * tickNanos - System.nanoTime()) > 0) LockSupport.parkNanos(this, wait);
+
+            Timeout timeout;
+            while ((timeout = scheduled.poll()) != null)
+            {
+                long due = Math.max(tick, (timeout.deadline - start + tickNanos - 1) / tickNanos); //rounded up to a tick
+                timeout.tick = due;
+                buckets.get((int) (due & mask)).add(timeout);
+            }
+            expire(buckets.get((int) (tick & mask)));
+        }
+    }
+
+    /**
+     * Runs the tasks of a bucket that are due, compacting the others in place
+     */
+    private void expire(List<Timeout> bucket)
+    {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++)
+        {
+            Timeout timeout = bucket.get(i);
+            if (timeout.tick > tick)
+            {
+                bucket.set(kept++, timeout); //a later round
+                continue;
+            }
+            try
+            {
+                timeout.task.run();
+            } catch (RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    private static final class Timeout
+    {
+        final Runnable task;
+        final long deadline;
+        long tick; //the tick the deadline falls in, set when it is put in its bucket
+
+        Timeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package gchatdata;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact hand-written MessageCodec, avoiding the class descriptors and reflection of
+ * Java serialization.
+ *
+ * Every payload starts with a one byte type tag followed by the message's fields.
+ * Strings are written as a 4 byte length (-1 for null) followed by their UTF-8 bytes.
+ *
+ * ChatMessage:   [TYPE_CHAT_MESSAGE][username][message] followed by [room] unless it is public and has no sequence,
+ *                then by [sequence (8 bytes)] if it has one
+ * Poison:        [TYPE_POISON][toShutdownServer as 0/1]
+ * username list: [TYPE_USER_LIST][count][username]...
+ * RoomCommand:   [TYPE_ROOM_COMMAND][room][join as 0/1]
+ * PresenceSnapshot: [TYPE_PRESENCE_SNAPSHOT][version (8 bytes)][count (-1 for a request)][username]...
+ * PresenceDelta: [TYPE_PRESENCE_DELTA][version (8 bytes)][username][joined as 0/1]
+ * HistoryBatch:  [TYPE_HISTORY_BATCH][room][count]([sequence (8 bytes)][username][message])...
+ * Session:       [TYPE_SESSION][token][count (-1 for none)]([room][sequence (8 bytes)])...
+ * Heartbeat:     [TYPE_HEARTBEAT][pong as 0/1][timestamp (8 bytes)]
+ * Credit:        [TYPE_CREDIT][credits]
+ * DirectMessage: [TYPE_DIRECT_MESSAGE][sender][recipient][message]
+ *
+ * Servers decode every connection with a decoder of its own, see newDecoder(), which reuses the
+ * username and room Strings of the connection's chat messages and leaves their text in UTF-8.
+ */
+public final class BinaryCodec implements MessageCodec
+{
+    public static final int MAGIC = 0x47434231; //"GCB1"
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    static final byte TYPE_CHAT_MESSAGE = 1;
+    static final byte TYPE_POISON = 2;
+    static final byte TYPE_USER_LIST = 3;
+    static final byte TYPE_ROOM_COMMAND = 4;
+    static final byte TYPE_PRESENCE_SNAPSHOT = 5;
+    static final byte TYPE_PRESENCE_DELTA = 6;
+    static final byte TYPE_HISTORY_BATCH = 7;
+    static final byte TYPE_SESSION = 8;
+    static final byte TYPE_HEARTBEAT = 9;
+    static final byte TYPE_CREDIT = 10;
+    static final byte TYPE_DIRECT_MESSAGE = 11;
+
+    private BinaryCodec()
+    {
+    }
+
+    @Override
+    public int magic()
+    {
+        return MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object msg) throws IOException
+    {
+        if (msg instanceof ChatMessage)
+        {
+            ChatMessage chatMessage = (ChatMessage) msg;
+            byte[] username = utf8(chatMessage.getUsername());
+            byte[] message = messageUtf8(chatMessage);
+            byte[] room = chatMessage.isPublic() ? null : utf8(chatMessage.getRoom());
+            boolean sequenced = chatMessage.getSequence() != 0;
+
+            ByteBuffer out = ByteBuffer.allocate(1 + sizeOf(username) + sizeOf(message)
+                    + (room != null || sequenced ? sizeOf(room) : 0) + (sequenced ? 8 : 0));
+            out.put(TYPE_CHAT_MESSAGE);
+            putString(out, username);
+            putString(out, message);
+            if (room != null || sequenced) putString(out, room); //trailing, so public messages keep their original layout
+            if (sequenced) out.putLong(chatMessage.getSequence());
+            return out.array();
+        }
+        if (msg instanceof Poison)
+        {
+            return new byte[]{TYPE_POISON, (byte) (((Poison) msg).isToShutdownServer() ? 1 : 0)};
+        }
+        if (msg instanceof List<?>)
+        {
+            return encodeUsernames(TYPE_USER_LIST, null, (List<?>) msg);
+        }
+        if (msg instanceof PresenceSnapshot)
+        {
+            PresenceSnapshot snapshot = (PresenceSnapshot) msg;
+            return encodeUsernames(TYPE_PRESENCE_SNAPSHOT, snapshot.getVersion(), snapshot.getUsernames());
+        }
+        if (msg instanceof PresenceDelta)
+        {
+            PresenceDelta delta = (PresenceDelta) msg;
+            byte[] username = utf8(delta.getUsername());
+
+            ByteBuffer out = ByteBuffer.allocate(1 + 8 + sizeOf(username) + 1);
+            out.put(TYPE_PRESENCE_DELTA).putLong(delta.getVersion());
+            putString(out, username);
+            out.put((byte) (delta.isJoined() ? 1 : 0));
+            return out.array();
+        }
+        if (msg instanceof HistoryBatch)
+        {
+            return encodeHistory((HistoryBatch) msg);
+        }
+        if (msg instanceof Session)
+        {
+            return encodeSession((Session) msg);
+        }
+        if (msg instanceof Heartbeat)
+        {
+            ByteBuffer out = ByteBuffer.allocate(1 + 1 + 8);
+            out.put(TYPE_HEARTBEAT).put((byte) (((Heartbeat) msg).isPong() ? 1 : 0)).putLong(((Heartbeat) msg).getTimestamp());
+            return out.array();
+        }
+        if (msg instanceof Credit)
+        {
+            return ByteBuffer.allocate(1 + 4).put(TYPE_CREDIT).putInt(((Credit) msg).getCredits()).array();
+        }
+        if (msg instanceof DirectMessage)
+        {
+            DirectMessage direct = (DirectMessage) msg;
+            byte[] sender = utf8(direct.getSender());
+            byte[] recipient = utf8(direct.getRecipient());
+            byte[] message = utf8(direct.getMessage());
+
+            ByteBuffer out = ByteBuffer.allocate(1 + sizeOf(sender) + sizeOf(recipient) + sizeOf(message));
+            out.put(TYPE_DIRECT_MESSAGE);
+            putString(out, sender);
+            putString(out, recipient);
+            putString(out, message);
+            return out.array();
+        }
+        if (msg instanceof RoomCommand)
+        {
+            byte[] room = utf8(((RoomCommand) msg).getRoom());
+
+            ByteBuffer out = ByteBuffer.allocate(1 + sizeOf(room) + 1);
+            out.put(TYPE_ROOM_COMMAND);
+            putString(out, room);
+            out.put((byte) (((RoomCommand) msg).isJoin() ? 1 : 0));
+            return out.array();
+        }
+        throw new IOException("Cannot encode " + (msg == null ? "null" : msg.getClass().getName()));
+    }
+
+    @Override
+    public Object decode(byte[] buf, int offset, int length) throws IOException
+    {
+        return decode(ByteBuffer.wrap(buf, offset, length), null);
+    }
+
+    /**
+     * @return a decoder that, for as long as a connection keeps sending the same username and room, returns
+     *         the same Strings rather than decoding them anew, and leaves the text of chat messages in UTF-8
+     */
+    @Override
+    public MessageDecoder newDecoder()
+    {
+        return new Decoder();
+    }
+
+    /**
+     * @param decoder the connection's decoder, null to decode every String anew
+     */
+    private static Object decode(ByteBuffer in, Decoder decoder) throws IOException
+    {
+        try
+        {
+            byte type = in.get();
+            switch (type)
+            {
+                case TYPE_CHAT_MESSAGE:
+                    ChatMessage chatMessage;
+                    if (decoder == null)
+                    {
+                        String username = getString(in);
+                        String message = getString(in);
+                        chatMessage = new ChatMessage(username, message, in.hasRemaining() ? getString(in) : null);
+                    }
+                    else
+                    {
+                        String username = decoder.username.get(in);
+                        byte[] message = getBytes(in);
+                        chatMessage = ChatMessage.fromUtf8(username, message, in.hasRemaining() ? decoder.room.get(in) : null);
+                    }
+                    if (in.hasRemaining()) chatMessage.setSequence(in.getLong());
+                    return chatMessage;
+                case TYPE_POISON:
+                    return new Poison(in.get() != 0);
+                case TYPE_USER_LIST:
+                    return getUsernames(in);
+                case TYPE_PRESENCE_SNAPSHOT:
+                    long version = in.getLong();
+                    return new PresenceSnapshot(version, getUsernames(in));
+                case TYPE_PRESENCE_DELTA:
+                    long deltaVersion = in.getLong();
+                    String deltaUsername = getString(in);
+                    return new PresenceDelta(deltaVersion, deltaUsername, in.get() != 0);
+                case TYPE_HISTORY_BATCH:
+                    return decodeHistory(in);
+                case TYPE_SESSION:
+                    return decodeSession(in);
+                case TYPE_HEARTBEAT:
+                    boolean pong = in.get() != 0;
+                    return new Heartbeat(pong, in.getLong());
+                case TYPE_CREDIT:
+                    return new Credit(in.getInt());
+                case TYPE_DIRECT_MESSAGE:
+                    String sender = getString(in);
+                    String recipient = getString(in);
+                    return new DirectMessage(sender, recipient, getString(in));
+                case TYPE_ROOM_COMMAND:
+                    String room = getString(in);
+                    return new RoomCommand(room, in.get() != 0);
+                default:
+                    throw new StreamCorruptedException("Unknown message type: " + type);
+            }
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new StreamCorruptedException("Truncated payload");
+        }
+    }
+
+    /**
+     * Encodes [type][version, unless null][count][username]..., with a count of -1 for a null list
+     */
+    private static byte[] encodeUsernames(byte type, Long version, List<?> usernames)
+    {
+        int count = usernames == null ? -1 : usernames.size();
+        byte[][] encoded = new byte[Math.max(count, 0)][];
+        int size = 1 + (version == null ? 0 : 8) + 4;
+        for (int i = 0; i < encoded.length; i++)
+        {
+            encoded[i] = utf8((String) usernames.get(i));
+            size += sizeOf(encoded[i]);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(type);
+        if (version != null) out.putLong(version);
+        out.putInt(count);
+        for (byte[] username : encoded) putString(out, username);
+        return out.array();
+    }
+
+    /**
+     * Encodes a HistoryBatch, its messages all belonging to the batch's room
+     */
+    private static byte[] encodeHistory(HistoryBatch batch)
+    {
+        byte[] room = utf8(batch.getRoom());
+        List<ChatMessage> messages = batch.getMessages();
+        byte[][] encoded = new byte[messages.size() * 2][];
+        int size = 1 + sizeOf(room) + 4;
+        for (int i = 0; i < messages.size(); i++)
+        {
+            encoded[2 * i] = utf8(messages.get(i).getUsername());
+            encoded[2 * i + 1] = messageUtf8(messages.get(i));
+            size += 8 + sizeOf(encoded[2 * i]) + sizeOf(encoded[2 * i + 1]);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(TYPE_HISTORY_BATCH);
+        putString(out, room);
+        out.putInt(messages.size());
+        for (int i = 0; i < messages.size(); i++)
+        {
+            out.putLong(messages.get(i).getSequence());
+            putString(out, encoded[2 * i]);
+            putString(out, encoded[2 * i + 1]);
+        }
+        return out.array();
+    }
+
+    private static HistoryBatch decodeHistory(ByteBuffer in) throws StreamCorruptedException
+    {
+        String room = getString(in);
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / 16) throw new StreamCorruptedException("Invalid history size: " + count);
+
+        ArrayList<ChatMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            long sequence = in.getLong();
+            String username = getString(in);
+            ChatMessage msg = new ChatMessage(username, getString(in), room);
+            msg.setSequence(sequence);
+            messages.add(msg);
+        }
+        return new HistoryBatch(room, messages);
+    }
+
+    private static byte[] encodeSession(Session session)
+    {
+        byte[] token = utf8(session.getToken());
+        List<Map.Entry<String, Long>> sequences = session.getLastSequences() == null
+                ? null : new ArrayList<>(session.getLastSequences().entrySet());
+        byte[][] rooms = new byte[sequences == null ? 0 : sequences.size()][];
+        int size = 1 + sizeOf(token) + 4;
+        for (int i = 0; i < rooms.length; i++)
+        {
+            rooms[i] = utf8(sequences.get(i).getKey());
+            size += sizeOf(rooms[i]) + 8;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(TYPE_SESSION);
+        putString(out, token);
+        out.putInt(sequences == null ? -1 : rooms.length);
+        for (int i = 0; i < rooms.length; i++)
+        {
+            putString(out, rooms[i]);
+            out.putLong(sequences.get(i).getValue());
+        }
+        return out.array();
+    }
+
+    private static Session decodeSession(ByteBuffer in) throws StreamCorruptedException
+    {
+        String token = getString(in);
+        int count = in.getInt();
+        if (count == -1) return new Session(token, null);
+        if (count < 0 || count > in.remaining() / 12) throw new StreamCorruptedException("Invalid session size: " + count);
+
+        HashMap<String, Long> sequences = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++)
+        {
+            String room = getString(in);
+            sequences.put(room, in.getLong());
+        }
+        return new Session(token, sequences);
+    }
+
+    /**
+     * @return the decoded list, null if it was encoded with a count of -1
+     */
+    private static ArrayList<String> getUsernames(ByteBuffer in) throws StreamCorruptedException
+    {
+        int count = in.getInt();
+        if (count == -1) return null;
+        if (count < 0 || count > in.remaining() / 4) throw new StreamCorruptedException("Invalid list size: " + count);
+
+        ArrayList<String> usernames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) usernames.add(getString(in));
+        return usernames;
+    }
+
+    private static byte[] utf8(String s)
+    {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the text of a message in UTF-8, as received if it was decoded rather than encoded anew
+     */
+    private static byte[] messageUtf8(ChatMessage msg)
+    {
+        byte[] kept = msg.getMessageUtf8();
+        return kept != null ? kept : utf8(msg.getMessage());
+    }
+
+    private static int sizeOf(byte[] string)
+    {
+        return 4 + (string == null ? 0 : string.length);
+    }
+
+    private static void putString(ByteBuffer out, byte[] string)
+    {
+        if (string == null)
+        {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(string.length).put(string);
+    }
+
+    private static String getString(ByteBuffer in) throws StreamCorruptedException
+    {
+        int length = getLength(in);
+        if (length == -1) return null;
+
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /**
+     * @return a copy of the UTF-8 bytes of a string, null if it was encoded as null
+     */
+    private static byte[] getBytes(ByteBuffer in) throws StreamCorruptedException
+    {
+        int length = getLength(in);
+        if (length == -1) return null;
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the length of the string that follows, -1 for null
+     */
+    private static int getLength(ByteBuffer in) throws StreamCorruptedException
+    {
+        int length = in.getInt();
+        if (length < -1 || length > in.remaining()) throw new StreamCorruptedException("Invalid string length: " + length);
+        return length;
+    }
+
+    /**
+     * The decoder of a single connection. Its ByteBuffer is reused for as long as the connection
+     * reads into the same buffer.
+     */
+    private static final class Decoder implements MessageDecoder
+    {
+        private final RecentString username = new RecentString();
+        private final RecentString room = new RecentString();
+        private ByteBuffer wrapped;
+
+        @Override
+        public Object decode(byte[] buf, int offset, int length) throws IOException
+        {
+            if (wrapped == null || wrapped.array() != buf) wrapped = ByteBuffer.wrap(buf);
+            wrapped.limit(offset + length).position(offset);
+            return BinaryCodec.decode(wrapped, this);
+        }
+    }
+
+    /**
+     * The last String decoded for a field, returned again for as long as the same bytes come in
+     */
+    private static final class RecentString
+    {
+        private byte[] bytes;
+        private String value;
+
+        String get(ByteBuffer in) throws StreamCorruptedException
+        {
+            int length = getLength(in);
+            if (length == -1) return null;
+
+            byte[] buf = in.array();
+            int start = in.arrayOffset() + in.position();
+            in.position(in.position() + length);
+            if (value != null && matches(buf, start, length)) return value;
+
+            bytes = Arrays.copyOfRange(buf, start, start + length);
+            value = new String(bytes, StandardCharsets.UTF_8);
+            return value;
+        }
+
+        private boolean matches(byte[] buf, int start, int length)
+        {
+            if (bytes.length != length) return false;
+            for (int i = 0; i < length; i++)
+                if (bytes[i] != buf[start + i]) return false;
+            return true;
+        }
+    }
+}
@@ -1,33 +1,74 @@
 package gchatdata;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This class represents messages sent between client
  * and server in the chat application. A ChatMessage
  * object consists of two parts, the username and the
- * actual message
+ * actual message, plus the room it is posted in.
+ * Messages without a room belong to the public room.
  *
  * It implements Serializable interface as such
  * objects constantly travel through streams.
+ *
+ * Messages decoded by a server's BinaryCodec decoder keep their text as the UTF-8
+ * bytes received, and only decode it into a String when asked for it, such as by
+ * the log. Encoding them again with BinaryCodec copies the bytes as they are.
  */
 public class ChatMessage implements Serializable
 {
     private static final long serialVersionUID = 857661769746528913L;
 
+    public static final String PUBLIC_ROOM = "public"; //the room every client is in
+    public static final int MAX_MESSAGE_LENGTH = 8 * 1024; //characters of text a server accepts in a message
+    public static final int MAX_NAME_LENGTH = 64; //characters of a username or room name a server accepts
+    private static final int FIELD_OVERHEAD = 64; //bytes any codec takes for the sequence, lengths and type tags
+
     private String username;
-    private String message;
+    private String message; //null until first asked for if the message was decoded from UTF-8
+    private transient byte[] messageUtf8; //the text as received, null unless decoded by BinaryCodec
+    private String room; //null for the public room, older clients never set it
+    private long sequence; //set by the server when broadcasting, 0 for messages that are not part of the history
 
     /**
-     * Public constructor of ChatMessage object
+     * Public constructor of ChatMessage object, for the public room
      *
      * @param username is the username of the client
      * @param message is the actual message to be sent over
      */
     public ChatMessage(String username, String message)
+    {
+        this(username, message, null);
+    }
+
+    /**
+     * Public constructor of ChatMessage object
+     *
+     * @param username is the username of the client
+     * @param message is the actual message to be sent over
+     * @param room the room the message is posted in, null for the public room
+     */
+    public ChatMessage(String username, String message, String room)
     {
         this.username = username;
         this.message = message;
+        this.room = PUBLIC_ROOM.equals(room) ? null : room;
+    }
+
+    /**
+     * Creates a message whose text is only decoded when asked for, see getMessageUtf8()
+     *
+     * @param messageUtf8 the UTF-8 bytes of the message, must not be modified afterwards
+     */
+    static ChatMessage fromUtf8(String username, byte[] messageUtf8, String room)
+    {
+        ChatMessage msg = new ChatMessage(username, null, room);
+        msg.messageUtf8 = messageUtf8;
+        return msg;
     }
 
     //Getter-Setter methods for
@@ -44,23 +85,104 @@ public class ChatMessage implements Serializable
 
     public String getMessage()
     {
-        return message;
+        String text = message;
+        if (text == null && messageUtf8 != null)
+        {
+            text = new String(messageUtf8, StandardCharsets.UTF_8);
+            message = text; //decoding twice in a race is harmless, Strings are immutable
+        }
+        return text;
     }
 
     public void setMessage(String message)
     {
         this.message = message;
+        this.messageUtf8 = null;
+    }
+
+    /**
+     * @return the UTF-8 bytes of the message as received, null if it was created from a String
+     */
+    byte[] getMessageUtf8()
+    {
+        return messageUtf8;
+    }
+
+    /**
+     * @return the room the message is posted in, never null
+     */
+    public String getRoom()
+    {
+        return room == null ? PUBLIC_ROOM : room;
+    }
+
+    /**
+     * @return whether the message is posted in the public room
+     */
+    public boolean isPublic()
+    {
+        return room == null;
+    }
+
+    /**
+     * @return the position of the message in the server's history, 0 if it has none
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    public void setSequence(long sequence)
+    {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return whether the text is longer than MAX_MESSAGE_LENGTH. Text received as UTF-8 is only
+     *         decoded if it has more bytes than that, as it never has fewer bytes than characters.
+     */
+    public boolean isTooLong()
+    {
+        byte[] utf8 = messageUtf8;
+        if (utf8 != null && utf8.length <= MAX_MESSAGE_LENGTH) return false;
+        String text = getMessage();
+        return text != null && text.length() > MAX_MESSAGE_LENGTH;
+    }
+
+    /**
+     * @return an upper bound of the bytes the message adds to a frame encoded by any codec: a character
+     *         takes at most 3 bytes in UTF-8 and in the modified UTF-8 of serialization, which takes at
+     *         most twice the bytes of UTF-8. Not counting what a codec writes once per frame, such as
+     *         serialization's class descriptors.
+     */
+    public int sizeBound()
+    {
+        byte[] utf8 = messageUtf8;
+        String text = message;
+        int textBytes = utf8 != null ? 2 * utf8.length : text == null ? 0 : 3 * text.length();
+        int nameChars = (username == null ? 0 : username.length()) + (room == null ? 0 : room.length());
+        return textBytes + 3 * nameChars + FIELD_OVERHEAD;
     }
 
     /**
      * Overridden toString variation
      *
      * @return username + message concatenated as one string if username field has a value
-     *         otherwise return simple the message
+     *         otherwise return simple the message, prefixed with the room unless it is public
      */
     @Override
     public String toString()
     {
-        return username.length() > 0 ? (username + ": " + message) : (message);
+        String text = username.length() > 0 ? (username + ": " + getMessage()) : (getMessage());
+        return room == null ? text : ("[#" + room + "] " + text);
+    }
+
+    /**
+     * Decodes the text before serializing, legacy clients and the SerializationCodec expect the String
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        getMessage();
+        out.defaultWriteObject();
     }
 }
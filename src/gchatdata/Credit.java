@@ -0,0 +1,31 @@
+package gchatdata;
+
+import java.io.Serializable;
+
+/**
+ * A grant of send credit, from the server to a framed client.
+ *
+ * Every ChatMessage a client sends uses up one credit, and a client out of credit holds its
+ * messages back until the next grant. The server grants a full window when a user joins or
+ * resumes, and tops it up as messages are received, unless its outbound queues are backing
+ * up, in which case the grant waits until they have drained. That way a fast sender is slowed
+ * down before it can flood the fan-out.
+ *
+ * Legacy clients know nothing about credit; they are only subject to the server's rate limit.
+ */
+public class Credit implements Serializable
+{
+    private static final long serialVersionUID = -6630219466154102870L;
+
+    private final int credits; //added to whatever credit the client has left
+
+    public Credit(int credits)
+    {
+        this.credits = credits;
+    }
+
+    public int getCredits()
+    {
+        return credits;
+    }
+}
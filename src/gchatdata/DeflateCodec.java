@@ -0,0 +1,212 @@
+package gchatdata;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * BinaryCodec with per-frame compression, selected by clients with the "GCZ1" magic.
+ *
+ * Payloads of at least THRESHOLD bytes (pasted logs, history batches) are deflated, smaller
+ * ones are sent as they are, and so is any payload that would not get any smaller:
+ *
+ *      [RAW][BinaryCodec payload]
+ *      [DEFLATED][length of the BinaryCodec payload (4 bytes)][zlib stream]
+ *
+ * Both sides preset the zlib stream with the same DICTIONARY of words and phrases common in
+ * chat, so that even short messages compress well. Every frame is compressed on its own, so
+ * the server still encodes a broadcast once for all the clients using this codec.
+ *
+ * Deflaters and Inflaters hold native memory and are costly to create, so a few of each are
+ * pooled rather than created per frame. A connection's decoder inflates into a buffer of its
+ * own, reused for every frame that is not unusually large.
+ *
+ * The inflated length is declared by the peer, so it is never trusted: it may not exceed
+ * FrameIO.MAX_FRAME_LENGTH, as the payload would not have been accepted uncompressed either,
+ * the buffer only grows as data is actually inflated, and the stream must end exactly there.
+ */
+public final class DeflateCodec implements MessageCodec
+{
+    public static final int MAGIC = 0x47435A31; //"GCZ1"
+    public static final DeflateCodec INSTANCE = new DeflateCodec();
+
+    static final int THRESHOLD = 96; //bytes, below this the zlib header and checksum outweigh the savings
+    static final byte RAW = 0;
+    static final byte DEFLATED = 1;
+    private static final int MAX_INFLATED_LENGTH = FrameIO.MAX_FRAME_LENGTH; //guards against zip bombs
+    private static final int POOL_SIZE = 16;
+    private static final int MAX_REUSED_LENGTH = 64 * 1024; //larger payloads are inflated into a buffer of their own
+
+    //Most likely strings last, zlib finds those at the shortest distances
+    private static final byte[] DICTIONARY = ("https://www. .com .org .net http:// ERROR WARN INFO DEBUG Exception at java. "
+            + "\tat Caused by: null true false :) :( :D lol haha thanks thank you please sorry okay ok yes no maybe "
+            + "what when where who why how about would could should there their they them this that with have from "
+            + "just like know think want going really right good great sure today tomorrow tonight morning "
+            + "Session expired, rejoining You are not in # Joined # Left # public the and you for are is it to of in a ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final MessageCodec inner = BinaryCodec.INSTANCE;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private DeflateCodec()
+    {
+    }
+
+    @Override
+    public int magic()
+    {
+        return MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object msg) throws IOException
+    {
+        byte[] payload = inner.encode(msg);
+        if (payload.length >= THRESHOLD && payload.length <= MAX_INFLATED_LENGTH) //peers would reject larger ones inflated
+        {
+            byte[] deflated = deflate(payload);
+            if (deflated != null) return deflated;
+        }
+
+        byte[] raw = new byte[1 + payload.length];
+        raw[0] = RAW;
+        System.arraycopy(payload, 0, raw, 1, payload.length);
+        return raw;
+    }
+
+    @Override
+    public Object decode(byte[] buf, int offset, int length) throws IOException
+    {
+        if (length < 1) throw new StreamCorruptedException("Empty payload");
+        if (buf[offset] == RAW) return inner.decode(buf, offset + 1, length - 1);
+        if (buf[offset] != DEFLATED || length < 5) throw new StreamCorruptedException("Unknown compression: " + buf[offset]);
+
+        int inflatedLength = ByteBuffer.wrap(buf, offset + 1, 4).getInt();
+        checkInflatedLength(inflatedLength);
+        byte[] payload = inflate(buf, offset + 5, length - 5, new byte[Math.min(inflatedLength, THRESHOLD * 4)], inflatedLength);
+        return inner.decode(payload, 0, inflatedLength);
+    }
+
+    /**
+     * @return a decoder that inflates into a buffer of its own and decodes with a BinaryCodec decoder
+     */
+    @Override
+    public MessageDecoder newDecoder()
+    {
+        return new Decoder();
+    }
+
+    /**
+     * @return the DEFLATED payload, or null if it is no smaller than the original
+     */
+    private byte[] deflate(byte[] payload)
+    {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try
+        {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(payload);
+            deflater.finish();
+
+            byte[] out = new byte[payload.length]; //anything that does not fit is not worth it
+            out[0] = DEFLATED;
+            ByteBuffer.wrap(out, 1, 4).putInt(payload.length);
+            int length = 5;
+            while (!deflater.finished() && length < out.length)
+                length += deflater.deflate(out, length, out.length - length);
+            return deflater.finished() ? Arrays.copyOf(out, length) : null;
+        } finally
+        {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) deflater.end();
+        }
+    }
+
+    private static void checkInflatedLength(int inflatedLength) throws StreamCorruptedException
+    {
+        if (inflatedLength < 0 || inflatedLength > MAX_INFLATED_LENGTH)
+            throw new StreamCorruptedException("Invalid inflated length: " + inflatedLength);
+    }
+
+    /**
+     * Inflates a DEFLATED payload, growing out as needed, never beyond inflatedLength
+     *
+     * @return the buffer holding the inflatedLength bytes, out or a larger one
+     * @throws StreamCorruptedException if the stream is corrupt or inflates to any other length
+     */
+    private byte[] inflate(byte[] buf, int offset, int length, byte[] out, int inflatedLength) throws IOException
+    {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) inflater = new Inflater();
+        try
+        {
+            inflater.setInput(buf, offset, length);
+            int n = 0;
+            while (!inflater.finished())
+            {
+                int end = Math.min(out.length, inflatedLength);
+                if (n == end)
+                {
+                    if (n < inflatedLength) //grown as data comes, not by what the peer declared
+                    {
+                        out = Arrays.copyOf(out, (int) Math.min(inflatedLength, 2L * n + 64));
+                        continue;
+                    }
+                    int extra = inflater.inflate(new byte[1]); //all there, only the end of the stream may follow
+                    if (extra == 0 && inflater.needsDictionary()) inflater.setDictionary(DICTIONARY);
+                    else if (extra > 0 || !inflater.finished()) break;
+                    continue;
+                }
+
+                int inflated = inflater.inflate(out, n, end - n);
+                if (inflated == 0)
+                {
+                    if (inflater.needsDictionary()) inflater.setDictionary(DICTIONARY);
+                    else if (inflater.needsInput()) break; //truncated
+                }
+                n += inflated;
+            }
+            if (n != inflatedLength || !inflater.finished()) throw new StreamCorruptedException("Inflated length does not match");
+            return out;
+        } catch (DataFormatException | IllegalArgumentException e) //the latter for a wrong dictionary
+        {
+            throw new StreamCorruptedException("Corrupt zlib stream: " + e.getMessage());
+        } finally
+        {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) inflater.end();
+        }
+    }
+
+    /**
+     * The decoder of a single connection
+     */
+    private final class Decoder implements MessageDecoder
+    {
+        private final MessageDecoder binary = inner.newDecoder();
+        private byte[] inflated = new byte[THRESHOLD * 4]; //grown up to MAX_REUSED_LENGTH as needed
+
+        @Override
+        public Object decode(byte[] buf, int offset, int length) throws IOException
+        {
+            if (length < 1) throw new StreamCorruptedException("Empty payload");
+            if (buf[offset] == RAW) return binary.decode(buf, offset + 1, length - 1);
+            if (buf[offset] != DEFLATED || length < 5) throw new StreamCorruptedException("Unknown compression: " + buf[offset]);
+
+            int inflatedLength = ByteBuffer.wrap(buf, offset + 1, 4).getInt();
+            checkInflatedLength(inflatedLength);
+            byte[] out = inflate(buf, offset + 5, length - 5, inflated, inflatedLength);
+            if (out.length <= MAX_REUSED_LENGTH) inflated = out;
+            return binary.decode(out, 0, inflatedLength);
+        }
+    }
+}
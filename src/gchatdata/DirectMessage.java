@@ -0,0 +1,58 @@
+package gchatdata;
+
+import java.io.Serializable;
+
+/**
+ * A private message from one user to another.
+ *
+ * Sent by a client with only the recipient and the text, the server fills in the sender from
+ * the connection it was read on and delivers it to the recipient alone. Direct messages are not
+ * part of any room, nor of the history, and are not held back for send credit, only subject to
+ * the server's rate limit.
+ *
+ * Legacy clients receive them as plain ChatMessages.
+ */
+public class DirectMessage implements Serializable
+{
+    private static final long serialVersionUID = 4418872561296603190L;
+
+    private final String sender; //null as sent by the client, set by the server
+    private final String recipient;
+    private final String message;
+
+    public DirectMessage(String sender, String recipient, String message)
+    {
+        this.sender = sender;
+        this.recipient = recipient;
+        this.message = message;
+    }
+
+    public String getSender()
+    {
+        return sender;
+    }
+
+    public String getRecipient()
+    {
+        return recipient;
+    }
+
+    public String getMessage()
+    {
+        return message;
+    }
+
+    /**
+     * @return the same message, as sent by the given user
+     */
+    public DirectMessage from(String sender)
+    {
+        return new DirectMessage(sender, recipient, message);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[" + sender + " -> " + recipient + "] " + message;
+    }
+}
@@ -0,0 +1,80 @@
+package gchatdata;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * Helpers for the length-prefixed framing used by framed connections.
+ *
+ * A framed connection starts with the 4 byte magic of its MessageCodec, followed by
+ * any number of frames. Each frame is a 4 byte big-endian payload length followed
+ * by the payload itself.
+ *
+ * Legacy clients instead open with the Java serialization stream header (0xACED),
+ * which is how the server tells the two apart.
+ */
+public final class FrameIO
+{
+    public static final int HEADER_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = 1 << 20; //1MB, anything above is treated as corruption
+    public static final int SERIALIZATION_STREAM_MAGIC = 0xACED; //first 2 bytes of an ObjectOutputStream
+
+    private FrameIO()
+    {
+    }
+
+    /**
+     * Checks whether the first 4 bytes of a connection belong to a legacy ObjectOutputStream
+     *
+     * @param header the first 4 bytes read from the connection
+     * @return true if the connection speaks plain Java serialization
+     */
+    public static boolean isLegacyHeader(int header)
+    {
+        return (header >>> 16) == SERIALIZATION_STREAM_MAGIC;
+    }
+
+    /**
+     * Writes the handshake selecting the given codec, must be the first thing sent by a client
+     */
+    public static void writeHandshake(DataOutputStream out, MessageCodec codec) throws IOException
+    {
+        out.writeInt(codec.magic());
+    }
+
+    /**
+     * Writes a single frame. Flushing is left to the caller.
+     */
+    public static void writeFrame(DataOutputStream out, byte[] payload) throws IOException
+    {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * Blocks until a whole frame is read
+     *
+     * @return the frame's payload
+     * @throws StreamCorruptedException if the advertised length is out of bounds
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        checkLength(length);
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * @throws StreamCorruptedException if a frame length is negative or above MAX_FRAME_LENGTH
+     */
+    public static void checkLength(int length) throws StreamCorruptedException
+    {
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+    }
+}
@@ -0,0 +1,50 @@
+package gchatdata;
+
+import java.io.Serializable;
+
+/**
+ * An application-level ping or pong, to tell a quiet connection from a dead one.
+ *
+ * TCP alone cannot notice a peer that vanished without closing its socket (a laptop lid
+ * closed, a NAT entry expired). So whichever side has not heard from the other for a while
+ * sends a ping, and the other side answers with a pong carrying the same timestamp, which
+ * also gives the round trip time. A connection that stays silent even then is dropped.
+ *
+ * Only framed clients are pinged, legacy clients would not know this class.
+ */
+public class Heartbeat implements Serializable
+{
+    private static final long serialVersionUID = 4285062312775106094L;
+
+    private final boolean pong;
+    private final long timestamp; //System.nanoTime() of the pinging side, echoed back in the pong
+
+    public Heartbeat(boolean pong, long timestamp)
+    {
+        this.pong = pong;
+        this.timestamp = timestamp;
+    }
+
+    public static Heartbeat ping()
+    {
+        return new Heartbeat(false, System.nanoTime());
+    }
+
+    /**
+     * @return the answer to this ping
+     */
+    public Heartbeat pong()
+    {
+        return new Heartbeat(true, timestamp);
+    }
+
+    public boolean isPong()
+    {
+        return pong;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+}
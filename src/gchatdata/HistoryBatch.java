@@ -0,0 +1,32 @@
+package gchatdata;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * The most recent messages of a room, sent in a single frame to a client
+ * right after it enters the room, oldest message first.
+ */
+public class HistoryBatch implements Serializable
+{
+    private static final long serialVersionUID = 2791546023386470541L;
+
+    private final String room;
+    private final ArrayList<ChatMessage> messages;
+
+    public HistoryBatch(String room, ArrayList<ChatMessage> messages)
+    {
+        this.room = room == null ? ChatMessage.PUBLIC_ROOM : room;
+        this.messages = messages;
+    }
+
+    public String getRoom()
+    {
+        return room;
+    }
+
+    public ArrayList<ChatMessage> getMessages()
+    {
+        return messages;
+    }
+}
@@ -0,0 +1,129 @@
+package gchatdata;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, for percentiles of millions of samples without
+ * keeping the samples, in the manner of HdrHistogram.
+ *
+ * Buckets are log-linear: values below 256ns are counted exactly, larger ones in the 128
+ * equal slots of their power of two, so every value is reported to within 1% whatever its
+ * magnitude. The counts take a fixed 58KB. record() is thread-safe, lock-free and allocates
+ * nothing, so it can be called from any number of reader threads at once.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;     //256 exact values, then
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;      //128 slots per power of two
+    private static final int BUCKETS = 63 - SUB_BUCKET_BITS + 1;      //powers of two up to Long.MAX_VALUE
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + BUCKETS * HALF_SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the latency, negative values count as 0
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(indexOf(nanos));
+        total.increment();
+        sum.add(nanos);
+        if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getTotalCount()
+    {
+        return total.sum();
+    }
+
+    public long getMaxNanos()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return the sum of every sample, in nanoseconds
+     */
+    public long getTotalNanos()
+    {
+        return sum.sum();
+    }
+
+    public double getMeanNanos()
+    {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * @param percentile from 0 to 100, e.g. 99.9
+     * @return the highest latency of the given share of samples, 0 if there are none
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) count += counts.get(i);
+        if (count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestValueAt(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets every sample, e.g. those recorded while warming up. Samples recorded
+     * concurrently may or may not be forgotten.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @return the usual percentiles in milliseconds, on one line
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("p50 %.3fms, p90 %.3fms, p99 %.3fms, p99.9 %.3fms, p99.99 %.3fms, max %.3fms (%d samples, mean %.3fms)",
+                millis(getValueAtPercentile(50)), millis(getValueAtPercentile(90)), millis(getValueAtPercentile(99)),
+                millis(getValueAtPercentile(99.9)), millis(getValueAtPercentile(99.99)), millis(getMaxNanos()),
+                getTotalCount(), getMeanNanos() / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static double millis(long nanos)
+    {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static int indexOf(long value)
+    {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1); //the slot width is 1 << shift
+        int slot = (int) (value >>> shift) - HALF_SUB_BUCKETS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + slot;
+    }
+
+    private static long highestValueAt(int index)
+    {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long slot = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return (slot << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,65 @@
+package gchatdata;
+
+import java.io.IOException;
+
+/**
+ * A MessageCodec turns the objects exchanged between client and server
+ * (ChatMessage, Poison and the username list) into frame payloads and back.
+ *
+ * Every framed connection starts with a 4 byte magic number written by the client,
+ * which tells the server which codec the rest of the stream is encoded with.
+ *
+ * @see FrameIO
+ */
+public interface MessageCodec
+{
+    /**
+     * @return the magic number a client sends to select this codec
+     */
+    int magic();
+
+    /**
+     * Encodes a single message into a self-contained payload
+     *
+     * @param msg the message to encode
+     * @return the payload, without the frame length header
+     * @throws IOException in case the message cannot be encoded
+     */
+    byte[] encode(Object msg) throws IOException;
+
+    /**
+     * Decodes a single payload previously produced by encode()
+     *
+     * @param buf the buffer holding the payload
+     * @param offset where the payload starts in buf
+     * @param length the length of the payload
+     * @return the decoded message
+     * @throws IOException in case the payload is malformed
+     */
+    Object decode(byte[] buf, int offset, int length) throws IOException;
+
+    /**
+     * Servers read every connection through a decoder of its own, which codecs may use to avoid
+     * allocating anew for every payload what is the same for all the payloads of a connection.
+     *
+     * @return a new decoder for a single connection, by default decoding with the codec itself
+     */
+    default MessageDecoder newDecoder()
+    {
+        return this::decode;
+    }
+
+    /**
+     * Looks up the codec selected by a connection's handshake
+     *
+     * @param magic the first 4 bytes sent by the client
+     * @return the matching codec or null if the magic is unknown
+     */
+    static MessageCodec forMagic(int magic)
+    {
+        if (magic == BinaryCodec.MAGIC) return BinaryCodec.INSTANCE;
+        if (magic == DeflateCodec.MAGIC) return DeflateCodec.INSTANCE;
+        if (magic == SerializationCodec.MAGIC) return SerializationCodec.INSTANCE;
+        return null;
+    }
+}
@@ -0,0 +1,23 @@
+package gchatdata;
+
+import java.io.IOException;
+
+/**
+ * Decodes the payloads read from a single connection, see MessageCodec.newDecoder().
+ *
+ * Unlike a MessageCodec, a decoder may keep state and reuse its buffers from one payload to
+ * the next, so it must only be used by the connection's reader. The messages it returns never
+ * refer to the buffer they were decoded from, which the caller is free to reuse.
+ */
+@FunctionalInterface
+public interface MessageDecoder
+{
+    /**
+     * @param buf the buffer holding the payload
+     * @param offset where the payload starts in buf
+     * @param length the length of the payload
+     * @return the decoded message
+     * @throws IOException in case the payload is malformed
+     */
+    Object decode(byte[] buf, int offset, int length) throws IOException;
+}
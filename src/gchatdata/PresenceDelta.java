@@ -0,0 +1,41 @@
+package gchatdata;
+
+import java.io.Serializable;
+
+/**
+ * A single user joining or leaving, broadcast instead of the whole username list.
+ *
+ * Versions are consecutive: a client holding presence version n applies the delta
+ * numbered n + 1, ignores older ones and asks for a new PresenceSnapshot if it
+ * ever sees a gap.
+ */
+public class PresenceDelta implements Serializable
+{
+    private static final long serialVersionUID = -6104473296624702717L;
+
+    private final long version;
+    private final String username;
+    private final boolean joined; //true if the user joined, false if they left
+
+    public PresenceDelta(long version, String username, boolean joined)
+    {
+        this.version = version;
+        this.username = username;
+        this.joined = joined;
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public boolean isJoined()
+    {
+        return joined;
+    }
+}
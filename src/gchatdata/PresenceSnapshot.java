@@ -0,0 +1,46 @@
+package gchatdata;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * The full list of usernames online, sent once to a client right after it connects.
+ * From then on the client keeps its list up to date by applying PresenceDeltas.
+ *
+ * The version is the one of the last PresenceDelta included in the snapshot. A client
+ * that notices a gap in delta versions sends an empty snapshot (null usernames) to
+ * ask the server for a fresh one.
+ *
+ * @see PresenceDelta
+ */
+public class PresenceSnapshot implements Serializable
+{
+    private static final long serialVersionUID = 4417958734390623364L;
+
+    private final long version;
+    private final ArrayList<String> usernames;
+
+    public PresenceSnapshot(long version, ArrayList<String> usernames)
+    {
+        this.version = version;
+        this.usernames = usernames;
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public ArrayList<String> getUsernames()
+    {
+        return usernames;
+    }
+
+    /**
+     * @return whether this is a client's request for a snapshot rather than a snapshot
+     */
+    public boolean isRequest()
+    {
+        return usernames == null;
+    }
+}
@@ -0,0 +1,35 @@
+package gchatdata;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a client to join or leave a named room.
+ *
+ * Every client is in the public room from the moment it connects. ChatMessages
+ * posted in any other room are only delivered to that room's members.
+ *
+ * @see ChatMessage#PUBLIC_ROOM
+ */
+public class RoomCommand implements Serializable
+{
+    private static final long serialVersionUID = -3275176208716539062L;
+
+    private final String room;
+    private final boolean join; //true to join the room, false to leave it
+
+    public RoomCommand(String room, boolean join)
+    {
+        this.room = room;
+        this.join = join;
+    }
+
+    public String getRoom()
+    {
+        return room;
+    }
+
+    public boolean isJoin()
+    {
+        return join;
+    }
+}
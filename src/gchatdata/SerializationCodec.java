@@ -0,0 +1,54 @@
+package gchatdata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * MessageCodec that encodes every message as its own Java serialization stream.
+ *
+ * Unlike a long-lived ObjectOutputStream, each payload can be decoded on its own,
+ * which is what allows a non-blocking server to cut the stream into frames.
+ * Superseded by BinaryCodec, still accepted by the server for clients that select it.
+ */
+public final class SerializationCodec implements MessageCodec
+{
+    public static final int MAGIC = 0x47434631; //"GCF1"
+    public static final SerializationCodec INSTANCE = new SerializationCodec();
+
+    private SerializationCodec()
+    {
+    }
+
+    @Override
+    public int magic()
+    {
+        return MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object msg) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(msg);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] buf, int offset, int length) throws IOException
+    {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buf, offset, length)))
+        {
+            return in.readObject();
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IOException("Unknown message class: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package gchatdata;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * A resumable session.
+ *
+ * The server sends a Session with a fresh token right after a user joins. When the
+ * connection drops, the client reconnects and sends the token back as its very first
+ * message, instead of its username, together with the sequence number of the last
+ * ChatMessage it received in each of its rooms. The server then replays only the
+ * messages missed, without the user ever appearing to leave.
+ *
+ * The server answers a resume with the same token, or with a null token if the session
+ * expired, in which case the client joins again with its username.
+ */
+public class Session implements Serializable
+{
+    private static final long serialVersionUID = -3021788652740915208L;
+
+    private final String token;
+    private final HashMap<String, Long> lastSequences; //room to last sequence received, null when sent by the server
+
+    public Session(String token, HashMap<String, Long> lastSequences)
+    {
+        this.token = token;
+        this.lastSequences = lastSequences;
+    }
+
+    public String getToken()
+    {
+        return token;
+    }
+
+    public HashMap<String, Long> getLastSequences()
+    {
+        return lastSequences;
+    }
+
+    /**
+     * @return the sequence of the last message received in the room, 0 if none
+     */
+    public long getLastSequence(String room)
+    {
+        Long sequence = lastSequences == null ? null : lastSequences.get(room);
+        return sequence == null ? 0 : sequence;
+    }
+}
@@ -0,0 +1,57 @@
+package gchatdata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Builds the SSLContexts of encrypted connections from a PKCS12 key store.
+ *
+ * The server's store holds its private key and certificate. A client's store only needs the
+ * certificates it trusts, but for local testing both can use the same self-signed store:
+ *
+ *      keytool -genkeypair -alias gchat -keyalg EC -groupname secp256r1 -validity 365 -dname CN=localhost
+ *              -ext SAN=dns:localhost,ip:127.0.0.1 -storetype PKCS12 -keystore gchat.p12 -storepass changeit
+ *
+ * Keep one context for as long as the process runs: the sessions it caches are what lets a
+ * reconnecting client resume instead of going through a full handshake.
+ */
+public final class TlsContexts
+{
+    private TlsContexts()
+    {
+    }
+
+    /**
+     * @param keyStore a PKCS12 file holding the key and certificate to present, and the certificates to trust
+     * @param password the password of the file and of its key
+     * @return a context for both servers and clients
+     * @throws IOException in case the file cannot be read or does not hold usable keys
+     */
+    public static SSLContext fromKeyStore(Path keyStore, char[] password) throws IOException
+    {
+        try (InputStream in = Files.newInputStream(keyStore))
+        {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            store.load(in, password);
+
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, password);
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(store); //a key's own certificate counts as trusted too
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e)
+        {
+            throw new IOException("Unusable key store " + keyStore + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package gchatdata;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How eagerly a writer flushes, trading latency for fewer syscalls and TCP segments.
+ *
+ * Writers always write whatever is already queued before flushing. With a window, a
+ * writer that runs out of messages also waits up to the window for more, unless the
+ * byte budget is already used up. TCP_NODELAY is set on every connection, so Nagle's
+ * algorithm never adds its own delay on top of this one.
+ */
+public final class WriteCoalescing
+{
+    /**
+     * Flush as soon as nothing more is queued, the default
+     */
+    public static final WriteCoalescing IMMEDIATE = new WriteCoalescing(0, 0);
+
+    private final long windowNanos;
+    private final int maxBytes;
+
+    private WriteCoalescing(long windowNanos, int maxBytes)
+    {
+        this.windowNanos = windowNanos;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param windowMicros the longest a written message waits to be flushed
+     * @param maxBytes flush right away once this many bytes are waiting
+     * @return the policy, IMMEDIATE if the window is 0
+     */
+    public static WriteCoalescing of(long windowMicros, int maxBytes)
+    {
+        if (windowMicros < 0 || maxBytes < 0) throw new IllegalArgumentException("Negative coalescing window or budget");
+        return windowMicros == 0 ? IMMEDIATE : new WriteCoalescing(TimeUnit.MICROSECONDS.toNanos(windowMicros), maxBytes);
+    }
+
+    /**
+     * Parses a policy from "windowMicros:maxBytes", such as "2000:16384"
+     *
+     * @throws IllegalArgumentException if the text is not of that form
+     */
+    public static WriteCoalescing parse(String text)
+    {
+        String[] parts = text.split(":");
+        if (parts.length != 2) throw new IllegalArgumentException("Expected windowMicros:maxBytes, got " + text);
+        return of(Long.parseLong(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+    }
+
+    public boolean isImmediate()
+    {
+        return windowNanos == 0;
+    }
+
+    public long getWindowNanos()
+    {
+        return windowNanos;
+    }
+
+    public int getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return isImmediate() ? "immediate" : TimeUnit.NANOSECONDS.toMicros(windowNanos) + "us/" + maxBytes + "B";
+    }
+}
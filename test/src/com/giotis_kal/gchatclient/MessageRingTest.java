@@ -0,0 +1,123 @@
+package com.giotis_kal.gchatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import gchatdata.ChatMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import javafx.collections.ListChangeListener;
+import org.junit.jupiter.api.Test;
+
+/**
+ * MessageRing as a ListView sees it: every change it reports, applied to a plain list, must
+ * give the same contents as the ring's. Needs no JavaFX toolkit, only javafx.base.
+ */
+class MessageRingTest
+{
+    private int counter;
+
+    private List<ChatMessage> messages(int count)
+    {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) messages.add(new ChatMessage("alice", "m" + counter++));
+        return messages;
+    }
+
+    /**
+     * Mirrors the ring by applying the changes it reports, and counts them
+     */
+    private static final class Mirror implements ListChangeListener<ChatMessage>
+    {
+        final List<ChatMessage> contents = new ArrayList<>();
+        int changes;
+
+        @Override
+        public void onChanged(Change<? extends ChatMessage> change)
+        {
+            changes++;
+            while (change.next())
+            {
+                if (change.wasRemoved()) contents.subList(change.getFrom(), change.getFrom() + change.getRemovedSize()).clear();
+                if (change.wasAdded()) contents.addAll(change.getFrom(), change.getAddedSubList());
+            }
+        }
+    }
+
+    @Test
+    void keepsTheMostRecentMessages()
+    {
+        MessageRing ring = new MessageRing(5);
+        List<ChatMessage> all = messages(3);
+        ring.append(all);
+        assertEquals(all, ring);
+
+        List<ChatMessage> more = messages(4);
+        ring.append(more);
+        List<ChatMessage> expected = new ArrayList<>(all);
+        expected.addAll(more);
+        assertEquals(expected.subList(2, 7), ring);
+        assertEquals("m2", ring.get(0).getMessage());
+        assertEquals("m6", ring.get(4).getMessage());
+    }
+
+    @Test
+    void keepsOnlyTheEndOfABatchLargerThanTheRing()
+    {
+        MessageRing ring = new MessageRing(4);
+        ring.append(messages(2));
+        List<ChatMessage> batch = messages(10);
+        ring.append(batch);
+        assertEquals(batch.subList(6, 10), ring);
+    }
+
+    @Test
+    void reportsEveryAppendAsOneChange()
+    {
+        MessageRing ring = new MessageRing(8);
+        Mirror mirror = new Mirror();
+        ring.addListener(mirror);
+
+        Random random = new Random(3);
+        int appends = 0;
+        for (int i = 0; i < 200; i++)
+        {
+            List<ChatMessage> batch = messages(random.nextInt(12));
+            if (!batch.isEmpty()) appends++;
+            ring.append(batch);
+            assertEquals(ring, mirror.contents, "after append " + i);
+        }
+        assertEquals(appends, mirror.changes); //none for empty batches
+    }
+
+    @Test
+    void clearRemovesEverything()
+    {
+        MessageRing ring = new MessageRing(4);
+        Mirror mirror = new Mirror();
+        ring.addListener(mirror);
+        ring.append(messages(6)); //wrapped around
+
+        ring.clear();
+        assertEquals(0, ring.size());
+        assertEquals(Collections.emptyList(), mirror.contents);
+
+        List<ChatMessage> after = messages(3);
+        ring.append(after);
+        assertEquals(after, ring);
+        assertEquals(after, mirror.contents);
+    }
+
+    @Test
+    void rejectsIndicesOutOfBounds()
+    {
+        MessageRing ring = new MessageRing(4);
+        ring.append(messages(2));
+        assertThrows(IndexOutOfBoundsException.class, () -> ring.get(2));
+        assertThrows(IndexOutOfBoundsException.class, () -> ring.get(-1));
+        assertEquals(Arrays.asList(ring.get(0), ring.get(1)), new ArrayList<>(ring));
+    }
+}
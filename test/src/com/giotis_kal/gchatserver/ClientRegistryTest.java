@@ -0,0 +1,173 @@
+package com.giotis_kal.gchatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+
+class ClientRegistryTest
+{
+    /**
+     * A connection that sends nothing, only its identity and username matter here
+     */
+    private static final class Client extends ClientConnection
+    {
+        @Override
+        boolean send(OutboundMessage msg)
+        {
+            return true;
+        }
+
+        @Override
+        void disconnect()
+        {
+        }
+
+        @Override
+        int getQueueDepth()
+        {
+            return 0;
+        }
+
+        @Override
+        SocketAddress getRemoteAddress()
+        {
+            return null;
+        }
+    }
+
+    private final ClientRegistry clients = new ClientRegistry();
+
+    private Client join(String username)
+    {
+        Client client = new Client();
+        clients.add(client);
+        assertTrue(clients.claimUsername(client, username));
+        return client;
+    }
+
+    @Test
+    void addsAndRemovesClients()
+    {
+        Client alice = join("alice");
+        Client bob = join("bob");
+        assertEquals(2, clients.size());
+        assertTrue(clients.contains(alice));
+        assertSame(bob, clients.get("bob"));
+
+        assertTrue(clients.remove(alice));
+        assertFalse(clients.remove(alice)); //someone else did already
+        assertFalse(clients.contains(alice));
+        assertNull(clients.get("alice"));
+        assertEquals(1, clients.size());
+        assertNull(clients.get(null));
+    }
+
+    @Test
+    void rejectsANameAlreadyTaken()
+    {
+        Client alice = join("alice");
+
+        Client impostor = new Client();
+        clients.add(impostor);
+        assertFalse(clients.claimUsername(impostor, "alice"));
+        assertNull(impostor.getUsername());
+        assertSame(alice, clients.get("alice")); //her direct messages still go to her
+        assertEquals("alice", alice.getUsername());
+
+        clients.remove(impostor); //leaving without ever joining frees nothing
+        assertSame(alice, clients.get("alice"));
+    }
+
+    @Test
+    void keepsTheNameTakenUntilItsUserLeaves()
+    {
+        Client alice = join("alice");
+        clients.remove(alice); //connection lost, her session may still be resumed
+        assertNull(clients.get("alice"));
+        Client other = new Client();
+        clients.add(other);
+        assertFalse(clients.claimUsername(other, "alice"));
+
+        clients.releaseUsername("alice"); //left for good
+        assertTrue(clients.claimUsername(other, "alice"));
+        assertSame(other, clients.get("alice"));
+    }
+
+    @Test
+    void resumingMovesTheIndexToTheNewConnection()
+    {
+        Client before = join("alice");
+        Client after = new Client();
+        clients.add(after);
+        clients.setUsername(after, "alice"); //the session holds the name already
+        assertSame(after, clients.get("alice"));
+
+        clients.remove(before); //the old connection going away last leaves the new one indexed
+        assertSame(after, clients.get("alice"));
+    }
+
+    @Test
+    void bindsNoNullName()
+    {
+        Client client = new Client();
+        clients.add(client);
+        assertFalse(clients.claimUsername(client, null));
+        assertNull(client.getUsername());
+    }
+
+    @Test
+    void indexesNothingForAClientRemovedWhileJoining() throws InterruptedException
+    {
+        //remove() racing the index being set must never leave a removed client reachable by name
+        for (int i = 0; i < 2000; i++)
+        {
+            Client client = new Client();
+            clients.add(client);
+            String username = "user" + i;
+            CountDownLatch start = new CountDownLatch(1);
+            Thread remover = new Thread(() -> {
+                awaitQuietly(start);
+                clients.remove(client);
+            });
+            remover.start();
+            start.countDown();
+            clients.claimUsername(client, username);
+            remover.join();
+            assertNull(clients.get(username), username);
+        }
+        assertEquals(0, clients.size());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void removeAllReturnsEveryClientAndFreesTheirNames()
+    {
+        List<Client> joined = new ArrayList<>();
+        for (int i = 0; i < 10; i++) joined.add(join("user" + i));
+
+        List<ClientConnection> removed = clients.removeAll();
+        assertEquals(10, removed.size());
+        assertTrue(removed.containsAll(joined));
+        assertEquals(0, clients.size());
+        assertNull(clients.get("user3"));
+        join("user3");
+    }
+}
@@ -0,0 +1,126 @@
+package com.giotis_kal.gchatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gchatdata.ChatMessage;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class EventLogTest
+{
+    /**
+     * Records what it is written, and on which thread
+     */
+    private static final class RecordingSink implements LogSink
+    {
+        final List<String> lines = new ArrayList<>();
+        final List<String> threads = new ArrayList<>();
+        volatile boolean closed;
+
+        @Override
+        public synchronized void write(List<String> batch)
+        {
+            lines.addAll(batch);
+            threads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    @Test
+    void formatsOnTheDrainThreadInOrder()
+    {
+        EventLog log = new EventLog(1024, 1);
+        RecordingSink sink = new RecordingSink();
+        log.addSink(sink);
+        log.start();
+
+        Object event = new Object()
+        {
+            @Override
+            public String toString()
+            {
+                return "formatted on " + Thread.currentThread().getName();
+            }
+        };
+        log.log(event);
+        for (int i = 0; i < 1000; i++) assertTrue(log.log(i));
+        log.close(5000);
+
+        assertEquals(1001, sink.lines.size());
+        assertEquals("formatted on gchat-log", sink.lines.get(0));
+        for (int i = 0; i < 1000; i++) assertEquals(String.valueOf(i), sink.lines.get(i + 1));
+        for (String thread : sink.threads) assertEquals("gchat-log", thread);
+    }
+
+    @Test
+    void closeWaitsForTheLogToBeWrittenOut()
+    {
+        EventLog log = new EventLog(64, 1000); //a drain thread that sleeps long between batches
+        RecordingSink sink = new RecordingSink();
+        log.addSink(sink);
+        log.start();
+
+        log.log("Drained 3 clients in 12ms");
+        long start = System.nanoTime();
+        log.close(5000);
+
+        assertEquals(1, sink.lines.size()); //not waiting for the drain thread to wake up on its own
+        assertTrue(sink.closed);
+        assertTrue(System.nanoTime() - start < 1000 * 1000 * 1000L, "close() waited for the whole drain interval");
+    }
+
+    @Test
+    void keepsDrainingPastAnEventThatCannotBeFormatted()
+    {
+        EventLog log = new EventLog(64, 1);
+        RecordingSink sink = new RecordingSink();
+        log.addSink(sink);
+        log.start();
+
+        log.log("before");
+        log.log(new ChatMessage(null, "")); //toString() throws on the null username
+        log.log("after");
+        log.close(5000);
+
+        assertEquals(3, sink.lines.size());
+        assertEquals("before", sink.lines.get(0));
+        assertTrue(sink.lines.get(1).startsWith("<unprintable gchatdata.ChatMessage: java.lang.NullPointerException"), sink.lines.get(1));
+        assertEquals("after", sink.lines.get(2));
+        assertTrue(sink.closed); //the drain thread lived to close the sinks
+    }
+
+    @Test
+    void reportsDroppedLines()
+    {
+        EventLog log = new EventLog(4, 1);
+        RecordingSink sink = new RecordingSink();
+        log.addSink(sink);
+
+        int logged = 0;
+        for (int i = 0; i < 10; i++) if (log.log(i)) logged++;
+        assertEquals(4, logged); //no drain thread yet, the ring is full
+
+        log.start();
+        log.close(5000);
+        assertEquals(5, sink.lines.size());
+        assertEquals("6 log lines dropped, log ring full", sink.lines.get(4));
+    }
+
+    @Test
+    void closingWithoutStartingClosesTheSinks()
+    {
+        EventLog log = new EventLog(16, 1);
+        RecordingSink sink = new RecordingSink();
+        log.addSink(sink);
+
+        log.close(0);
+        assertTrue(sink.closed);
+    }
+}
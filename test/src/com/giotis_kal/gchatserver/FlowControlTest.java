@@ -0,0 +1,111 @@
+package com.giotis_kal.gchatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class FlowControlTest
+{
+    private static final double SLOW = 0.001; //tokens per second, none refilled while a test runs
+
+    @Test
+    void dropsMessagesOverTheBurst()
+    {
+        FlowControl flow = new FlowControl(SLOW, 3, 0); //a legacy client, no credit
+        for (int i = 0; i < 3; i++) assertTrue(flow.tryAcquire(true));
+        assertFalse(flow.tryAcquire(true));
+        assertFalse(flow.tryAcquire(false));
+        assertEquals(2, flow.getRefusals());
+        assertEquals(0, flow.replenish(false));
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException
+    {
+        FlowControl flow = new FlowControl(1000, 1, 0);
+        assertTrue(flow.tryAcquire(false));
+        assertFalse(flow.tryAcquire(false));
+        Thread.sleep(20);
+        assertTrue(flow.tryAcquire(false));
+        assertEquals(0, flow.getRefusals());
+    }
+
+    @Test
+    void grantsAWindowAndTopsItUpPastHalf()
+    {
+        FlowControl flow = new FlowControl(SLOW, 40, 16);
+        assertEquals(16, flow.replenish(false));
+        assertEquals(0, flow.replenish(false)); //never beyond the window
+
+        for (int i = 0; i < 7; i++) assertTrue(flow.tryAcquire(true));
+        assertEquals(0, flow.replenish(false)); //9 left
+        assertTrue(flow.tryAcquire(true));
+        assertEquals(8, flow.replenish(false));
+        assertFalse(flow.isWithheld());
+    }
+
+    @Test
+    void messagesSentOnCreditAreNeverDropped()
+    {
+        FlowControl flow = new FlowControl(SLOW, 20, 16);
+        assertEquals(16, flow.replenish(false));
+
+        //room commands use up the rest of the bucket
+        while (flow.tryAcquire(false)) ;
+        assertEquals(1, flow.getRefusals());
+
+        //yet every message sent on the credit still gets through
+        for (int i = 0; i < 16; i++)
+        {
+            assertTrue(flow.tryAcquire(true), "message " + i);
+            flow.replenish(false);
+        }
+        assertEquals(0, flow.getRefusals());
+        assertFalse(flow.tryAcquire(true)); //out of credit and tokens
+    }
+
+    @Test
+    void creditRunOutWithAnEmptyBucketIsGrantedOnceItRefills() throws InterruptedException
+    {
+        //the client spends its whole window while the bucket is empty: the top-up is withheld
+        //rather than lost, and granted by release() once tokens are back
+        FlowControl flow = new FlowControl(100, 16, 16);
+        assertEquals(16, flow.replenish(false));
+        for (int i = 0; i < 16; i++)
+        {
+            assertTrue(flow.tryAcquire(true));
+            assertEquals(0, flow.replenish(false));
+        }
+        assertFalse(flow.tryAcquire(true)); //a message sent without credit is dropped
+        assertEquals(0, flow.replenish(false));
+        assertTrue(flow.isWithheld());
+
+        Thread.sleep(100);
+        int granted = flow.release();
+        assertTrue(granted > 0 && granted <= 16, "granted " + granted);
+        assertTrue(flow.tryAcquire(true));
+    }
+
+    @Test
+    void withholdsCreditWhileCongested()
+    {
+        FlowControl flow = new FlowControl(SLOW, 40, 16);
+        assertEquals(0, flow.replenish(true));
+        assertTrue(flow.isWithheld());
+        assertEquals(16, flow.release());
+        assertFalse(flow.isWithheld());
+        assertEquals(0, flow.release());
+    }
+
+    @Test
+    void creditCountsTowardsTheBurst()
+    {
+        FlowControl flow = new FlowControl(SLOW, 20, 16);
+        assertEquals(16, flow.replenish(false));
+        int sent = 0;
+        while (flow.tryAcquire(true)) sent++;
+        assertEquals(20, sent); //the credit, then what is left of the bucket
+    }
+}
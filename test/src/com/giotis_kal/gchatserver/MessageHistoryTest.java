@@ -0,0 +1,129 @@
+package com.giotis_kal.gchatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gchatdata.ChatMessage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageHistoryTest
+{
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void aBusyRoomDoesNotEvictAQuietOne()
+    {
+        MessageHistory history = new MessageHistory();
+        history.append(new ChatMessage("alice", "anyone here?", "quiet"));
+        for (int i = 0; i < 5 * MessageHistory.ROOM_TAIL_CAPACITY; i++) history.append(new ChatMessage("bob", "m" + i, "busy"));
+
+        List<ChatMessage> quiet = history.recent("quiet", 50);
+        assertEquals(1, quiet.size());
+        assertEquals("anyone here?", quiet.get(0).getMessage());
+        assertTrue(history.covers("quiet", 0));
+
+        List<ChatMessage> busy = history.recent("busy", 10_000);
+        assertEquals(MessageHistory.ROOM_TAIL_CAPACITY, busy.size());
+        assertEquals(history.lastSequence(), busy.get(busy.size() - 1).getSequence());
+        assertFalse(history.covers("busy", 0));
+        assertTrue(history.covers("busy", history.lastSequence() - 10));
+        assertEquals(10, history.since("busy", history.lastSequence() - 10).size());
+    }
+
+    @Test
+    void replaysOnlyTheRoomAskedFor()
+    {
+        MessageHistory history = new MessageHistory();
+        history.append(new ChatMessage("alice", "p1"));
+        long after = history.append(new ChatMessage("alice", "d1", "dev"));
+        history.append(new ChatMessage("alice", "p2"));
+        history.append(new ChatMessage("alice", "d2", "dev"));
+
+        List<ChatMessage> dev = history.since("dev", after);
+        assertEquals(1, dev.size());
+        assertEquals("d2", dev.get(0).getMessage());
+        assertEquals(2, history.recent(ChatMessage.PUBLIC_ROOM, 5).size());
+        assertTrue(history.recent("nowhere", 5).isEmpty());
+        assertTrue(history.covers("nowhere", 0));
+    }
+
+    @Test
+    void forgetsTheLeastRecentlyActiveRooms()
+    {
+        MessageHistory history = new MessageHistory();
+        long first = history.append(new ChatMessage("alice", "hello", "room0"));
+        for (int i = 1; i <= MessageHistory.MAX_ROOM_TAILS; i++) history.append(new ChatMessage("alice", "hello", "room" + i));
+
+        assertTrue(history.recent("room0", 5).isEmpty());
+        assertFalse(history.covers("room0", 0)); //its message is gone, resuming clients are told so
+        assertTrue(history.covers("room0", first));
+        assertEquals(1, history.recent("room1", 5).size());
+    }
+
+    private static String longText()
+    {
+        StringBuilder text = new StringBuilder(ChatMessage.MAX_MESSAGE_LENGTH);
+        while (text.length() < ChatMessage.MAX_MESSAGE_LENGTH) text.append('a');
+        return text.toString();
+    }
+
+    @Test
+    void boundsARoomInBytes()
+    {
+        MessageHistory history = new MessageHistory();
+        String text = longText();
+        ChatMessage sample = new ChatMessage("alice", text, "big");
+        long fit = MessageHistory.ROOM_TAIL_BYTES / sample.sizeBound(); //well under ROOM_TAIL_CAPACITY
+        long first = history.append(sample);
+        for (int i = 1; i < fit + 10; i++) history.append(new ChatMessage("alice", text, "big"));
+
+        assertEquals(fit, history.recent("big", 10_000).size());
+        assertFalse(history.covers("big", first)); //the oldest were evicted, resuming clients are told so
+        assertTrue(history.covers("big", first + 10));
+    }
+
+    @Test
+    void forgetsTheLeastRecentlyActiveRoomsOverTheByteBudget()
+    {
+        MessageHistory history = new MessageHistory();
+        String text = longText();
+        long perRoom = MessageHistory.ROOM_TAIL_BYTES / new ChatMessage("alice", text, "room0").sizeBound();
+        int rooms = (int) (MessageHistory.MAX_TAIL_BYTES / MessageHistory.ROOM_TAIL_BYTES) + 2; //more than fit, far fewer than MAX_ROOM_TAILS
+        for (int room = 0; room < rooms; room++)
+            for (int i = 0; i < perRoom; i++) history.append(new ChatMessage("alice", text, "room" + room));
+
+        assertTrue(history.recent("room0", 10).isEmpty());
+        assertFalse(history.covers("room0", 0));
+        assertEquals(10, history.recent("room" + (rooms - 1), 10).size());
+
+        long kept = 0;
+        for (int room = 0; room < rooms; room++)
+            for (ChatMessage msg : history.recent("room" + room, 10_000)) kept += msg.sizeBound();
+        assertTrue(kept <= MessageHistory.MAX_TAIL_BYTES, kept + " bytes kept");
+    }
+
+    @Test
+    void recoversFromTheLog() throws IOException
+    {
+        MessageHistory history = new MessageHistory();
+        history.open(directory, 64 * 1024, Long.MAX_VALUE, DAY_MILLIS);
+        history.append(new ChatMessage("alice", "before the restart", "dev"));
+        history.close(5000);
+
+        history = new MessageHistory();
+        history.open(directory, 64 * 1024, Long.MAX_VALUE, DAY_MILLIS);
+        assertEquals(1, history.lastSequence());
+        assertEquals("before the restart", history.recent("dev", 5).get(0).getMessage());
+        assertTrue(history.covers("dev", 0));
+        assertEquals(2, history.append(new ChatMessage("alice", "after", "dev")));
+        history.close(5000);
+    }
+}
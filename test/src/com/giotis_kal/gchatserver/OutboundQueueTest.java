@@ -0,0 +1,114 @@
+package com.giotis_kal.gchatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gchatdata.ChatMessage;
+import gchatdata.Credit;
+import gchatdata.PresenceDelta;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest
+{
+    private static OutboundMessage chat(String text)
+    {
+        return new OutboundMessage(new ChatMessage("alice", text));
+    }
+
+    private static boolean offer(OutboundQueue<OutboundMessage> queue, OutboundMessage msg)
+    {
+        return queue.offer(msg, msg.isDroppable());
+    }
+
+    private static List<Object> drain(OutboundQueue<OutboundMessage> queue)
+    {
+        List<Object> messages = new ArrayList<>();
+        OutboundMessage msg;
+        while ((msg = queue.poll()) != null) messages.add(msg.message());
+        return messages;
+    }
+
+    @Test
+    void disconnectRefusesOnceFull()
+    {
+        OutboundQueue<OutboundMessage> queue = new OutboundQueue<>(2, OverflowPolicy.DISCONNECT);
+
+        assertTrue(offer(queue, chat("1")));
+        assertTrue(offer(queue, new OutboundMessage(new Credit(8))));
+        assertFalse(offer(queue, chat("3")));
+        assertFalse(offer(queue, new OutboundMessage(new Credit(8))));
+        assertEquals(2, queue.depth());
+        assertEquals(0, queue.dropped());
+    }
+
+    @Test
+    void dropOldestShedsChatMessagesOnly()
+    {
+        OutboundQueue<OutboundMessage> queue = new OutboundQueue<>(3, OverflowPolicy.DROP_OLDEST);
+        OutboundMessage credit = new OutboundMessage(new Credit(16));
+        OutboundMessage delta = new OutboundMessage(new PresenceDelta(1, "bob", true));
+
+        offer(queue, credit);
+        offer(queue, chat("1"));
+        offer(queue, delta);
+        assertTrue(offer(queue, chat("2"))); //drops "1", never the Credit ahead of it
+        assertTrue(offer(queue, chat("3"))); //drops "2"
+
+        List<Object> written = drain(queue);
+        assertEquals(3, written.size());
+        assertTrue(written.get(0) instanceof Credit);
+        assertTrue(written.get(1) instanceof PresenceDelta);
+        assertEquals("3", ((ChatMessage) written.get(2)).getMessage());
+        assertEquals(2, queue.dropped());
+        assertEquals(0, queue.depth());
+    }
+
+    @Test
+    void controlMessagesAreKeptOverCapacity()
+    {
+        OutboundQueue<OutboundMessage> queue = new OutboundQueue<>(2, OverflowPolicy.DROP_OLDEST);
+
+        offer(queue, new OutboundMessage(new Credit(1)));
+        offer(queue, new OutboundMessage(new Credit(2)));
+        assertTrue(offer(queue, chat("dropped, nothing older to shed")));
+        assertTrue(offer(queue, new OutboundMessage(new Credit(3))));
+
+        assertEquals(3, queue.depth());
+        assertEquals(1, queue.dropped());
+        List<Object> written = drain(queue);
+        assertEquals(3, written.size());
+        for (int i = 0; i < 3; i++) assertEquals(i + 1, ((Credit) written.get(i)).getCredits());
+    }
+
+    @Test
+    void framesAreQueuedAsTheyAre()
+    {
+        OutboundQueue<String> queue = new OutboundQueue<>(1, OverflowPolicy.DROP_OLDEST);
+
+        queue.offer("kept", false);
+        queue.offer("dropped", true);
+
+        assertEquals("kept", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void closeLetsTheWriterFinish() throws InterruptedException
+    {
+        OutboundQueue<OutboundMessage> queue = new OutboundQueue<>(4, OverflowPolicy.DROP_OLDEST);
+        offer(queue, chat("1"));
+        offer(queue, new OutboundMessage(new Credit(1)));
+        queue.close();
+
+        assertEquals("1", ((ChatMessage) queue.take().message()).getMessage());
+        assertTrue(queue.take().message() instanceof Credit);
+        assertNull(queue.take());
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS)); //stays closed
+        assertTrue(queue.isEmpty());
+    }
+}
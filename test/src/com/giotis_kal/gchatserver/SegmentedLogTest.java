@@ -0,0 +1,162 @@
+package com.giotis_kal.gchatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gchatdata.ChatMessage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentedLogTest
+{
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    @TempDir
+    Path directory;
+
+    private SegmentedLog open(long segmentBytes, long retentionBytes, long retentionMillis, List<SegmentedLog.Record> tail, int tailSize)
+            throws IOException
+    {
+        SegmentedLog log = new SegmentedLog(directory, segmentBytes, retentionBytes, retentionMillis, tail, tailSize);
+        log.start();
+        return log;
+    }
+
+    private static void append(SegmentedLog log, long from, long to)
+    {
+        for (long sequence = from; sequence <= to; sequence++)
+            assertTrue(log.append(new SegmentedLog.Record(sequence, System.currentTimeMillis(), new ChatMessage("alice", "m" + sequence, "dev"))));
+    }
+
+    private List<Path> segments() throws IOException
+    {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.seg"))
+        {
+            for (Path file : files) segments.add(file);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    @Test
+    void recoversTheTailAndContinuesTheSequence() throws IOException
+    {
+        SegmentedLog log = open(64 * 1024, Long.MAX_VALUE, DAY_MILLIS, new ArrayList<>(), 0);
+        append(log, 1, 10);
+        log.close(5000);
+
+        List<SegmentedLog.Record> tail = new ArrayList<>();
+        log = open(64 * 1024, Long.MAX_VALUE, DAY_MILLIS, tail, 4);
+        assertEquals(11, log.nextSequence());
+        assertEquals(4, tail.size());
+        for (int i = 0; i < 4; i++)
+        {
+            SegmentedLog.Record record = tail.get(i);
+            assertEquals(7 + i, record.sequence);
+            assertEquals(7 + i, record.message.getSequence());
+            assertEquals("m" + (7 + i), record.message.getMessage());
+            assertEquals("dev", record.message.getRoom());
+        }
+        log.close(5000);
+    }
+
+    @Test
+    void recoversAcrossSegments() throws IOException
+    {
+        SegmentedLog log = open(256, Long.MAX_VALUE, DAY_MILLIS, new ArrayList<>(), 0); //a few records per segment
+        append(log, 1, 40);
+        log.close(5000);
+        assertTrue(segments().size() > 5);
+
+        List<SegmentedLog.Record> tail = new ArrayList<>();
+        log = open(256, Long.MAX_VALUE, DAY_MILLIS, tail, 25);
+        assertEquals(41, log.nextSequence());
+        assertEquals(25, tail.size());
+        assertEquals(16, tail.get(0).sequence);
+        assertEquals(40, tail.get(24).sequence);
+        log.close(5000);
+    }
+
+    @Test
+    void appendsOverATornWrite() throws IOException
+    {
+        SegmentedLog log = open(64 * 1024, Long.MAX_VALUE, DAY_MILLIS, new ArrayList<>(), 0);
+        append(log, 1, 3);
+        log.close(5000);
+
+        //a record cut short by a crash: its header made it to disk, its payload did not
+        Path segment = segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            long position = 0;
+            while (true)
+            {
+                header.clear();
+                channel.read(header, position);
+                int length = header.getInt(0);
+                if (length == 0) break;
+                position += 4 + length;
+            }
+            ByteBuffer torn = ByteBuffer.allocate(21).putInt(40).putLong(4).putLong(0).put((byte) 99);
+            torn.flip();
+            channel.write(torn, position);
+        }
+
+        List<SegmentedLog.Record> tail = new ArrayList<>();
+        log = open(64 * 1024, Long.MAX_VALUE, DAY_MILLIS, tail, 10);
+        assertEquals(3, tail.size());
+        assertEquals(4, log.nextSequence());
+        append(log, 4, 5);
+        log.close(5000);
+
+        tail.clear();
+        log = open(64 * 1024, Long.MAX_VALUE, DAY_MILLIS, tail, 10);
+        assertEquals(5, tail.size());
+        assertEquals("m5", tail.get(4).message.getMessage());
+        log.close(5000);
+    }
+
+    @Test
+    void deletesTheOldestSegmentsOverTheSizeLimit() throws IOException
+    {
+        SegmentedLog log = open(256, 1024, DAY_MILLIS, new ArrayList<>(), 0);
+        append(log, 1, 60);
+        log.close(5000);
+
+        List<Path> segments = segments();
+        assertTrue(segments.size() <= 5, segments.toString()); //the limit plus the segment being written
+        assertTrue(segments.get(0).getFileName().toString().compareTo(String.format("%020d", 2)) > 0);
+    }
+
+    @Test
+    void expiresOldSegmentsWithoutNewWrites() throws Exception
+    {
+        SegmentedLog log = open(256, Long.MAX_VALUE, 300, new ArrayList<>(), 0);
+        append(log, 1, 20);
+        Path next = directory.resolve(String.format("%020d", 21) + ".seg");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!segments().equals(Collections.singletonList(next)) && System.currentTimeMillis() < deadline) Thread.sleep(50);
+
+        //only a new, empty segment is left, named after the next record
+        assertEquals(Collections.singletonList(next), segments());
+        log.close(5000);
+
+        List<SegmentedLog.Record> tail = new ArrayList<>();
+        log = open(256, Long.MAX_VALUE, 300, tail, 10);
+        assertTrue(tail.isEmpty());
+        assertEquals(21, log.nextSequence());
+        log.close(5000);
+    }
+}
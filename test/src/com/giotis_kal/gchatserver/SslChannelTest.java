@@ -0,0 +1,286 @@
+package com.giotis_kal.gchatserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gchatdata.TlsContexts;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Drives an SslChannel, as the NIO engine's loop would, against a blocking SSLSocket client
+ * over a real loopback connection
+ */
+class SslChannelTest
+{
+    private static final char[] PASSWORD = "changeit".toCharArray();
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @TempDir
+    static Path directory;
+    private static SSLContext context;
+
+    private final HandshakeMetrics metrics = new HandshakeMetrics();
+    private ServerSocketChannel listener;
+    private SocketChannel channel;
+    private SslChannel ssl;
+    private SSLSocket client;
+
+    @BeforeAll
+    static void createKeyStore() throws Exception
+    {
+        Path keyStore = directory.resolve("test.p12");
+        Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "gchat", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", keyStore.toString(), "-storepass", new String(PASSWORD)).inheritIO().start();
+        assertEquals(0, keytool.waitFor());
+        context = TlsContexts.fromKeyStore(keyStore, PASSWORD);
+    }
+
+    @BeforeEach
+    void listen() throws IOException
+    {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @AfterEach
+    void closeAll() throws IOException
+    {
+        if (client != null) client.close();
+        if (channel != null) channel.close();
+        listener.close();
+    }
+
+    /**
+     * Connects a client that has a small receive buffer, and wraps the accepted channel
+     */
+    private void connect(SSLContext clientContext) throws IOException
+    {
+        client = (SSLSocket) clientContext.getSocketFactory().createSocket();
+        client.setReceiveBufferSize(8 * 1024);
+        client.connect(listener.getLocalAddress(), (int) TIMEOUT_MILLIS);
+        client.setSoTimeout((int) TIMEOUT_MILLIS);
+
+        channel = listener.accept();
+        channel.configureBlocking(false);
+        channel.socket().setSendBufferSize(8 * 1024);
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        ssl = new SslChannel(channel, engine, metrics);
+    }
+
+    /**
+     * Reads and flushes on the server side until the handshake is over, while the client handshakes
+     */
+    private void handshake() throws Exception
+    {
+        CompletableFuture<Void> clientDone = CompletableFuture.runAsync(() -> {
+            try
+            {
+                client.startHandshake();
+            } catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+        ByteBuffer dst = ByteBuffer.allocate(ssl.applicationBufferSize());
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (ssl.isHandshaking() && System.currentTimeMillis() < deadline)
+        {
+            ssl.read(dst);
+            ssl.flushPending();
+            Thread.sleep(1);
+        }
+        clientDone.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertFalse(ssl.isHandshaking());
+        assertEquals(0, dst.position()); //nothing sent by the client yet
+    }
+
+    /**
+     * Reads on the server side, taking what was decrypted out of the buffer after every read
+     * as the engine does, until the given number of plaintext bytes arrived
+     */
+    private String serverRead(int length) throws Exception
+    {
+        ByteBuffer dst = ByteBuffer.allocate(ssl.applicationBufferSize());
+        StringBuilder read = new StringBuilder();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (read.length() < length && System.currentTimeMillis() < deadline)
+        {
+            if (ssl.read(dst) < 0) break;
+            read.append(new String(dst.array(), 0, dst.position(), StandardCharsets.UTF_8));
+            dst.clear();
+            ssl.flushPending();
+            if (!ssl.hasBufferedInput()) Thread.sleep(1);
+        }
+        return read.toString();
+    }
+
+    /**
+     * Writes all of src from the server side, waiting for the socket whenever it is full
+     */
+    private void serverWriteAll(ByteBuffer src) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ((src.hasRemaining() || ssl.hasPendingOutput()) && System.currentTimeMillis() < deadline)
+        {
+            if (src.hasRemaining()) ssl.write(new ByteBuffer[]{src}, 0, 1);
+            else ssl.flushPending();
+            Thread.sleep(1);
+        }
+        assertFalse(src.hasRemaining() || ssl.hasPendingOutput());
+    }
+
+    @Test
+    void handshakesAndExchangesData() throws Exception
+    {
+        connect(context);
+        handshake();
+        assertEquals(1, metrics.getFull());
+
+        client.getOutputStream().write("hello".getBytes(StandardCharsets.UTF_8));
+        client.getOutputStream().flush();
+        assertEquals("hello", serverRead(5));
+
+        serverWriteAll(ByteBuffer.wrap("world".getBytes(StandardCharsets.UTF_8)));
+        byte[] received = new byte[5];
+        new DataInputStream(client.getInputStream()).readFully(received);
+        assertEquals("world", new String(received, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void keepsWhatTheSocketDoesNotTake() throws Exception
+    {
+        connect(context);
+        handshake();
+
+        byte[] data = new byte[2 * 1024 * 1024];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i % 251);
+        ByteBuffer src = ByteBuffer.wrap(data);
+
+        //the client is not reading: the socket fills up and the rest waits
+        long consumed = 0;
+        for (int i = 0; i < 50; i++)
+        {
+            consumed += ssl.write(new ByteBuffer[]{src}, 0, 1);
+            Thread.sleep(1);
+        }
+        assertTrue(consumed < data.length, "consumed " + consumed);
+        assertEquals(consumed, src.position());
+        assertTrue(ssl.hasPendingOutput());
+        assertFalse(ssl.flushPending());
+
+        //once it reads, everything arrives in order, neither lost nor repeated
+        CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> {
+            byte[] buf = new byte[data.length];
+            try
+            {
+                new DataInputStream(client.getInputStream()).readFully(buf);
+            } catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+            return buf;
+        });
+        serverWriteAll(src);
+        assertArrayEquals(data, received.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void readsRecordsSplitAcrossPackets() throws Exception
+    {
+        connect(context);
+        handshake();
+
+        //many small records arriving at once, more than fit the buffer: the rest is decrypted by later reads
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            String part = "part" + i + ";";
+            expected.append(part);
+            client.getOutputStream().write(part.getBytes(StandardCharsets.UTF_8));
+        }
+        client.getOutputStream().flush();
+        assertEquals(expected.toString(), serverRead(expected.length()));
+    }
+
+    @Test
+    void resumesTheSessionOfAReturningClient() throws Exception
+    {
+        SSLContext clientContext = context; //caches the session across connections
+        connect(clientContext);
+        handshake();
+        serverWriteAll(ByteBuffer.wrap(new byte[]{1}));
+        assertEquals(1, client.getInputStream().read()); //also takes the session ticket, if any
+        client.close();
+        channel.close();
+
+        connect(clientContext);
+        handshake();
+        assertEquals(1, metrics.getFull());
+        assertEquals(1, metrics.getResumed());
+    }
+
+    @Test
+    void countsFailedHandshakes() throws Exception
+    {
+        connect(SSLContext.getDefault()); //does not trust the self-signed certificate
+        CompletableFuture<Void> clientDone = CompletableFuture.runAsync(() -> {
+            try
+            {
+                client.startHandshake();
+            } catch (IOException e)
+            {
+                //expected, the client gives up
+            }
+        });
+
+        ByteBuffer dst = ByteBuffer.allocate(ssl.applicationBufferSize());
+        assertThrows(IOException.class, () -> {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (System.currentTimeMillis() < deadline)
+            {
+                ssl.read(dst);
+                ssl.flushPending();
+                Thread.sleep(1);
+            }
+        });
+        clientDone.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(1, metrics.getFailed());
+    }
+
+    @Test
+    void closeSendsCloseNotify() throws Exception
+    {
+        connect(context);
+        handshake();
+
+        ssl.close();
+        InputStream in = client.getInputStream();
+        assertEquals(-1, in.read());
+    }
+}
@@ -0,0 +1,135 @@
+package com.giotis_kal.gchatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gchatdata.ChatMessage;
+import gchatdata.FrameIO;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+class TcpClusterBusTest
+{
+    private static final byte[] SECRET = "s3cret".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Records the events received and signals the links established
+     */
+    private static final class Recorder implements ClusterBus.Handler
+    {
+        final BlockingQueue<ClusterEvent> events = new LinkedBlockingQueue<>();
+        final CountDownLatch connected = new CountDownLatch(1);
+
+        @Override
+        public void peerConnected(Consumer<ClusterEvent> peer)
+        {
+            connected.countDown();
+        }
+
+        @Override
+        public void eventReceived(ClusterEvent event)
+        {
+            events.add(event);
+        }
+
+        @Override
+        public void peerDisconnected(String node)
+        {
+        }
+    }
+
+    private static InetSocketAddress loopback(int port)
+    {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @Test
+    void peersSharingTheSecretExchangeEvents() throws Exception
+    {
+        TcpClusterBus n1 = new TcpClusterBus("n1", 54611, Collections.singletonList(loopback(54612)), SECRET);
+        TcpClusterBus n2 = new TcpClusterBus("n2", 54612, Collections.singletonList(loopback(54611)), SECRET);
+        Recorder r1 = new Recorder();
+        Recorder r2 = new Recorder();
+        try
+        {
+            n1.start(r1);
+            n2.start(r2);
+            assertTrue(r2.connected.await(10, TimeUnit.SECONDS));
+
+            n2.publish(ClusterEvent.chat("n2", new ChatMessage("bob", "hi", "dev")));
+            ClusterEvent event = r1.events.poll(10, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertEquals("n2", event.getNode());
+            assertEquals("hi", event.toChatMessage().getMessage());
+        } finally
+        {
+            n1.close();
+            n2.close();
+        }
+    }
+
+    @Test
+    void dropsPeersWithTheWrongSecret() throws Exception
+    {
+        TcpClusterBus n1 = new TcpClusterBus("n1", 54613, Collections.emptyList(), SECRET);
+        TcpClusterBus n2 = new TcpClusterBus("n2", 54614, Collections.singletonList(loopback(54613)),
+                "guess".getBytes(StandardCharsets.UTF_8));
+        Recorder r1 = new Recorder();
+        Recorder r2 = new Recorder();
+        try
+        {
+            n1.start(r1);
+            n2.start(r2);
+            r2.connected.await(10, TimeUnit.SECONDS); //the dialer cannot tell until its link is closed
+            n2.publish(ClusterEvent.chat("n2", new ChatMessage("mallory", "hi")));
+            assertNull(r1.events.poll(1, TimeUnit.SECONDS));
+        } finally
+        {
+            n1.close();
+            n2.close();
+        }
+    }
+
+    @Test
+    void closesConnectionsThatDoNotAnswerTheChallenge() throws Exception
+    {
+        TcpClusterBus n1 = new TcpClusterBus("n1", 54615, Collections.emptyList(), SECRET);
+        Recorder r1 = new Recorder();
+        n1.start(r1); //listening once it returns
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), 54615))
+        {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readFully(new byte[16]); //the challenge
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            FrameIO.writeFrame(out, ClusterEvent.chat("n9", new ChatMessage("mallory", "hi")).encode()); //skipping the answer
+            out.flush();
+
+            socket.setSoTimeout(10_000);
+            assertEquals(-1, in.read());
+            assertNull(r1.events.poll(200, TimeUnit.MILLISECONDS));
+        } finally
+        {
+            n1.close();
+        }
+    }
+
+    @Test
+    void requiresASecret()
+    {
+        assertThrows(IllegalArgumentException.class, () -> new TcpClusterBus("n1", 54616, Collections.emptyList(), new byte[0]));
+    }
+}
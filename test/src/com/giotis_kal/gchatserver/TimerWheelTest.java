@@ -0,0 +1,118 @@
+package com.giotis_kal.gchatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest
+{
+    private static final long TICK_MILLIS = 10;
+
+    private final TimerWheel wheel = new TimerWheel("test-wheel", TICK_MILLIS, 8);
+
+    @AfterEach
+    void close()
+    {
+        wheel.close();
+    }
+
+    /**
+     * Schedules a task recording how long after scheduling it ran
+     */
+    private CountDownLatch scheduleTimed(long delayMillis, Queue<Long> elapsedMillis)
+    {
+        CountDownLatch ran = new CountDownLatch(1);
+        long scheduled = System.nanoTime();
+        wheel.schedule(() -> {
+            elapsedMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled));
+            ran.countDown();
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        return ran;
+    }
+
+    @Test
+    void runsTasksNoEarlierThanTheirDelay() throws InterruptedException
+    {
+        wheel.start();
+        Queue<Long> elapsed = new ConcurrentLinkedQueue<>();
+        CountDownLatch ran = scheduleTimed(50, elapsed);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(elapsed.peek() >= 50, elapsed.toString());
+    }
+
+    @Test
+    void keepsTasksDueInALaterRound() throws InterruptedException
+    {
+        wheel.start();
+        Queue<Long> elapsed = new ConcurrentLinkedQueue<>();
+        CountDownLatch late = scheduleTimed(8 * TICK_MILLIS * 3 + 5, elapsed); //three times around the wheel
+        CountDownLatch early = scheduleTimed(5, elapsed);
+
+        assertTrue(early.await(5, TimeUnit.SECONDS));
+        assertEquals(1, late.getCount());
+        assertTrue(late.await(5, TimeUnit.SECONDS));
+        assertTrue(elapsed.stream().mapToLong(Long::longValue).max().getAsLong() >= 8 * TICK_MILLIS * 3 + 5, elapsed.toString());
+    }
+
+    @Test
+    void runsEveryTaskOfABusyBucket() throws InterruptedException
+    {
+        wheel.start();
+        int count = 10_000;
+        CountDownLatch ran = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) wheel.schedule(ran::countDown, i % 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void aFailingTaskDoesNotStopTheWheel() throws InterruptedException
+    {
+        wheel.start();
+        wheel.schedule(() -> {
+            throw new IllegalStateException("expected by the test");
+        }, 0, TimeUnit.MILLISECONDS);
+        CountDownLatch ran = new CountDownLatch(1);
+        wheel.schedule(ran::countDown, 30, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void tasksMayRescheduleThemselves() throws InterruptedException
+    {
+        wheel.start();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        Runnable[] task = new Runnable[1];
+        task[0] = () -> {
+            if (runs.incrementAndGet() < 5) wheel.schedule(task[0], TICK_MILLIS, TimeUnit.MILLISECONDS);
+            else done.countDown();
+        };
+        wheel.schedule(task[0], 0, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(5, runs.get());
+    }
+
+    @Test
+    void closingDropsPendingTasks() throws InterruptedException
+    {
+        wheel.start();
+        CountDownLatch ran = new CountDownLatch(1);
+        wheel.schedule(ran::countDown, 100, TimeUnit.MILLISECONDS);
+        wheel.close();
+        wheel.schedule(ran::countDown, 0, TimeUnit.MILLISECONDS);
+
+        assertFalse(ran.await(300, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,189 @@
+package gchatdata;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Round-trips every message type through BinaryCodec, with and without a connection's decoder,
+ * and checks that malformed payloads are rejected rather than decoded into garbage.
+ */
+class BinaryCodecTest
+{
+    private final BinaryCodec codec = BinaryCodec.INSTANCE;
+
+    private Object roundTrip(Object msg) throws IOException
+    {
+        byte[] payload = codec.encode(msg);
+        return codec.decode(payload, 0, payload.length);
+    }
+
+    @Test
+    void chatMessageInThePublicRoom() throws IOException
+    {
+        ChatMessage decoded = (ChatMessage) roundTrip(new ChatMessage("alice", "hello, \u03ba\u03cc\u03c3\u03bc\u03b5"));
+
+        assertEquals("alice", decoded.getUsername());
+        assertEquals("hello, \u03ba\u03cc\u03c3\u03bc\u03b5", decoded.getMessage());
+        assertTrue(decoded.isPublic());
+        assertEquals(0, decoded.getSequence());
+    }
+
+    @Test
+    void chatMessageKeepsItsRoomAndSequence() throws IOException
+    {
+        ChatMessage msg = new ChatMessage("bob", "hi", "dev");
+        msg.setSequence(42);
+        ChatMessage decoded = (ChatMessage) roundTrip(msg);
+
+        assertEquals("dev", decoded.getRoom());
+        assertEquals(42, decoded.getSequence());
+
+        ChatMessage sequencedPublic = new ChatMessage("bob", "hi");
+        sequencedPublic.setSequence(7);
+        decoded = (ChatMessage) roundTrip(sequencedPublic);
+        assertTrue(decoded.isPublic());
+        assertEquals(7, decoded.getSequence());
+    }
+
+    @Test
+    void controlMessages() throws IOException
+    {
+        assertTrue(((Poison) roundTrip(new Poison(true))).isToShutdownServer());
+        assertFalse(((Poison) roundTrip(new Poison(false))).isToShutdownServer());
+        assertEquals(16, ((Credit) roundTrip(new Credit(16))).getCredits());
+
+        Heartbeat pong = (Heartbeat) roundTrip(new Heartbeat(true, 123456789L));
+        assertTrue(pong.isPong());
+        assertEquals(123456789L, pong.getTimestamp());
+
+        RoomCommand command = (RoomCommand) roundTrip(new RoomCommand("dev", false));
+        assertEquals("dev", command.getRoom());
+        assertFalse(command.isJoin());
+    }
+
+    @Test
+    void presence() throws IOException
+    {
+        ArrayList<String> usernames = new ArrayList<>(Arrays.asList("alice", "bob"));
+        assertEquals(usernames, roundTrip(usernames));
+
+        PresenceSnapshot snapshot = (PresenceSnapshot) roundTrip(new PresenceSnapshot(5, usernames));
+        assertEquals(5, snapshot.getVersion());
+        assertEquals(usernames, snapshot.getUsernames());
+        assertNull(((PresenceSnapshot) roundTrip(new PresenceSnapshot(-1, null))).getUsernames()); //a request
+
+        PresenceDelta delta = (PresenceDelta) roundTrip(new PresenceDelta(6, "carol", true));
+        assertEquals(6, delta.getVersion());
+        assertEquals("carol", delta.getUsername());
+        assertTrue(delta.isJoined());
+    }
+
+    @Test
+    void historyAndSessions() throws IOException
+    {
+        ArrayList<ChatMessage> messages = new ArrayList<>();
+        for (int i = 1; i <= 3; i++)
+        {
+            ChatMessage msg = new ChatMessage("alice", "m" + i, "dev");
+            msg.setSequence(i);
+            messages.add(msg);
+        }
+        HistoryBatch batch = (HistoryBatch) roundTrip(new HistoryBatch("dev", messages));
+        assertEquals("dev", batch.getRoom());
+        assertEquals(3, batch.getMessages().size());
+        assertEquals("m3", batch.getMessages().get(2).getMessage());
+        assertEquals(3, batch.getMessages().get(2).getSequence());
+        assertEquals("dev", batch.getMessages().get(2).getRoom());
+
+        HashMap<String, Long> sequences = new HashMap<>();
+        sequences.put("public", 10L);
+        sequences.put("dev", 12L);
+        Session session = (Session) roundTrip(new Session("token", sequences));
+        assertEquals("token", session.getToken());
+        assertEquals(sequences, session.getLastSequences());
+        assertNull(((Session) roundTrip(new Session(null, null))).getToken()); //an expired session
+    }
+
+    @Test
+    void directMessage() throws IOException
+    {
+        DirectMessage decoded = (DirectMessage) roundTrip(new DirectMessage(null, "bob", "psst"));
+
+        assertNull(decoded.getSender());
+        assertEquals("bob", decoded.getRecipient());
+        assertEquals("psst", decoded.getMessage());
+    }
+
+    @Test
+    void decodesAtAnOffset() throws IOException
+    {
+        byte[] payload = codec.encode(new ChatMessage("alice", "hello"));
+        byte[] buf = new byte[payload.length + 10];
+        System.arraycopy(payload, 0, buf, 7, payload.length);
+
+        assertEquals("hello", ((ChatMessage) codec.decode(buf, 7, payload.length)).getMessage());
+    }
+
+    @Test
+    void decoderReusesTheUsernameAndKeepsTheTextAsReceived() throws IOException
+    {
+        MessageDecoder decoder = codec.newDecoder();
+        byte[] buf = new byte[256];
+
+        ChatMessage first = decodeInto(decoder, buf, new ChatMessage("alice", "one", "dev"));
+        ChatMessage second = decodeInto(decoder, buf, new ChatMessage("alice", "two", "dev"));
+        ChatMessage third = decodeInto(decoder, buf, new ChatMessage("bob", "three"));
+
+        assertSame(first.getUsername(), second.getUsername());
+        assertSame(first.getRoom(), second.getRoom());
+        assertEquals("bob", third.getUsername());
+        assertTrue(third.isPublic());
+
+        //the buffer was overwritten since, the messages must not have kept referring to it
+        assertEquals("one", first.getMessage());
+        assertEquals("two", second.getMessage());
+        assertArrayEquals(codec.encode(new ChatMessage("bob", "three")), codec.encode(third));
+    }
+
+    private ChatMessage decodeInto(MessageDecoder decoder, byte[] buf, ChatMessage msg) throws IOException
+    {
+        byte[] payload = codec.encode(msg);
+        System.arraycopy(payload, 0, buf, 0, payload.length);
+        return (ChatMessage) decoder.decode(buf, 0, payload.length);
+    }
+
+    @Test
+    void rejectsMalformedPayloads() throws IOException
+    {
+        assertCorrupt(new byte[0]);
+        assertCorrupt(new byte[]{99}); //unknown type
+        assertCorrupt(new byte[]{BinaryCodec.TYPE_POISON}); //truncated
+
+        byte[] chat = codec.encode(new ChatMessage("alice", "hello"));
+        assertCorrupt(Arrays.copyOf(chat, chat.length - 2));
+        assertCorrupt(ByteBuffer.allocate(9).put(BinaryCodec.TYPE_CHAT_MESSAGE).putInt(-2).putInt(0).array());
+        assertCorrupt(ByteBuffer.allocate(9).put(BinaryCodec.TYPE_CHAT_MESSAGE).putInt(1000).putInt(0).array());
+        assertCorrupt(ByteBuffer.allocate(5).put(BinaryCodec.TYPE_USER_LIST).putInt(Integer.MAX_VALUE).array());
+        assertCorrupt(ByteBuffer.allocate(9).put(BinaryCodec.TYPE_HISTORY_BATCH).putInt(-1).putInt(1 << 20).array());
+        assertCorrupt(ByteBuffer.allocate(9).put(BinaryCodec.TYPE_SESSION).putInt(-1).putInt(-5).array());
+    }
+
+    private void assertCorrupt(byte[] payload)
+    {
+        assertThrows(StreamCorruptedException.class, () -> codec.decode(payload, 0, payload.length));
+        assertThrows(StreamCorruptedException.class, () -> codec.newDecoder().decode(payload, 0, payload.length));
+    }
+}
@@ -0,0 +1,95 @@
+package gchatdata;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The limits a server applies to messages, and the size bound that keeps HistoryBatches within a frame
+ */
+class ChatMessageTest
+{
+    private static String repeat(String s, int times)
+    {
+        StringBuilder text = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) text.append(s);
+        return text.toString();
+    }
+
+    private static ChatMessage decoded(ChatMessage msg) throws IOException
+    {
+        byte[] payload = BinaryCodec.INSTANCE.encode(msg);
+        return (ChatMessage) BinaryCodec.INSTANCE.newDecoder().decode(payload, 0, payload.length);
+    }
+
+    @Test
+    void tooLongCountsCharactersNotBytes() throws IOException
+    {
+        String greek = repeat("\u03ba", ChatMessage.MAX_MESSAGE_LENGTH); //2 bytes each in UTF-8
+        assertFalse(new ChatMessage("alice", greek).isTooLong());
+        assertFalse(decoded(new ChatMessage("alice", greek)).isTooLong());
+
+        assertTrue(new ChatMessage("alice", greek + "a").isTooLong());
+        assertTrue(decoded(new ChatMessage("alice", greek + "a")).isTooLong());
+        assertFalse(new ChatMessage("alice", null).isTooLong());
+    }
+
+    @Test
+    void sizeBoundCoversEveryCodec() throws IOException
+    {
+        String[] texts = {"", "hi", repeat("\u03ba\u03cc\u03c3\u03bc\u03b5", 500), repeat("\ud83d\ude00", 1000), repeat("a", ChatMessage.MAX_MESSAGE_LENGTH)};
+        for (String text : texts)
+        {
+            for (ChatMessage msg : new ChatMessage[]{new ChatMessage("alice", text, "dev"), decoded(new ChatMessage("\u03b1", text))})
+            {
+                msg.setSequence(Long.MAX_VALUE);
+                int length = BinaryCodec.INSTANCE.encode(msg).length;
+                assertTrue(length <= msg.sizeBound(), length + " > " + msg.sizeBound());
+
+                //serialization writes the class descriptors once per frame, what each further message adds is bounded
+                ArrayList<ChatMessage> one = new ArrayList<>(Collections.singletonList(copy(msg)));
+                ArrayList<ChatMessage> two = new ArrayList<>(Arrays.asList(copy(msg), copy(msg)));
+                int added = SerializationCodec.INSTANCE.encode(new HistoryBatch("dev", two)).length
+                        - SerializationCodec.INSTANCE.encode(new HistoryBatch("dev", one)).length;
+                assertTrue(added <= msg.sizeBound(), added + " > " + msg.sizeBound());
+            }
+        }
+    }
+
+    /**
+     * @return a message sharing no String with the given one, as the messages of a batch would not
+     */
+    private static ChatMessage copy(ChatMessage msg)
+    {
+        ChatMessage copy = new ChatMessage(new String(msg.getUsername()), new String(msg.getMessage()), new String(msg.getRoom()));
+        copy.setSequence(msg.getSequence());
+        return copy;
+    }
+
+    @Test
+    void batchesWithinHalfAFrameByTheirBoundFitInAFrame() throws IOException
+    {
+        //the largest messages a server accepts, as many as GChatServer puts in one HistoryBatch
+        ArrayList<ChatMessage> messages = new ArrayList<>();
+        int bytes = 0;
+        ChatMessage largest = new ChatMessage(repeat("u", ChatMessage.MAX_NAME_LENGTH), repeat("\u03ba", ChatMessage.MAX_MESSAGE_LENGTH),
+                repeat("r", ChatMessage.MAX_NAME_LENGTH));
+        while (bytes + largest.sizeBound() <= FrameIO.MAX_FRAME_LENGTH / 2)
+        {
+            messages.add(copy(largest)); //none shared, serialization would only write a handle
+            bytes += largest.sizeBound();
+        }
+        HistoryBatch batch = new HistoryBatch(largest.getRoom(), messages);
+        for (MessageCodec codec : new MessageCodec[]{BinaryCodec.INSTANCE, SerializationCodec.INSTANCE, DeflateCodec.INSTANCE})
+            assertTrue(codec.encode(batch).length <= FrameIO.MAX_FRAME_LENGTH, codec.toString());
+
+        //while a batch with no such limit, here 100 messages, would not
+        while (messages.size() < 100) messages.add(copy(largest));
+        assertTrue(BinaryCodec.INSTANCE.encode(batch).length > FrameIO.MAX_FRAME_LENGTH);
+    }
+}
@@ -0,0 +1,136 @@
+package gchatdata;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Round-trips through DeflateCodec, and frames whose declared inflated length cannot be trusted
+ */
+class DeflateCodecTest
+{
+    private final DeflateCodec codec = DeflateCodec.INSTANCE;
+
+    private static String text(int length)
+    {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) text.append("what would you think about going there tomorrow morning? ");
+        return text.substring(0, length);
+    }
+
+    @Test
+    void sendsShortPayloadsRaw() throws IOException
+    {
+        byte[] payload = codec.encode(new ChatMessage("alice", "hi"));
+        assertEquals(DeflateCodec.RAW, payload[0]);
+        assertEquals("hi", ((ChatMessage) codec.decode(payload, 0, payload.length)).getMessage());
+    }
+
+    @Test
+    void deflatesLongPayloads() throws IOException
+    {
+        String text = text(4000);
+        byte[] payload = codec.encode(new ChatMessage("alice", text, "dev"));
+        assertEquals(DeflateCodec.DEFLATED, payload[0]);
+        assertTrue(payload.length < 1000, "deflated to " + payload.length);
+
+        ChatMessage decoded = (ChatMessage) codec.decode(payload, 0, payload.length);
+        assertEquals(text, decoded.getMessage());
+        assertEquals("dev", decoded.getRoom());
+    }
+
+    @Test
+    void decoderReusesItsBufferAcrossSizes() throws IOException
+    {
+        MessageDecoder decoder = codec.newDecoder();
+        for (int length : new int[]{200, 5000, 200 * 1024, 300, 70 * 1024, 100})
+        {
+            String text = text(length);
+            byte[] payload = codec.encode(new ChatMessage("alice", text));
+            byte[] buf = new byte[payload.length + 3];
+            System.arraycopy(payload, 0, buf, 3, payload.length);
+            assertEquals(text, ((ChatMessage) decoder.decode(buf, 3, payload.length)).getMessage(), "length " + length);
+        }
+    }
+
+    /**
+     * @return a DEFLATED payload of data declaring the given inflated length
+     */
+    private static byte[] deflated(byte[] data, int declaredLength)
+    {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[data.length + 64];
+        int length = deflater.deflate(out);
+        deflater.end();
+        return ByteBuffer.allocate(5 + length).put(DeflateCodec.DEFLATED).putInt(declaredLength).put(out, 0, length).array();
+    }
+
+    @Test
+    void inflatesStreamsWithoutTheDictionary() throws IOException
+    {
+        byte[] binary = BinaryCodec.INSTANCE.encode(new ChatMessage("bob", text(500)));
+        byte[] payload = deflated(binary, binary.length);
+        assertEquals(text(500), ((ChatMessage) codec.decode(payload, 0, payload.length)).getMessage());
+        assertEquals(text(500), ((ChatMessage) codec.newDecoder().decode(payload, 0, payload.length)).getMessage());
+    }
+
+    @Test
+    void rejectsDeclaredLengthsOverTheFrameLimit()
+    {
+        byte[] zeros = new byte[4 * FrameIO.MAX_FRAME_LENGTH]; //deflates to a few KB
+        assertCorrupt(deflated(zeros, zeros.length));
+        assertCorrupt(deflated(zeros, FrameIO.MAX_FRAME_LENGTH + 1));
+        assertCorrupt(deflated(new byte[100], Integer.MAX_VALUE));
+        assertCorrupt(deflated(new byte[100], -1));
+    }
+
+    @Test
+    void rejectsStreamsLongerOrShorterThanDeclared() throws IOException
+    {
+        byte[] binary = BinaryCodec.INSTANCE.encode(new ChatMessage("bob", text(500)));
+        assertCorrupt(deflated(binary, binary.length - 1));
+        assertCorrupt(deflated(binary, binary.length + 1));
+        assertCorrupt(deflated(new byte[4 * FrameIO.MAX_FRAME_LENGTH], FrameIO.MAX_FRAME_LENGTH)); //a bomb declaring the limit
+    }
+
+    @Test
+    void rejectsMalformedPayloads() throws IOException
+    {
+        assertCorrupt(new byte[0]);
+        assertCorrupt(new byte[]{7, 0, 0, 0, 0});
+        assertCorrupt(new byte[]{DeflateCodec.DEFLATED, 0, 0});
+        assertCorrupt(ByteBuffer.allocate(9).put(DeflateCodec.DEFLATED).putInt(100).putInt(0x12345678).array()); //not zlib
+
+        byte[] payload = codec.encode(new ChatMessage("alice", text(2000)));
+        assertCorrupt(Arrays.copyOf(payload, payload.length - 10)); //truncated
+    }
+
+    @Test
+    void theDecoderRecoversFromARejectedFrame() throws IOException
+    {
+        MessageDecoder decoder = codec.newDecoder();
+        byte[] binary = BinaryCodec.INSTANCE.encode(new ChatMessage("bob", text(500)));
+        byte[] bad = deflated(binary, binary.length + 1);
+        assertThrows(StreamCorruptedException.class, () -> decoder.decode(bad, 0, bad.length));
+
+        ArrayList<String> usernames = new ArrayList<>(Arrays.asList("alice", "bob"));
+        byte[] good = codec.encode(usernames);
+        assertEquals(usernames, decoder.decode(good, 0, good.length));
+    }
+
+    private void assertCorrupt(byte[] payload)
+    {
+        assertThrows(StreamCorruptedException.class, () -> codec.decode(payload, 0, payload.length));
+        assertThrows(StreamCorruptedException.class, () -> codec.newDecoder().decode(payload, 0, payload.length));
+    }
+}
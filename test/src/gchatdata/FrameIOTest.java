@@ -0,0 +1,65 @@
+package gchatdata;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import org.junit.jupiter.api.Test;
+
+class FrameIOTest
+{
+    @Test
+    void framesFollowTheHandshake() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        FrameIO.writeHandshake(out, BinaryCodec.INSTANCE);
+        FrameIO.writeFrame(out, new byte[]{1, 2, 3});
+        FrameIO.writeFrame(out, new byte[0]);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        int header = in.readInt();
+        assertEquals(BinaryCodec.MAGIC, header);
+        assertFalse(FrameIO.isLegacyHeader(header));
+        assertArrayEquals(new byte[]{1, 2, 3}, FrameIO.readFrame(in));
+        assertArrayEquals(new byte[0], FrameIO.readFrame(in));
+        assertThrows(EOFException.class, () -> FrameIO.readFrame(in));
+    }
+
+    @Test
+    void tellsLegacyStreamsApart() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectOutputStream(bytes).flush();
+
+        assertTrue(FrameIO.isLegacyHeader(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())).readInt()));
+    }
+
+    @Test
+    void rejectsLengthsOutOfBounds()
+    {
+        assertThrows(StreamCorruptedException.class, () -> FrameIO.checkLength(-1));
+        assertThrows(StreamCorruptedException.class, () -> FrameIO.checkLength(FrameIO.MAX_FRAME_LENGTH + 1));
+
+        byte[] header = {0x7f, 0, 0, 0}; //claims 2GB
+        assertThrows(StreamCorruptedException.class,
+                () -> FrameIO.readFrame(new DataInputStream(new ByteArrayInputStream(header))));
+    }
+
+    @Test
+    void truncatedFrame()
+    {
+        byte[] frame = {0, 0, 0, 10, 1, 2, 3};
+        assertThrows(EOFException.class, () -> FrameIO.readFrame(new DataInputStream(new ByteArrayInputStream(frame))));
+    }
+}
@@ -0,0 +1,116 @@
+package gchatdata;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest
+{
+    @Test
+    void emptyHistogramReportsZero()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0, histogram.getMeanNanos());
+        assertEquals(0, histogram.getTotalCount());
+    }
+
+    @Test
+    void countsSmallValuesExactly()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 200; i++) histogram.record(i);
+
+        assertEquals(100, histogram.getValueAtPercentile(50));
+        assertEquals(198, histogram.getValueAtPercentile(99));
+        assertEquals(200, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(200, histogram.getMaxNanos());
+        assertEquals(100.5, histogram.getMeanNanos(), 1e-9);
+    }
+
+    @Test
+    void reportsLargeValuesWithinOnePercent()
+    {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++)
+        {
+            long value = 256 + (long) (random.nextDouble() * Long.MAX_VALUE / 2);
+            if (i % 3 == 0) value = 256 + random.nextInt(10_000_000);
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE); //so that the max does not cap the answer
+
+            long reported = histogram.getValueAtPercentile(50);
+            assertTrue(reported >= value && reported - value <= value / 100, value + " reported as " + reported);
+        }
+    }
+
+    @Test
+    void percentilesOfAKnownDistribution()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Long> values = new ArrayList<>();
+        for (long micros = 1; micros <= 10_000; micros++) values.add(micros * 1000);
+        Collections.shuffle(values, new Random(7));
+        for (long value : values) histogram.record(value);
+
+        assertWithinOnePercent(5_000_000, histogram.getValueAtPercentile(50));
+        assertWithinOnePercent(9_900_000, histogram.getValueAtPercentile(99));
+        assertWithinOnePercent(9_990_000, histogram.getValueAtPercentile(99.9));
+        assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+        assertEquals(10_000, histogram.getTotalCount());
+    }
+
+    private static void assertWithinOnePercent(long expected, long actual)
+    {
+        assertTrue(Math.abs(actual - expected) <= expected / 100, "expected about " + expected + ", got " + actual);
+    }
+
+    @Test
+    void negativeValuesCountAsZero()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getTotalCount());
+    }
+
+    @Test
+    void resetForgetsEverything()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000_000);
+        histogram.reset();
+        histogram.record(10);
+
+        assertEquals(10, histogram.getValueAtPercentile(100));
+        assertEquals(10, histogram.getMaxNanos());
+        assertEquals(1, histogram.getTotalCount());
+        assertEquals(10, histogram.getTotalNanos());
+    }
+
+    @Test
+    void recordsFromManyThreads() throws InterruptedException
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread(() -> {
+                for (int i = 1; i <= 100_000; i++) histogram.record(i);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(800_000, histogram.getTotalCount());
+        assertEquals(100_000, histogram.getMaxNanos());
+        assertWithinOnePercent(50_000, histogram.getValueAtPercentile(50));
+    }
+}
@@ -0,0 +1,56 @@
+package gchatdata;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every SerializationCodec payload is a stream of its own, decodable without the ones before it
+ */
+class SerializationCodecTest
+{
+    private final SerializationCodec codec = SerializationCodec.INSTANCE;
+
+    @Test
+    void roundTripsEachPayloadOnItsOwn() throws IOException
+    {
+        byte[] first = codec.encode(new ChatMessage("alice", "one", "dev"));
+        byte[] second = codec.encode(new ChatMessage("alice", "two", "dev"));
+
+        ChatMessage decoded = (ChatMessage) codec.decode(second, 0, second.length);
+        assertEquals("alice", decoded.getUsername());
+        assertEquals("two", decoded.getMessage());
+        assertEquals("dev", decoded.getRoom());
+        assertEquals("one", ((ChatMessage) codec.decode(first, 0, first.length)).getMessage());
+
+        ArrayList<String> usernames = new ArrayList<>(Arrays.asList("alice", "bob"));
+        byte[] list = codec.encode(usernames);
+        assertEquals(usernames, codec.decode(list, 0, list.length));
+        byte[] poison = codec.encode(new Poison(true));
+        assertTrue(((Poison) codec.decode(poison, 0, poison.length)).isToShutdownServer());
+    }
+
+    @Test
+    void serializesTheTextOfADecodedMessage() throws IOException
+    {
+        byte[] binary = BinaryCodec.INSTANCE.encode(new ChatMessage("alice", "kept in UTF-8"));
+        Object decoded = BinaryCodec.INSTANCE.newDecoder().decode(binary, 0, binary.length);
+
+        byte[] payload = codec.encode(decoded);
+        assertEquals("kept in UTF-8", ((ChatMessage) codec.decode(payload, 0, payload.length)).getMessage());
+    }
+
+    @Test
+    void rejectsMalformedPayloads() throws IOException
+    {
+        byte[] payload = codec.encode(new ChatMessage("alice", "hello"));
+
+        assertThrows(IOException.class, () -> codec.decode(payload, 0, payload.length / 2));
+        assertThrows(IOException.class, () -> codec.decode(new byte[]{1, 2, 3, 4}, 0, 4));
+    }
+}